@@ -0,0 +1 @@
+db.collaborativeeditor.createIndex({epAliases:1},{background: true,sparse: true,name:"idx_collaborative_editor_epaliases"});
@@ -0,0 +1,3 @@
+db.collaborativeeditor.dropIndex("name_text_description_text");
+db.collaborativeeditor.createIndex({name:"text",description:"text",contentText:"text"},{background: true,weights:{name:10,description:5,contentText:1},name:"idx_collaborative_editor_text"});
+db.collaborativeeditor.createIndex({contentCheckedAt:1},{background: true,name:"idx_collaborative_editor_content_checked_at"});
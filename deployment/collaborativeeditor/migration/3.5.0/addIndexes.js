@@ -0,0 +1,2 @@
+db.getCollection("collaborativeeditor.outbox").createIndex({nextAttemptAt:1},{background: true,name:"idx_collaborative_editor_outbox_next_attempt"});
+db.collaborativeeditor.createIndex({epGroupID:1},{background: true,name:"idx_collaborative_editor_epgroupid"});
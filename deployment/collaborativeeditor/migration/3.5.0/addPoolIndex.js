@@ -0,0 +1 @@
+db.getCollection("collaborativeeditor.pool").createIndex({domain:1},{background: true,name:"idx_collaborative_editor_pool_domain"});
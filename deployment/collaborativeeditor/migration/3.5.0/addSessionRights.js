@@ -0,0 +1,32 @@
+// Grants open, duplicate and render wherever session was shared, in a single pass over the shares.
+var prefix = "net-atos-entng-collaborativeeditor-controllers-CollaborativeEditorController|";
+var session = prefix + "session";
+var rights = [prefix + "open", prefix + "duplicate", prefix + "render"];
+var query = {"shared": {"$elemMatch": {}}};
+query.shared.$elemMatch[session] = true;
+var bulk = db.collaborativeeditor.initializeUnorderedBulkOp();
+var pending = 0;
+db.collaborativeeditor.find(query, {shared: 1, visibleTo: 1}).noCursorTimeout().forEach(function (pad) {
+    var visibleTo = pad.visibleTo || [];
+    pad.shared.forEach(function (share) {
+        var id = share.userId || share.groupId;
+        if (share[session] === true && id) {
+            rights.forEach(function (right) {
+                share[right] = true;
+                if (visibleTo.indexOf(right + ":" + id) < 0) {
+                    visibleTo.push(right + ":" + id);
+                }
+            });
+        }
+    });
+    bulk.find({_id: pad._id}).updateOne({$set: {shared: pad.shared, visibleTo: visibleTo}});
+    pending++;
+    if (pending >= 1000) {
+        bulk.execute();
+        bulk = db.collaborativeeditor.initializeUnorderedBulkOp();
+        pending = 0;
+    }
+});
+if (pending > 0) {
+    bulk.execute();
+}
@@ -0,0 +1,39 @@
+// Backfills visibleTo and its index. The share checks and listings probe this index alone, which supersedes
+// the owner/shared compound indexes; the 2.0.0 single-field indexes are kept for "visibility-fallback".
+var bulk = db.collaborativeeditor.initializeUnorderedBulkOp();
+var pending = 0;
+db.collaborativeeditor.find({}, {owner: 1, shared: 1}).noCursorTimeout().forEach(function (pad) {
+    var entries = [];
+    var add = function (entry) {
+        if (entries.indexOf(entry) < 0) {
+            entries.push(entry);
+        }
+    };
+    if (pad.owner && pad.owner.userId) {
+        add(pad.owner.userId);
+        add("owner:" + pad.owner.userId);
+    }
+    (pad.shared || []).forEach(function (share) {
+        var id = share.userId || share.groupId;
+        if (!id) {
+            return;
+        }
+        add(id);
+        for (var right in share) {
+            if (right !== "userId" && right !== "groupId" && share[right] === true) {
+                add(right + ":" + id);
+            }
+        }
+    });
+    bulk.find({_id: pad._id}).updateOne({$set: {visibleTo: entries}});
+    pending++;
+    if (pending >= 1000) {
+        bulk.execute();
+        bulk = db.collaborativeeditor.initializeUnorderedBulkOp();
+        pending = 0;
+    }
+});
+if (pending > 0) {
+    bulk.execute();
+}
+db.collaborativeeditor.createIndex({visibleTo:1,modified:-1},{background: true,name:"idx_collaborative_editor_visible_to_modified"});
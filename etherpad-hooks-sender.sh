@@ -0,0 +1,35 @@
+#!/bin/bash
+
+# Stand-in for the Etherpad hook plugin: sends one signed activity event to the collaborative editor.
+#
+# Usage: ETHERPAD_WEBHOOK_SECRET=secret ./etherpad-hooks-sender.sh <event> <padId> [userCount] [url]
+#   event     padUpdate, padCreate, padRemove, userJoin or userLeave
+#   padId     Etherpad pad name, g.xxx$yyy
+#   userCount users left on the pad, for userJoin and userLeave
+#   url       defaults to http://localhost:8090/collaborativeeditor/api/internal/etherpad/hooks
+
+if [ -z "$ETHERPAD_WEBHOOK_SECRET" ] || [ $# -lt 2 ]; then
+  sed -n '3,9p' "$0"
+  exit 1
+fi
+
+EVENT=$1
+PAD_ID=$2
+USER_COUNT=${3:-}
+URL=${4:-http://localhost:8090/collaborativeeditor/api/internal/etherpad/hooks}
+TIMESTAMP=$(($(date +%s) * 1000))
+
+if [ -n "$USER_COUNT" ]; then
+  BODY="{\"event\":\"$EVENT\",\"padId\":\"$PAD_ID\",\"timestamp\":$TIMESTAMP,\"userCount\":$USER_COUNT}"
+else
+  BODY="{\"event\":\"$EVENT\",\"padId\":\"$PAD_ID\",\"timestamp\":$TIMESTAMP}"
+fi
+
+SIGNATURE=$(printf '%s' "$TIMESTAMP.$BODY" | openssl dgst -sha256 -hmac "$ETHERPAD_WEBHOOK_SECRET" | sed 's/^.*= //')
+
+curl -s -X POST "$URL" \
+  -H "Content-Type: application/json" \
+  -H "X-Etherpad-Timestamp: $TIMESTAMP" \
+  -H "X-Etherpad-Signature: sha256=$SIGNATURE" \
+  -d "$BODY"
+echo
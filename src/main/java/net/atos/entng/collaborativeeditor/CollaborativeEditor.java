@@ -25,11 +25,15 @@ import io.vertx.core.Promise;
 import net.atos.entng.collaborativeeditor.controllers.CollaborativeEditorController;
 import net.atos.entng.collaborativeeditor.controllers.TaskController;
 import net.atos.entng.collaborativeeditor.cron.NotUsingPAD;
+import net.atos.entng.collaborativeeditor.cron.OrphanReconciler;
 import net.atos.entng.collaborativeeditor.events.CollaborativeEditorRepositoryEvents;
 import net.atos.entng.collaborativeeditor.events.CollaborativeEditorSearchingEvents;
 import net.atos.entng.collaborativeeditor.explorer.CollaborativeEditorExplorerPlugin;
+import net.atos.entng.collaborativeeditor.explorer.ExplorerReindexJob;
+import net.atos.entng.collaborativeeditor.explorer.PadContentIndexer;
 import net.atos.entng.collaborativeeditor.filter.CollaborativeEditorShareAndOwner;
 import net.atos.entng.collaborativeeditor.helpers.EtherpadHelper;
+import net.atos.entng.collaborativeeditor.helpers.PadVisibility;
 import org.entcore.common.explorer.IExplorerPluginClient;
 import org.entcore.common.explorer.impl.ExplorerRepositoryEvents;
 import org.entcore.common.http.BaseServer;
@@ -70,6 +74,31 @@ public class CollaborativeEditor extends BaseServer {
      */
     public static final String COLLABORATIVEEDITOR_COLLECTION = "collaborativeeditor";
 
+    /**
+     * Constant to define the MongoDB collection storing the run records of maintenance tasks.
+     */
+    public static final String COLLABORATIVEEDITOR_TASKS_COLLECTION = "collaborativeeditor.tasks";
+
+    /**
+     * Constant to define the MongoDB collection storing the deletions to run on the Etherpad backends.
+     */
+    public static final String COLLABORATIVEEDITOR_OUTBOX_COLLECTION = "collaborativeeditor.outbox";
+
+    /**
+     * Constant to define the MongoDB collection storing the pads created in advance.
+     */
+    public static final String COLLABORATIVEEDITOR_POOL_COLLECTION = "collaborativeeditor.pool";
+
+    /**
+     * Constant to define the MongoDB collection storing the content of the archived pads.
+     */
+    public static final String COLLABORATIVEEDITOR_ARCHIVE_COLLECTION = "collaborativeeditor.archive";
+
+    /**
+     * Constant to define the MongoDB collection storing the Etherpad groups found without any pad.
+     */
+    public static final String COLLABORATIVEEDITOR_ORPHANS_COLLECTION = "collaborativeeditor.orphans";
+
     private CollaborativeEditorExplorerPlugin explorerPlugin;
 
     /**
@@ -85,7 +114,7 @@ public class CollaborativeEditor extends BaseServer {
     }
 
     public Future<Void> initCollaborativeEditor() {
-        return CollaborativeEditorExplorerPlugin.create(securedActions).compose(plugin -> {
+        return CollaborativeEditorExplorerPlugin.create(securedActions, config).compose(plugin -> {
             this.explorerPlugin = plugin;
             // Mongo Conf
             MongoDbConf conf = MongoDbConf.getInstance();
@@ -93,6 +122,7 @@ public class CollaborativeEditor extends BaseServer {
             conf.setCollection(COLLABORATIVEEDITOR_COLLECTION);
 
             setDefaultResourceFilter(new CollaborativeEditorShareAndOwner());
+            PadVisibility.configure(config);
 
             final EtherpadHelper etherpadHelper = new EtherpadHelper(
                     vertx
@@ -108,14 +138,14 @@ public class CollaborativeEditor extends BaseServer {
             // Subscribe to events published for searching
             if (config.getBoolean("searching-event", true)) {
                 setSearchingEvents(new CollaborativeEditorSearchingEvents(vertx,
-                        new MongoDbSearchService(COLLABORATIVEEDITOR_COLLECTION)));
+                        new MongoDbSearchService(COLLABORATIVEEDITOR_COLLECTION), etherpadHelper.getReadRouting()));
             }
 
             // Create Repository Event with Explorer Proxy
             final IExplorerPluginClient mainClient = IExplorerPluginClient.withBus(vertx, APPLICATION, TYPE);
             final Map<String, IExplorerPluginClient> pluginClientPerCollection = new HashMap<>();
             pluginClientPerCollection.put(COLLABORATIVEEDITOR_COLLECTION, mainClient);
-            final RepositoryEvents explorerRepository = new ExplorerRepositoryEvents(new CollaborativeEditorRepositoryEvents(vertx, etherpadHelper), pluginClientPerCollection, mainClient);
+            final RepositoryEvents explorerRepository = new ExplorerRepositoryEvents(new CollaborativeEditorRepositoryEvents(vertx, etherpadHelper, config), pluginClientPerCollection, mainClient);
             final RepositoryEvents resourceRepository = new ResourceBrokerRepositoryEvents(explorerRepository, vertx, APPLICATION, TYPE);
             setRepositoryEvents(resourceRepository);
             // Add Controller
@@ -124,13 +154,44 @@ public class CollaborativeEditor extends BaseServer {
             // Cron task to check not using pad and send notification to users
             final String unusedPadCron = config.getString("unusedPadCron", "0 0 23 * * ?");
             final TimelineHelper timelineHelper = new TimelineHelper(vertx, vertx.eventBus(), config);
-            final NotUsingPAD notUsingPADTask = new NotUsingPAD(timelineHelper, etherpadHelper.getFirstClient(), config);
+            final NotUsingPAD notUsingPADTask = new NotUsingPAD(timelineHelper, etherpadHelper.getClientsByDomain(), explorerPlugin.getMongoClient(),
+                    etherpadHelper.getPadArchive(), config);
+
+            // Deletions from the explorer clean up Etherpad as the other deletes
+            explorerPlugin.setEtherpadCleanup(etherpadHelper.getDeletionOutbox(), etherpadHelper.getPadArchive(), etherpadHelper.getDefaultDomain());
+
+            // Drain the Etherpad deletions queued by the user facing deletes
+            if (config.getBoolean("deletion-outbox-worker", true)) {
+                etherpadHelper.getDeletionOutbox().start();
+            }
+
+            // Keep pads ready for the creations
+            etherpadHelper.getPadPool().start();
+
+            // Reconciliation between Mongo documents and Etherpad groups
+            final OrphanReconciler orphanReconciler = new OrphanReconciler(vertx, explorerPlugin.getMongoClient(),
+                    etherpadHelper.getClientsByDomain(), etherpadHelper.getDeletionOutbox(), etherpadHelper.getPadPool(), config);
+
+            // Full resynchronisation of the pads with the explorer
+            final ExplorerReindexJob explorerReindexJob = new ExplorerReindexJob(vertx, explorerPlugin, config);
+            // Incremental indexing of the pad text
+            final PadContentIndexer padContentIndexer = new PadContentIndexer(vertx, explorerPlugin, etherpadHelper.getClientsByDomain(), config);
+            if (config.getBoolean("content-indexer", true)) {
+                padContentIndexer.start();
+            }
 
             // Enable not using pad task to be triggered via API
-            addController(new TaskController(notUsingPADTask));
+            addController(new TaskController(notUsingPADTask, etherpadHelper.getDeletionOutbox(), orphanReconciler, explorerReindexJob, padContentIndexer,
+                    etherpadHelper.getReadRouting(), etherpadHelper.getPadPool(), etherpadHelper.getClientsByDomain(),
+                    etherpadHelper.getPadArchive(), etherpadHelper.getSnapshotCache(), etherpadHelper.getPadPresence(),
+                    etherpadHelper.getEtherpadActivity(), etherpadHelper.getAdmissionControl()));
             // Schedule not using pad task from cron expression
             try {
                 new CronTrigger(vertx, unusedPadCron).schedule(notUsingPADTask);
+                final String reconcilerCron = config.getString("reconcilerCron");
+                if (reconcilerCron != null) {
+                    new CronTrigger(vertx, reconcilerCron).schedule(orphanReconciler);
+                }
             } catch (ParseException e) {
                 log.fatal("[Collaborative Editor] Invalid cron expression.", e);
                 //vertx.stop();
@@ -123,12 +123,19 @@ public class CollaborativeEditorController extends MongoDbControllerHelper {
         etherpadHelper.list(request);
     }
 
+    @Get("/list/presence")
+    @ApiDoc("Streams the users present on the listed editors as server-sent events")
+    @SecuredAction("collaborativeeditor.list")
+    public void presence(HttpServerRequest request) {
+        etherpadHelper.presence(request);
+    }
+
     @Override
     @Get("/:id")
     @ApiDoc("Allows to get a collaborative editor associated to the given identifier")
     @SecuredAction(value = "collaborativeeditor.read", type = ActionType.RESOURCE)
     public void retrieve(HttpServerRequest request) {
-        etherpadHelper.retrieve(request);
+        etherpadHelper.admit(request, "retrieve", v -> etherpadHelper.retrieve(request));
     }
 
     @Override
@@ -139,7 +146,7 @@ public class CollaborativeEditorController extends MongoDbControllerHelper {
         RequestUtils.bodyToJson(
                 request
                 , pathPrefix + "collaborativeeditor"
-                , event -> etherpadHelper.create(request));
+                , event -> etherpadHelper.admit(request, "create", v -> etherpadHelper.create(request)));
     }
 
     @Override
@@ -157,7 +164,7 @@ public class CollaborativeEditorController extends MongoDbControllerHelper {
                                     // Notify Explorer
                                     padData.put("_id", request.params().get("id"));
                                     padData.put("version", System.currentTimeMillis());
-                                    explorerPlugin.notifyUpsert(user, padData);
+                                    explorerPlugin.bufferUpsert(user, padData);
                                 }))
                 .onFailure(e -> unauthorized(request));
     }
@@ -170,11 +177,46 @@ public class CollaborativeEditorController extends MongoDbControllerHelper {
         etherpadHelper.delete(request);
     }
 
+    @Get("/export/archive")
+    @ApiDoc("Allows to download the user's collaborative editors as a zip archive streamed from Etherpad")
+    @SecuredAction(value = "", type = ActionType.AUTHENTICATED)
+    public void exportArchive(HttpServerRequest request) {
+        etherpadHelper.exportArchive(request);
+    }
+
+    @Delete("")
+    @ApiDoc("Allows to delete the collaborative editors given by their identifiers in the body")
+    @SecuredAction(value = "", type = ActionType.AUTHENTICATED)
+    public void deleteAll(HttpServerRequest request) {
+        etherpadHelper.deleteAll(request);
+    }
+
     @Get("/session/:id")
     @ApiDoc("Allows to create a session on a collaborative editor")
     @SecuredAction(value = "collaborativeeditor.read", type = ActionType.RESOURCE)
     public void session(HttpServerRequest request) {
-        etherpadHelper.createSession(request);
+        etherpadHelper.admit(request, "session", v -> etherpadHelper.createSession(request));
+    }
+
+    @Get("/open/:id")
+    @ApiDoc("Allows to open a collaborative editor: returns the editor with its urls and sets the Etherpad session")
+    @SecuredAction(value = "collaborativeeditor.read", type = ActionType.RESOURCE)
+    public void open(HttpServerRequest request) {
+        etherpadHelper.admit(request, "open", v -> etherpadHelper.open(request));
+    }
+
+    @Post("/duplicate/:id")
+    @ApiDoc("Allows to duplicate a collaborative editor, the content being copied inside Etherpad")
+    @SecuredAction(value = "collaborativeeditor.read", type = ActionType.RESOURCE)
+    public void duplicate(HttpServerRequest request) {
+        etherpadHelper.duplicate(request);
+    }
+
+    @Get("/render/:id")
+    @ApiDoc("Allows to read a collaborative editor as sanitised HTML, served from a snapshot cache")
+    @SecuredAction(value = "collaborativeeditor.read", type = ActionType.RESOURCE)
+    public void render(HttpServerRequest request) {
+        etherpadHelper.render(request);
     }
 
     @Get("/deleteSession/:id")
@@ -284,9 +326,9 @@ public class CollaborativeEditorController extends MongoDbControllerHelper {
         // Redirect to the pad
         final String location = String.format("%s/%s?%s", padPath, padId, queryString);
         // Create pad session
-        etherpadHelper.createSession(request, true, Optional.of(location)).onComplete(complete -> {
+        etherpadHelper.admit(request, "embed", v -> etherpadHelper.createSession(request, true, Optional.of(location)).onComplete(complete -> {
             // response already sent in createSession
-        });
+        }));
     }
 
 
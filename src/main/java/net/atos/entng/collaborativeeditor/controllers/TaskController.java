@@ -1,28 +1,244 @@
 package net.atos.entng.collaborativeeditor.controllers;
 
+import fr.wseduc.rs.Delete;
+import fr.wseduc.rs.Get;
 import fr.wseduc.rs.Post;
 import fr.wseduc.security.ActionType;
 import fr.wseduc.security.SecuredAction;
 import fr.wseduc.webutils.http.BaseController;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
 import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
+import net.atos.entng.collaborativeeditor.cron.EtherpadDeletionOutbox;
 import net.atos.entng.collaborativeeditor.cron.NotUsingPAD;
+import net.atos.entng.collaborativeeditor.cron.OrphanReconciler;
+import net.atos.entng.collaborativeeditor.cron.PadPool;
+import net.atos.entng.collaborativeeditor.explorer.ExplorerReindexJob;
+import net.atos.entng.collaborativeeditor.explorer.PadContentIndexer;
+import net.atos.entng.collaborativeeditor.helpers.AdmissionControl;
+import net.atos.entng.collaborativeeditor.helpers.EtherpadActivity;
+import net.atos.entng.collaborativeeditor.helpers.MongoReadRouting;
+import net.atos.entng.collaborativeeditor.helpers.PadArchive;
+import net.atos.entng.collaborativeeditor.helpers.PadPresence;
+import net.atos.entng.collaborativeeditor.helpers.PadSnapshotCache;
+import org.etherpad_lite_client.EPLiteClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 public class TaskController extends BaseController {
 	protected static final Logger log = LoggerFactory.getLogger(TaskController.class);
 
 	final NotUsingPAD notUsingPADTask;
+	final EtherpadDeletionOutbox deletionOutbox;
+	final OrphanReconciler orphanReconciler;
+	final ExplorerReindexJob explorerReindexJob;
+	final PadContentIndexer padContentIndexer;
+	final MongoReadRouting readRouting;
+	final PadPool padPool;
+	final Map<String, EPLiteClient> clientByDomain;
+	final PadArchive padArchive;
+	final PadSnapshotCache snapshotCache;
+	final PadPresence padPresence;
+	final EtherpadActivity etherpadActivity;
+	final AdmissionControl admissionControl;
 
-	public TaskController(NotUsingPAD notUsingPADTask) {
+	public TaskController(NotUsingPAD notUsingPADTask, EtherpadDeletionOutbox deletionOutbox, OrphanReconciler orphanReconciler,
+						  ExplorerReindexJob explorerReindexJob, PadContentIndexer padContentIndexer, MongoReadRouting readRouting,
+						  PadPool padPool, Map<String, EPLiteClient> clientByDomain, PadArchive padArchive,
+						  PadSnapshotCache snapshotCache, PadPresence padPresence, EtherpadActivity etherpadActivity,
+						  AdmissionControl admissionControl) {
 		this.notUsingPADTask = notUsingPADTask;
+		this.deletionOutbox = deletionOutbox;
+		this.orphanReconciler = orphanReconciler;
+		this.explorerReindexJob = explorerReindexJob;
+		this.padContentIndexer = padContentIndexer;
+		this.readRouting = readRouting;
+		this.padPool = padPool;
+		this.clientByDomain = clientByDomain;
+		this.padArchive = padArchive;
+		this.snapshotCache = snapshotCache;
+		this.padPresence = padPresence;
+		this.etherpadActivity = etherpadActivity;
+		this.admissionControl = admissionControl;
 	}
 
 	@Post("api/internal/check/not-using-pad")
 	@SecuredAction(value = "", type = ActionType.RESOURCE)
 	public void checkNotUsingPAD(final HttpServerRequest request) {
 		log.info("Triggered check not using pad task");
-		notUsingPADTask.handle(0L);
-		render(request, null, 202);
+		notUsingPADTask.start()
+				.onSuccess(run -> renderJson(request, run, 202))
+				.onFailure(th -> renderError(request, new JsonObject().put("error", th.getMessage())));
+	}
+
+	@Get("api/internal/check/not-using-pad")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	public void checkNotUsingPADStatus(final HttpServerRequest request) {
+		notUsingPADTask.status()
+				.onSuccess(run -> renderJson(request, run))
+				.onFailure(th -> renderError(request, new JsonObject().put("error", th.getMessage())));
+	}
+
+	@Delete("api/internal/check/not-using-pad")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	public void cancelNotUsingPAD(final HttpServerRequest request) {
+		log.info("Cancel check not using pad task");
+		notUsingPADTask.cancel()
+				.onSuccess(v -> render(request, null, 202))
+				.onFailure(th -> renderError(request, new JsonObject().put("error", th.getMessage())));
+	}
+
+	@Get("api/internal/outbox/etherpad-deletions")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	public void deletionOutboxStatus(final HttpServerRequest request) {
+		deletionOutbox.status()
+				.onSuccess(status -> renderJson(request, status))
+				.onFailure(th -> renderError(request, new JsonObject().put("error", th.getMessage())));
+	}
+
+	@Post("api/internal/reconcile")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	public void reconcile(final HttpServerRequest request) {
+		final boolean collect = Boolean.parseBoolean(request.params().get("gc"));
+		log.info("Triggered orphan reconciliation, garbage collection : " + collect);
+		orphanReconciler.start(collect)
+				.onSuccess(run -> renderJson(request, run, 202))
+				.onFailure(th -> renderError(request, new JsonObject().put("error", th.getMessage())));
+	}
+
+	@Get("api/internal/reconcile")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	public void reconcileStatus(final HttpServerRequest request) {
+		orphanReconciler.status()
+				.onSuccess(run -> renderJson(request, run))
+				.onFailure(th -> renderError(request, new JsonObject().put("error", th.getMessage())));
+	}
+
+	@Post("api/internal/explorer/reindex")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	public void reindexExplorer(final HttpServerRequest request) {
+		log.info("Triggered explorer reindex");
+		explorerReindexJob.start()
+				.onSuccess(run -> renderJson(request, run, 202))
+				.onFailure(th -> renderError(request, new JsonObject().put("error", th.getMessage())));
+	}
+
+	@Get("api/internal/explorer/reindex")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	public void reindexExplorerStatus(final HttpServerRequest request) {
+		explorerReindexJob.status()
+				.onSuccess(run -> renderJson(request, run))
+				.onFailure(th -> renderError(request, new JsonObject().put("error", th.getMessage())));
+	}
+
+	@Delete("api/internal/explorer/reindex")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	public void cancelReindexExplorer(final HttpServerRequest request) {
+		log.info("Cancel explorer reindex");
+		explorerReindexJob.cancel()
+				.onSuccess(v -> render(request, null, 202))
+				.onFailure(th -> renderError(request, new JsonObject().put("error", th.getMessage())));
+	}
+
+	@Get("api/internal/explorer/content-index")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	public void contentIndexStatus(final HttpServerRequest request) {
+		renderJson(request, padContentIndexer.status());
+	}
+
+	@Get("api/internal/mongo/reads")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	public void mongoReadStats(final HttpServerRequest request) {
+		renderJson(request, readRouting.stats());
+	}
+
+	@Get("api/internal/pad-pool")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	public void padPoolStatus(final HttpServerRequest request) {
+		padPool.status()
+				.onSuccess(status -> renderJson(request, status))
+				.onFailure(th -> renderError(request, new JsonObject().put("error", th.getMessage())));
+	}
+
+	@Get("api/internal/archive")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	public void archiveStatus(final HttpServerRequest request) {
+		renderJson(request, padArchive.status());
+	}
+
+	@Get("api/internal/snapshots")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	public void snapshotsStatus(final HttpServerRequest request) {
+		renderJson(request, snapshotCache.status());
+	}
+
+	@Get("api/internal/presence")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	public void presenceStatus(final HttpServerRequest request) {
+		renderJson(request, padPresence.status());
+	}
+
+	/**
+	 * Events sent by the Etherpad hooks, either one event or {"events": [...]}, signed with the shared secret.
+	 * Etherpad has no ENT session: the route is not a secured action, the signature is its only check.
+	 */
+	@Post("api/internal/etherpad/hooks")
+	public void etherpadHooks(final HttpServerRequest request) {
+		request.bodyHandler(body -> {
+			if (!etherpadActivity.verify(request.getHeader(EtherpadActivity.TIMESTAMP_HEADER),
+					request.getHeader(EtherpadActivity.SIGNATURE_HEADER), body)) {
+				unauthorized(request);
+				return;
+			}
+			final JsonObject payload;
+			try {
+				payload = body.toJsonObject();
+			} catch (DecodeException e) {
+				badRequest(request, "invalid.json");
+				return;
+			}
+			final JsonArray events = payload.containsKey("events")
+					? payload.getJsonArray("events", new JsonArray()) : new JsonArray().add(payload);
+			renderJson(request, new JsonObject().put("accepted", etherpadActivity.ingest(events)), 202);
+		});
+	}
+
+	@Get("api/internal/etherpad/hooks")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	public void etherpadHooksStatus(final HttpServerRequest request) {
+		renderJson(request, etherpadActivity.status());
+	}
+
+	@Get("api/internal/admission")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	public void admissionStatus(final HttpServerRequest request) {
+		renderJson(request, admissionControl.status());
+	}
+
+	@Get("api/internal/etherpad/backends")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	public void backends(final HttpServerRequest request) {
+		final JsonObject backends = new JsonObject();
+		final List<Future> futures = new ArrayList<>();
+		for (final Map.Entry<String, EPLiteClient> backend : clientByDomain.entrySet()) {
+			final JsonObject capabilities = backend.getValue().capabilities();
+			backends.put(backend.getKey(), capabilities);
+			final Promise<Void> promise = Promise.promise();
+			futures.add(promise.future());
+			backend.getValue().getStats(stats -> {
+				stats.remove("status");
+				capabilities.put("stats", stats);
+				promise.complete();
+			});
+		}
+		CompositeFuture.join(futures).onComplete(ar -> renderJson(request, backends));
 	}
 }
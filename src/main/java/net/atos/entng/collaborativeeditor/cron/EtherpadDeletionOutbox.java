@@ -0,0 +1,331 @@
+package net.atos.entng.collaborativeeditor.cron;
+
+import fr.wseduc.mongodb.MongoDb;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.mongo.FindOptions;
+import io.vertx.ext.mongo.MongoClient;
+import io.vertx.ext.mongo.UpdateOptions;
+import net.atos.entng.collaborativeeditor.CollaborativeEditor;
+import net.atos.entng.collaborativeeditor.helpers.PadArchive;
+import org.entcore.common.mongodb.MongoDbResult;
+import org.etherpad_lite_client.EPLiteClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durable queue of the deletions to run on the Etherpad backends. User facing deletes only insert
+ * entries in Mongo; a periodic worker drains them by batches with a bounded number of calls in flight,
+ * and reschedules failed calls with an exponential backoff so that no pad or group is leaked.
+ * Every node drains the outbox: an entry is leased before being processed by pushing its "nextAttemptAt"
+ * to the lease deadline, so that the other nodes skip it, and a node dying mid-call only delays it.
+ * A pad or group still used by a live document is never deleted: user facing deletes queue the cleanup
+ * before removing the documents: such an entry is deferred without counting as a failure, and dropped once
+ * "deletion-outbox-drop-grace" has passed, as the delete which queued it did not go through.
+ */
+public class EtherpadDeletionOutbox implements Handler<Long> {
+
+    public static final String TYPE_PAD = "pad";
+    public static final String TYPE_GROUP = "group";
+
+    private static final Logger log = LoggerFactory.getLogger(EtherpadDeletionOutbox.class);
+    private final MongoDb mongo = MongoDb.getInstance();
+    private final MongoClient mongoClient;
+    private final Vertx vertx;
+    private final Map<String, EPLiteClient> clientByDomain;
+    private final long interval;
+    private final int batchSize;
+    private final int parallelism;
+    private final long retryDelay;
+    private final long maxRetryDelay;
+    private final long leaseDuration;
+    private final long dropGrace;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong deferrals = new AtomicLong();
+
+    public EtherpadDeletionOutbox(final Vertx vertx, final MongoClient mongoClient, final Map<String, EPLiteClient> clientByDomain,
+                                  final JsonObject config) {
+        this.vertx = vertx;
+        this.mongoClient = mongoClient;
+        this.clientByDomain = clientByDomain;
+        this.interval = config.getLong("deletion-outbox-interval", 30000L);
+        this.batchSize = config.getInteger("deletion-outbox-batch-size", 100);
+        this.parallelism = config.getInteger("deletion-outbox-parallelism", 4);
+        this.retryDelay = config.getLong("deletion-outbox-retry-delay", 60000L);
+        this.maxRetryDelay = config.getLong("deletion-outbox-max-retry-delay", 6 * 3600000L);
+        this.leaseDuration = config.getLong("deletion-outbox-lease", 300000L);
+        this.dropGrace = config.getLong("deletion-outbox-drop-grace", 300000L);
+    }
+
+    /**
+     * Start draining the outbox periodically.
+     */
+    public void start() {
+        vertx.setPeriodic(interval, this);
+    }
+
+    @Override
+    public void handle(Long timerId) {
+        drain();
+    }
+
+    /**
+     * Queue the deletion of the pads and of their groups, and try to drain right away.
+     * @param pads pad documents holding epName, epGroupID and optionally epDomain
+     * @param fallbackDomain domain to use when a pad does not know its backend
+     */
+    public Future<Void> enqueue(final List<JsonObject> pads, final String fallbackDomain) {
+        return enqueue(pads, fallbackDomain, true);
+    }
+
+    /**
+     * Queue the deletion of the pads and of their groups.
+     * @param pads pad documents holding epName, epGroupID and optionally epDomain
+     * @param fallbackDomain domain to use when a pad does not know its backend
+     * @param drainNow false when the documents are still to be deleted, the caller drains once they are gone
+     */
+    public Future<Void> enqueue(final List<JsonObject> pads, final String fallbackDomain, final boolean drainNow) {
+        final JsonArray entries = new JsonArray();
+        final long now = System.currentTimeMillis();
+        for (final JsonObject pad : pads) {
+            final String domain = pad.getString("epDomain", fallbackDomain);
+            if (pad.getString("epName") != null) {
+                entries.add(entry(TYPE_PAD, pad.getString("epName"), domain, now));
+            }
+            if (pad.getString("epGroupID") != null) {
+                entries.add(entry(TYPE_GROUP, pad.getString("epGroupID"), domain, now));
+            }
+        }
+        if (entries.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        final Promise<Void> promise = Promise.promise();
+        mongo.insert(CollaborativeEditor.COLLABORATIVEEDITOR_OUTBOX_COLLECTION, entries, MongoDbResult.validActionResultHandler(event -> {
+            if (event.isRight()) {
+                promise.complete();
+                // Try to drain right away, the periodic worker takes over on failure
+                if (drainNow) {
+                    drain();
+                }
+            } else {
+                log.error("[EtherpadDeletionOutbox] Could not queue backend deletions : " + event.left().getValue());
+                promise.fail(event.left().getValue());
+            }
+        }));
+        return promise.future();
+    }
+
+    /**
+     * @return backlog size, entries already retried at least once and counters of this node (deferrals are the
+     * entries postponed while their target was still used, they are not failures)
+     */
+    public Future<JsonObject> status() {
+        final Future<Long> backlog = count(new JsonObject());
+        final Future<Long> retried = count(new JsonObject().put("attempts", new JsonObject().put("$gt", 0)));
+        return backlog.compose(total -> retried.map(retrying -> new JsonObject()
+                .put("backlog", total)
+                .put("retrying", retrying)
+                .put("processed", processed.get())
+                .put("failures", failures.get())
+                .put("deferrals", deferrals.get())
+                .put("draining", draining.get())));
+    }
+
+    /**
+     * Process the due entries now, rather than at the next tick of the worker.
+     */
+    public void drain() {
+        if (!draining.compareAndSet(false, true)) {
+            return;
+        }
+        final AtomicInteger claimed = new AtomicInteger();
+        final List<Future> workers = new ArrayList<>();
+        for (int i = 0; i < parallelism; i++) {
+            workers.add(work(claimed));
+        }
+        CompositeFuture.join(workers).onComplete(ar -> {
+            draining.set(false);
+            if (ar.failed()) {
+                log.error("[EtherpadDeletionOutbox] Could not drain the outbox", ar.cause());
+            } else if (claimed.get() >= batchSize) {
+                drain();
+            }
+        });
+    }
+
+    /**
+     * Lease and process due entries one after the other, until none is due or the batch is full.
+     */
+    private Future<Void> work(final AtomicInteger claimed) {
+        if (claimed.get() >= batchSize) {
+            return Future.succeededFuture();
+        }
+        return lease().compose(entry -> {
+            if (entry == null) {
+                return Future.succeededFuture();
+            }
+            claimed.incrementAndGet();
+            return process(entry).compose(v -> work(claimed));
+        });
+    }
+
+    /**
+     * @return the oldest due entry, leased to this node until the lease deadline, or null if none is due
+     */
+    private Future<JsonObject> lease() {
+        final Promise<JsonObject> promise = Promise.promise();
+        final long now = System.currentTimeMillis();
+        final JsonObject query = new JsonObject().put("nextAttemptAt", new JsonObject().put("$lte", now));
+        final JsonObject update = new JsonObject().put("$set", new JsonObject()
+                .put("nextAttemptAt", now + leaseDuration)
+                .put("leasedBy", nodeId));
+        final FindOptions options = new FindOptions().setSort(new JsonObject().put("nextAttemptAt", 1));
+        mongoClient.findOneAndUpdateWithOptions(CollaborativeEditor.COLLABORATIVEEDITOR_OUTBOX_COLLECTION, query, update,
+                options, new UpdateOptions().setReturningNewDocument(true), ar -> {
+            if (ar.failed()) {
+                log.error("[EtherpadDeletionOutbox] Could not lease an outbox entry : " + ar.cause().getMessage());
+                promise.fail(ar.cause());
+            } else {
+                promise.complete(ar.result());
+            }
+        });
+        return promise.future();
+    }
+
+    private Future<Void> process(final JsonObject entry) {
+        final EPLiteClient client = clientByDomain.get(entry.getString("domain"));
+        if (client == null) {
+            return reschedule(entry, "no.pad.client");
+        }
+        return referenced(entry).compose(live -> {
+            if (!live) {
+                return call(client, entry);
+            }
+            if (System.currentTimeMillis() - entry.getLong("created", 0L) > dropGrace) {
+                // The delete which queued the entry did not remove the document, the pad is still in use
+                log.warn("[EtherpadDeletionOutbox] Drop the deletion of " + entry.getString("type") + " "
+                        + entry.getString("target") + " : still used by a pad");
+                return remove(entry.getString("_id"));
+            }
+            return defer(entry);
+        });
+    }
+
+    /**
+     * @return true if a live (not archived) pad document still uses the target of the entry
+     */
+    private Future<Boolean> referenced(final JsonObject entry) {
+        final String field = TYPE_PAD.equals(entry.getString("type")) ? "epName" : "epGroupID";
+        final JsonObject query = new JsonObject()
+                .put(field, entry.getString("target"))
+                .put(PadArchive.FIELD, new JsonObject().put("$ne", true));
+        return count(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, query).map(count -> count > 0L);
+    }
+
+    private Future<Void> call(final EPLiteClient client, final JsonObject entry) {
+        final Promise<Void> promise = Promise.promise();
+        final Handler<JsonObject> handler = res -> {
+            final String message = res.getString("message", "");
+            // The target may already be gone, deletion is idempotent
+            if ("ok".equals(res.getString("status")) || message.contains("does not exist")) {
+                processed.incrementAndGet();
+                remove(entry.getString("_id")).onComplete(promise);
+            } else {
+                reschedule(entry, message).onComplete(promise);
+            }
+        };
+        if (TYPE_PAD.equals(entry.getString("type"))) {
+            client.deletePad(entry.getString("target"), handler);
+        } else {
+            client.deleteGroup(entry.getString("target"), handler);
+        }
+        return promise.future();
+    }
+
+    private Future<Void> reschedule(final JsonObject entry, final String error) {
+        failures.incrementAndGet();
+        final int attempts = entry.getInteger("attempts", 0) + 1;
+        final long delay = Math.min(maxRetryDelay, retryDelay * (1L << Math.min(attempts - 1, 20)));
+        log.warn("[EtherpadDeletionOutbox] Fail to delete " + entry.getString("type") + " " + entry.getString("target")
+                + " (attempt " + attempts + ") : " + error);
+        final JsonObject modifier = new JsonObject().put("$set", new JsonObject()
+                .put("attempts", attempts)
+                .put("lastError", error)
+                .put("nextAttemptAt", System.currentTimeMillis() + delay));
+        final Promise<Void> promise = Promise.promise();
+        mongo.update(CollaborativeEditor.COLLABORATIVEEDITOR_OUTBOX_COLLECTION, new JsonObject().put("_id", entry.getString("_id")),
+                modifier, MongoDbResult.validActionResultHandler(event -> promise.complete()));
+        return promise.future();
+    }
+
+    /**
+     * Retry later an entry whose target is still used, most likely because the delete which queued it has not
+     * removed the documents yet: neither a failure nor an attempt, so the backoff of the real failures is kept.
+     */
+    private Future<Void> defer(final JsonObject entry) {
+        deferrals.incrementAndGet();
+        final JsonObject modifier = new JsonObject()
+                .put("$set", new JsonObject().put("nextAttemptAt", System.currentTimeMillis() + retryDelay))
+                .put("$inc", new JsonObject().put("deferrals", 1));
+        final Promise<Void> promise = Promise.promise();
+        mongo.update(CollaborativeEditor.COLLABORATIVEEDITOR_OUTBOX_COLLECTION, new JsonObject().put("_id", entry.getString("_id")),
+                modifier, MongoDbResult.validActionResultHandler(event -> promise.complete()));
+        return promise.future();
+    }
+
+    private Future<Void> remove(final String id) {
+        final Promise<Void> promise = Promise.promise();
+        mongo.delete(CollaborativeEditor.COLLABORATIVEEDITOR_OUTBOX_COLLECTION, new JsonObject().put("_id", id),
+                MongoDbResult.validActionResultHandler(event -> {
+            if (event.isLeft()) {
+                // Leased again once the lease is over, deleting twice is harmless
+                log.error("[EtherpadDeletionOutbox] Could not remove processed entry " + id + " : " + event.left().getValue());
+            }
+            promise.complete();
+        }));
+        return promise.future();
+    }
+
+    private Future<Long> count(final JsonObject query) {
+        return count(CollaborativeEditor.COLLABORATIVEEDITOR_OUTBOX_COLLECTION, query);
+    }
+
+    private Future<Long> count(final String collection, final JsonObject query) {
+        final Promise<Long> promise = Promise.promise();
+        mongo.count(collection, query, event -> {
+            if ("ok".equals(event.body().getString("status"))) {
+                promise.complete(event.body().getLong("count", 0L));
+            } else {
+                promise.fail(event.body().getString("message"));
+            }
+        });
+        return promise.future();
+    }
+
+    private static JsonObject entry(final String type, final String target, final String domain, final long now) {
+        return new JsonObject()
+                .put("_id", UUID.randomUUID().toString())
+                .put("type", type)
+                .put("target", target)
+                .put("domain", domain)
+                .put("attempts", 0)
+                .put("created", now)
+                .put("nextAttemptAt", now);
+    }
+}
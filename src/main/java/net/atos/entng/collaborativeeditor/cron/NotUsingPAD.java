@@ -21,121 +21,378 @@ package net.atos.entng.collaborativeeditor.cron;
 
 import fr.wseduc.mongodb.MongoDb;
 import fr.wseduc.mongodb.MongoUpdateBuilder;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
 import net.atos.entng.collaborativeeditor.CollaborativeEditor;
+import net.atos.entng.collaborativeeditor.helpers.BoundedWorkQueue;
+import net.atos.entng.collaborativeeditor.helpers.EtherpadActivity;
+import net.atos.entng.collaborativeeditor.helpers.PadArchive;
 import org.entcore.common.http.request.JsonHttpServerRequest;
 import org.entcore.common.notification.TimelineHelper;
 import org.etherpad_lite_client.EPLiteClient;
 import io.vertx.core.Handler;
 import io.vertx.core.eventbus.Message;
-import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.mongo.FindOptions;
+import io.vertx.ext.mongo.MongoClient;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by dbreyton on 03/05/2016.
+ * Scans the pads by ascending _id batches. A run record is checkpointed after each batch, so that a
+ * restarted or re-triggered run resumes where the previous one stopped.
+ * Each pad is checked against the Etherpad backend of its domain ("epDomain"), with one bounded worker
+ * per backend. Pads created before the domain was stored are probed on every backend and then tagged.
+ * Pads without activity for "archiveAfterDays" days (disabled with 0) are moved to the archive tier.
+ * When the Etherpad hooks report the activity, the stored "epLastEdited" is used instead of getLastEdited.
  */
 public class NotUsingPAD implements Handler<Long> {
 
+    public static final String TASK_NAME = "notUsingPAD";
+
     private final MongoDb mongo = MongoDb.getInstance();
-    private final EPLiteClient client;
+    private final Map<String, EPLiteClient> clientByDomain;
+    private final MongoClient mongoClient;
+    private final PadArchive padArchive;
     private final TimelineHelper timelineHelper;
     private final Integer numberDaysWithoutActivity;
     private final Integer recurringNotificationDays;
+    private final Integer archiveAfterDays;
     private final String host;
+    private final int batchSize;
+    private final int parallelism;
+    private final boolean storedActivity;
+    private final long staleAfter;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final TaskCheckpoint checkpoint = new TaskCheckpoint(TASK_NAME);
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicBoolean cancelRequested = new AtomicBoolean(false);
     private static final Logger log = LoggerFactory.getLogger(NotUsingPAD.class);
 
-    public NotUsingPAD(final TimelineHelper timelineHelper,  final EPLiteClient client, final JsonObject config) {
+    public NotUsingPAD(final TimelineHelper timelineHelper,  final Map<String, EPLiteClient> clientByDomain,
+                       final MongoClient mongoClient, final PadArchive padArchive, final JsonObject config) {
         this.timelineHelper = timelineHelper;
-        this.client = client;
+        this.clientByDomain = clientByDomain;
+        this.mongoClient = mongoClient;
+        this.padArchive = padArchive;
         this.numberDaysWithoutActivity =  config.getInteger("numberDaysWithoutActivity", 90);
         this.recurringNotificationDays = config.getInteger("recurringNotificationDays", 15);
+        this.archiveAfterDays = config.getInteger("archiveAfterDays", 0);
         this.host = config.getString("host", "http://localhost:8090");
+        this.batchSize = config.getInteger("unusedPadBatchSize", 200);
+        this.parallelism = config.getInteger("unusedPadParallelism", 8);
+        this.storedActivity = EtherpadActivity.isEnabled(config);
+        this.staleAfter = config.getLong("unusedPadStaleAfterMinutes", 30L) * 60L * 1000L;
     }
 
     @Override
     public void handle(Long event) {
-        // Check the last edit file date on all entries
-        final JsonObject query = new JsonObject();
-        final JsonObject projection = new JsonObject().put("name", 1).put("epName", 1)
-                .put("owner", 1).put("locale", 1).put("daysBeforeNotification", 1);
-        mongo.find(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, query, null, projection, new Handler<Message<JsonObject>>() {
+        start();
+    }
+
+    /**
+     * Start a run, or resume the last one if it did not complete. The run is taken in the task record first,
+     * so that the cron firing on every node starts a single run across the cluster.
+     * @return the run record as it was when the run started
+     */
+    public Future<JsonObject> start() {
+        if (!running.compareAndSet(false, true)) {
+            log.info("[NotUsingPAD] A run is already in progress");
+            return checkpoint.load();
+        }
+        cancelRequested.set(false);
+        return checkpoint.load().compose(previous -> checkpoint.acquire(nodeId, staleAfter).compose(acquired -> {
+            if (!acquired) {
+                log.info("[NotUsingPAD] A run is already in progress on another node");
+                return Future.<RunState>succeededFuture();
+            }
+            final RunState state = RunState.resumeOrCreate(previous);
+            if (state.lastId != null) {
+                log.info("[NotUsingPAD] Resuming run " + state.runId + " after _id " + state.lastId);
+            }
+            return checkpoint.save(state.toJson(TaskCheckpoint.STATUS_RUNNING).put("cancelRequested", false).putNull("finishedAt"))
+                    .map(v -> state);
+        })).compose(state -> {
+            if (state == null) {
+                running.set(false);
+                return checkpoint.load();
+            }
+            scanNextBatch(state);
+            return Future.succeededFuture(state.toJson(TaskCheckpoint.STATUS_RUNNING));
+        }).onFailure(th -> {
+            running.set(false);
+            log.error("[NotUsingPAD] Could not start the run", th);
+        });
+    }
+
+    /**
+     * @return the persisted run record
+     */
+    public Future<JsonObject> status() {
+        return checkpoint.load().map(record -> record.put("active", running.get()));
+    }
+
+    /**
+     * Ask the current run to stop at its next checkpoint. The checkpoint is kept, so the next run resumes.
+     */
+    public Future<Void> cancel() {
+        cancelRequested.set(true);
+        return checkpoint.requestCancel();
+    }
+
+    private void scanNextBatch(final RunState state) {
+        checkpoint.load().onComplete(current -> {
+            if (cancelRequested.get() || (current.succeeded() && current.result().getBoolean("cancelRequested", false))) {
+                finish(state, TaskCheckpoint.STATUS_CANCELLED);
+                return;
+            }
+            final JsonObject query = new JsonObject();
+            if (state.lastId != null) {
+                query.put("_id", new JsonObject().put("$gt", state.lastId));
+            }
+            final JsonObject sort = new JsonObject().put("_id", 1);
+            final JsonObject projection = new JsonObject().put("name", 1).put("epName", 1)
+                    .put("owner", 1).put("locale", 1).put("daysBeforeNotification", 1).put("epDomain", 1)
+                    .put("epGroupID", 1).put(PadArchive.FIELD, 1).put(EtherpadActivity.LAST_EDITED, 1);
+            final FindOptions options = new FindOptions().setSort(sort).setFields(projection).setLimit(batchSize).setBatchSize(batchSize);
+            // Read from the primary: the pads are archived or deleted on what is read here
+            mongoClient.findWithOptions(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, query, options, event -> {
+                if (event.failed()) {
+                    log.error("[NotUsingPAD] " + event.cause().getMessage());
+                    finish(state, TaskCheckpoint.STATUS_FAILED);
+                    return;
+                }
+                final List<JsonObject> pads = new ArrayList<>(event.result());
+                if (pads.isEmpty()) {
+                    finish(state, TaskCheckpoint.STATUS_COMPLETED);
+                    return;
+                }
+                checkPads(pads, state).onComplete(done -> {
+                    state.lastId = pads.get(pads.size() - 1).getString("_id");
+                    checkpoint.save(state.toJson(TaskCheckpoint.STATUS_RUNNING)).onComplete(saved -> {
+                        if (saved.failed()) {
+                            log.error("[NotUsingPAD] Could not save checkpoint", saved.cause());
+                        }
+                        if (pads.size() < batchSize) {
+                            finish(state, TaskCheckpoint.STATUS_COMPLETED);
+                        } else {
+                            scanNextBatch(state);
+                        }
+                    });
+                });
+            });
+        });
+    }
+
+    private void finish(final RunState state, final String status) {
+        final JsonObject record = state.toJson(status).put("finishedAt", System.currentTimeMillis());
+        checkpoint.save(record).onComplete(saved -> {
+            running.set(false);
+            log.info("[NotUsingPAD] Run " + state.runId + " " + status + " : " + record.encode());
+        });
+    }
+
+    /**
+     * Dispatch the batch to one bounded worker per backend, all backends being checked in parallel.
+     * Pads without a known domain go to an extra worker which probes the backends one after the other.
+     */
+    private Future<Void> checkPads(final List<JsonObject> pads, final RunState state) {
+        final Map<String, List<JsonObject>> padsByDomain = new LinkedHashMap<>();
+        for (final JsonObject pad : pads) {
+            final String domain = pad.getString("epDomain");
+            final String lane = (domain != null && clientByDomain.containsKey(domain)) ? domain : "";
+            padsByDomain.computeIfAbsent(lane, k -> new ArrayList<>()).add(pad);
+        }
+        final List<Future> workers = new ArrayList<>();
+        for (final Map.Entry<String, List<JsonObject>> lane : padsByDomain.entrySet()) {
+            final List<String> candidates = lane.getKey().isEmpty()
+                    ? new ArrayList<>(clientByDomain.keySet())
+                    : Collections.singletonList(lane.getKey());
+            workers.add(BoundedWorkQueue.forEach(lane.getValue(), parallelism, elem -> checkPad(elem, candidates, 0, state)));
+        }
+        return CompositeFuture.join(workers).mapEmpty();
+    }
+
+    private Future<Void> checkPad(final JsonObject elem, final List<String> domains, final int index, final RunState state) {
+        if (elem.getBoolean(PadArchive.FIELD, false)) {
+            state.processed.incrementAndGet();
+            return Future.succeededFuture();
+        }
+        final Promise<Void> promise = Promise.promise();
+        final Long storedLastEdited = elem.getLong(EtherpadActivity.LAST_EDITED);
+        if (storedActivity && storedLastEdited != null && clientByDomain.containsKey(elem.getString("epDomain"))) {
+            // Reported by the Etherpad hooks, no need to ask the backend
+            state.processed.incrementAndGet();
+            checkActivity(elem, elem.getString("epDomain"), storedLastEdited, state, promise);
+            return promise.future();
+        }
+        final String domain = domains.get(index);
+        clientByDomain.get(domain).getLastEdited(elem.getString("epName"), new Handler<JsonObject>() {
             @Override
-            public void handle(Message<JsonObject> event) {
-                final JsonArray res = event.body().getJsonArray("results");
-                if ("ok".equals(event.body().getString("status")) && res != null && res.size() > 0) {
-                    for (Object object : res) {
-                        if (!(object instanceof JsonObject)) continue;
-                        final JsonObject elem = (JsonObject) object;
-                        client.getLastEdited(elem.getString("epName"), new Handler<JsonObject>() {
-                            @Override
-                            public void handle(JsonObject event) {
-                                if ("ok".equals(event.getString("status"))) {
-                                    final Long lastEditedPad = event.getLong("lastEdited");
-                                    if (lastEditedPad != null) {
-                                        final Long todayL = new Date().getTime();
-                                        final Long numberOfDay = (Math.abs(todayL - lastEditedPad)) / (1000*60*60*24);
-
-                                        final Integer daysBeforeNotification = elem.getInteger("daysBeforeNotification", 0);
-                                        final String id = elem.getString("_id");
-                                        final JsonObject updateQuery = new JsonObject().put("_id", id);
-
-                                        if (numberOfDay > numberDaysWithoutActivity && daysBeforeNotification.intValue() == 0) {
-                                            final JsonObject params = new JsonObject()
-                                                    .put("resourceName", elem.getString("name", ""))
-                                                    .put("resourceDate",  new SimpleDateFormat("dd/MM/yyyy").format(lastEditedPad))
-                                                    .put("collaborativeeditorUri", host + "/collaborativeeditor#/view/" + id);
-
-                                            final List<String> recipients = new ArrayList<String>();
-                                            recipients.add(elem.getJsonObject("owner").getString("userId"));
-                                            final String locale = elem.getString("locale", "fr");
-
-                                            timelineHelper.notifyTimeline(new JsonHttpServerRequest(new JsonObject()
-                                                            .put("headers", new JsonObject().put("Accept-Language", locale))),
-                                                    "collaborativeeditor.unused", null, recipients, null, params);
-
-                                            final MongoUpdateBuilder modifier = new MongoUpdateBuilder();
-                                            //Adding notification flag (don't SPAM)
-                                            modifier.set("daysBeforeNotification", recurringNotificationDays);
-
-                                            mongo.update(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, updateQuery, modifier.build(), new Handler<Message<JsonObject>>() {
-                                                @Override
-                                                public void handle(Message<JsonObject> event) {
-                                                    if (!"ok".equals(event.body().getString("status"))) {
-                                                        log.error(event.body().getString("message"));
-                                                    }
-                                                }
-                                            });
-                                        } else if (numberOfDay > numberDaysWithoutActivity && daysBeforeNotification.intValue() > 0) {
-                                            final MongoUpdateBuilder modifier = new MongoUpdateBuilder();
-                                            //Decrementing notification flag (Allow to send a new notif for next cron)
-                                            modifier.set("daysBeforeNotification", daysBeforeNotification.intValue()-1);
-
-                                            mongo.update(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, updateQuery, modifier.build(), new Handler<Message<JsonObject>>() {
-                                                @Override
-                                                public void handle(Message<JsonObject> event) {
-                                                    if (!"ok".equals(event.body().getString("status"))) {
-                                                        log.error(event.body().getString("message"));
-                                                    }
-                                                }
-                                            });
-                                        }
-                                    }
-                                } else {
-                                    log.error("Can't get last edited PAD date : " + event.getString("message", ""));
-                                }
-                            }
-                        });
+            public void handle(JsonObject event) {
+                if (!"ok".equals(event.getString("status")) && index + 1 < domains.size()) {
+                    // Unknown domain: try the next backend
+                    checkPad(elem, domains, index + 1, state).onComplete(promise);
+                    return;
+                }
+                state.processed.incrementAndGet();
+                if ("ok".equals(event.getString("status")) && !domain.equals(elem.getString("epDomain"))) {
+                    tagDomain(elem.getString("_id"), domain);
+                }
+                if ("ok".equals(event.getString("status"))) {
+                    final Long lastEditedPad = event.getLong("lastEdited");
+                    if (lastEditedPad != null) {
+                        checkActivity(elem, domain, lastEditedPad, state, promise);
+                    } else {
+                        promise.complete();
                     }
                 } else {
+                    state.errors.incrementAndGet();
+                    log.error("Can't get last edited PAD date : " + event.getString("message", ""));
+                    promise.complete();
+                }
+            }
+        });
+        return promise.future();
+    }
+
+    /**
+     * Notify the owner or archive the pad according to its last edition.
+     */
+    private void checkActivity(final JsonObject elem, final String domain, final Long lastEditedPad, final RunState state,
+                               final Promise<Void> promise) {
+        final Long todayL = new Date().getTime();
+        final Long numberOfDay = (Math.abs(todayL - lastEditedPad)) / (1000*60*60*24);
+
+        final Integer daysBeforeNotification = elem.getInteger("daysBeforeNotification", 0);
+        final String id = elem.getString("_id");
+        final JsonObject updateQuery = new JsonObject().put("_id", id);
+
+        if (archiveAfterDays > 0 && numberOfDay > archiveAfterDays) {
+            padArchive.archive(elem, domain, lastEditedPad).onComplete(archived -> {
+                if (archived.failed()) {
+                    state.errors.incrementAndGet();
+                } else if (archived.result()) {
+                    state.archived.incrementAndGet();
+                }
+                promise.complete();
+            });
+        } else if (numberOfDay > numberDaysWithoutActivity && daysBeforeNotification.intValue() == 0) {
+            final JsonObject params = new JsonObject()
+                    .put("resourceName", elem.getString("name", ""))
+                    .put("resourceDate",  new SimpleDateFormat("dd/MM/yyyy").format(lastEditedPad))
+                    .put("collaborativeeditorUri", host + "/collaborativeeditor#/view/" + id);
+
+            final List<String> recipients = new ArrayList<String>();
+            recipients.add(elem.getJsonObject("owner").getString("userId"));
+            final String locale = elem.getString("locale", "fr");
+
+            timelineHelper.notifyTimeline(new JsonHttpServerRequest(new JsonObject()
+                            .put("headers", new JsonObject().put("Accept-Language", locale))),
+                    "collaborativeeditor.unused", null, recipients, null, params);
+            state.notified.incrementAndGet();
+
+            final MongoUpdateBuilder modifier = new MongoUpdateBuilder();
+            //Adding notification flag (don't SPAM)
+            modifier.set("daysBeforeNotification", recurringNotificationDays);
+            updatePad(updateQuery, modifier, state, promise);
+        } else if (numberOfDay > numberDaysWithoutActivity && daysBeforeNotification.intValue() > 0) {
+            final MongoUpdateBuilder modifier = new MongoUpdateBuilder();
+            //Decrementing notification flag (Allow to send a new notif for next cron)
+            modifier.set("daysBeforeNotification", daysBeforeNotification.intValue()-1);
+            updatePad(updateQuery, modifier, state, promise);
+        } else {
+            promise.complete();
+        }
+    }
+
+    private void tagDomain(final String id, final String domain) {
+        final MongoUpdateBuilder modifier = new MongoUpdateBuilder().set("epDomain", domain);
+        mongo.update(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, new JsonObject().put("_id", id), modifier.build(), event -> {
+            if (!"ok".equals(event.body().getString("status"))) {
+                log.error("[NotUsingPAD] Could not store the domain of pad " + id + " : " + event.body().getString("message"));
+            }
+        });
+    }
+
+    private void updatePad(final JsonObject updateQuery, final MongoUpdateBuilder modifier, final RunState state,
+                           final Promise<Void> promise) {
+        mongo.update(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, updateQuery, modifier.build(), new Handler<Message<JsonObject>>() {
+            @Override
+            public void handle(Message<JsonObject> event) {
+                if (!"ok".equals(event.body().getString("status"))) {
+                    state.errors.incrementAndGet();
                     log.error(event.body().getString("message"));
                 }
+                promise.complete();
             }
         });
     }
-}
\ No newline at end of file
+
+    /**
+     * Counters of a run. Counters are cumulative across resumes, the throughput only covers the current segment.
+     */
+    private static class RunState {
+        private String runId;
+        private String lastId;
+        private long startedAt;
+        private long resumes;
+        private final long segmentStartedAt = System.currentTimeMillis();
+        private long segmentProcessedBase;
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong notified = new AtomicLong();
+        private final AtomicLong archived = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+
+        private static RunState resumeOrCreate(final JsonObject previous) {
+            final RunState state = new RunState();
+            final String previousStatus = previous.getString("status");
+            if (previous.getString("lastId") != null && previousStatus != null
+                    && !TaskCheckpoint.STATUS_COMPLETED.equals(previousStatus)) {
+                state.runId = previous.getString("runId");
+                state.lastId = previous.getString("lastId");
+                state.startedAt = previous.getLong("startedAt", state.segmentStartedAt);
+                state.resumes = previous.getLong("resumes", 0L) + 1;
+                state.processed.set(previous.getLong("processed", 0L));
+                state.notified.set(previous.getLong("notified", 0L));
+                state.archived.set(previous.getLong("archived", 0L));
+                state.errors.set(previous.getLong("errors", 0L));
+                state.segmentProcessedBase = state.processed.get();
+            } else {
+                state.runId = UUID.randomUUID().toString();
+                state.startedAt = state.segmentStartedAt;
+            }
+            return state;
+        }
+
+        private JsonObject toJson(final String status) {
+            final long elapsed = Math.max(1L, System.currentTimeMillis() - segmentStartedAt);
+            final double throughput = (processed.get() - segmentProcessedBase) * 1000d / elapsed;
+            final JsonObject json = new JsonObject()
+                    .put("runId", runId)
+                    .put("status", status)
+                    .put("startedAt", startedAt)
+                    .put("resumes", resumes)
+                    .put("processed", processed.get())
+                    .put("notified", notified.get())
+                    .put("archived", archived.get())
+                    .put("errors", errors.get())
+                    .put("throughput", Math.round(throughput * 100d) / 100d);
+            json.put("lastId", lastId);
+            return json;
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package net.atos.entng.collaborativeeditor.cron;
+
+import fr.wseduc.mongodb.MongoDb;
+import fr.wseduc.mongodb.MongoUpdateBuilder;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.ext.mongo.FindOptions;
+import io.vertx.ext.mongo.MongoClient;
+import io.vertx.ext.mongo.UpdateOptions;
+import net.atos.entng.collaborativeeditor.CollaborativeEditor;
+import net.atos.entng.collaborativeeditor.helpers.PadArchive;
+import org.etherpad_lite_client.EPLiteClient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Finds the differences between the pads known by Mongo and the groups living on the Etherpad backends:
+ * groups without any document (orphan groups), and documents whose group no longer exists (missing pads).
+ * The group ids of every backend are sorted and merged with the documents streamed from Mongo sorted by
+ * epGroupID, so the Mongo side is never loaded at once. When garbage collection is enabled, orphan groups
+ * are queued in the deletion outbox and missing pads are flagged "epMissing", at a bounded rate.
+ * The documents are read from the primary, and every difference is checked again right before acting on it,
+ * as a pad may have been created, taken from the pool or deleted since the groups were listed. Etherpad does
+ * not date its groups: a group is only collected when it was already an orphan "reconcilerGraceMinutes"
+ * before the run, and documents created within that delay are never flagged. A run is leased in its checkpoint
+ * so a single node reconciles at a time; a lease not refreshed for "reconcilerStaleAfterMinutes" is taken over.
+ */
+public class OrphanReconciler implements Handler<Long> {
+
+    public static final String TASK_NAME = "orphanReconciler";
+    private static final int SAMPLE_SIZE = 100;
+
+    private static final Logger log = LoggerFactory.getLogger(OrphanReconciler.class);
+    private final MongoDb mongo = MongoDb.getInstance();
+    private final Vertx vertx;
+    private final MongoClient mongoClient;
+    private final Map<String, EPLiteClient> clientByDomain;
+    private final EtherpadDeletionOutbox deletionOutbox;
+    private final PadPool padPool;
+    private final TaskCheckpoint checkpoint = new TaskCheckpoint(TASK_NAME);
+    private final int batchSize;
+    private final int rate;
+    private final boolean garbageCollect;
+    private final long grace;
+    private final long staleAfter;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    public OrphanReconciler(final Vertx vertx, final MongoClient mongoClient, final Map<String, EPLiteClient> clientByDomain,
+                            final EtherpadDeletionOutbox deletionOutbox, final PadPool padPool, final JsonObject config) {
+        this.vertx = vertx;
+        this.mongoClient = mongoClient;
+        this.clientByDomain = clientByDomain;
+        this.deletionOutbox = deletionOutbox;
+        this.padPool = padPool;
+        this.batchSize = config.getInteger("reconcilerBatchSize", 100);
+        this.rate = Math.max(1, config.getInteger("reconcilerRate", 10));
+        this.garbageCollect = config.getBoolean("reconcilerGarbageCollect", false);
+        this.grace = config.getLong("reconcilerGraceMinutes", 60L) * 60L * 1000L;
+        this.staleAfter = config.getLong("reconcilerStaleAfterMinutes", 30L) * 60L * 1000L;
+    }
+
+    @Override
+    public void handle(Long event) {
+        start(garbageCollect);
+    }
+
+    /**
+     * Start a reconciliation.
+     * @param collect true to fix the differences, false to only report them
+     * @return the run record as it was when the run started
+     */
+    public Future<JsonObject> start(final boolean collect) {
+        if (!running.compareAndSet(false, true)) {
+            return checkpoint.load();
+        }
+        final Report report = new Report(collect, grace);
+        return checkpoint.acquire(nodeId, staleAfter).compose(acquired -> {
+            if (!acquired) {
+                log.info("[OrphanReconciler] A run is already in progress on another node");
+                running.set(false);
+                return checkpoint.load();
+            }
+            return checkpoint.save(report.toJson(TaskCheckpoint.STATUS_RUNNING).putNull("finishedAt").putNull("error")).compose(v -> listGroups()).map(groups -> {
+                log.info("[OrphanReconciler] " + groups.size() + " groups found on the backends");
+                run(groups, report);
+                return report.toJson(TaskCheckpoint.STATUS_RUNNING);
+            }).onFailure(th -> {
+                log.error("[OrphanReconciler] Could not start", th);
+                checkpoint.save(report.toJson(TaskCheckpoint.STATUS_FAILED).put("error", th.getMessage()))
+                        .onComplete(saved -> running.set(false));
+            });
+        }, th -> {
+            running.set(false);
+            log.error("[OrphanReconciler] Could not acquire the run", th);
+            return Future.failedFuture(th);
+        });
+    }
+
+    /**
+     * @return the persisted report of the last run
+     */
+    public Future<JsonObject> status() {
+        return checkpoint.load().map(record -> record.put("active", running.get()));
+    }
+
+    private Future<List<Group>> listGroups() {
+        final List<Future> futures = new ArrayList<>();
+        final List<Group> groups = new ArrayList<>();
+        for (final Map.Entry<String, EPLiteClient> backend : clientByDomain.entrySet()) {
+            final Promise<Void> promise = Promise.promise();
+            futures.add(promise.future());
+            backend.getValue().listAllGroups(res -> {
+                if (!"ok".equals(res.getString("status"))) {
+                    promise.fail("listAllGroups failed on " + backend.getKey() + " : " + res.getString("message"));
+                    return;
+                }
+                final JsonArray ids = res.getJsonArray("groupIDs", new JsonArray());
+                synchronized (groups) {
+                    for (final Object id : ids) {
+                        if (id instanceof String) groups.add(new Group((String) id, backend.getKey()));
+                    }
+                }
+                promise.complete();
+            });
+        }
+        // Pooled pads have a group and no document yet, they are not orphans
+        return CompositeFuture.all(futures).compose(v -> padPool.groupIds()).map(pooled -> {
+            groups.removeIf(group -> pooled.contains(group.id));
+            Collections.sort(groups);
+            return groups;
+        });
+    }
+
+    private void run(final List<Group> groups, final Report report) {
+        // Archived pads have no group on purpose
+        final JsonObject query = new JsonObject().put("epGroupID", new JsonObject().put("$exists", true))
+                .put(PadArchive.FIELD, new JsonObject().put("$ne", true));
+        final FindOptions options = new FindOptions()
+                .setFields(new JsonObject().put("_id", 1).put("epGroupID", 1).put("epName", 1).put("epDomain", 1)
+                        .put("epMissing", 1).put("created", 1))
+                .setSort(new JsonObject().put("epGroupID", 1))
+                .setBatchSize(batchSize);
+        // A lagging secondary would show recent pads as missing and recent groups as orphans
+        final ReadStream<JsonObject> pads = mongoClient.findBatchWithOptions(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, query, options);
+        final Merge merge = new Merge(groups);
+        final List<Supplier<Future<Void>>> actions = new ArrayList<>();
+
+        pads.exceptionHandler(th -> {
+            log.error("[OrphanReconciler] Mongo stream failed", th);
+            finish(report, TaskCheckpoint.STATUS_FAILED);
+        });
+        pads.handler(pad -> {
+            merge.onPad(pad, report, actions);
+            if (actions.size() >= batchSize) {
+                pads.pause();
+                flush(actions, report).onComplete(ar -> pads.resume());
+            }
+        });
+        pads.endHandler(v -> {
+            merge.onEnd(report, actions);
+            flush(actions, report)
+                    .compose(done -> report.collect ? forgetResolvedOrphans(report) : Future.<Void>succeededFuture())
+                    .onComplete(ar -> finish(report, TaskCheckpoint.STATUS_COMPLETED));
+        });
+    }
+
+    /**
+     * Run the pending actions, then wait long enough to stay under the configured rate, and save the report.
+     */
+    private Future<Void> flush(final List<Supplier<Future<Void>>> actions, final Report report) {
+        final List<Supplier<Future<Void>>> batch = new ArrayList<>(actions);
+        actions.clear();
+        final long begin = System.currentTimeMillis();
+        final List<Future> futures = new ArrayList<>();
+        for (final Supplier<Future<Void>> action : batch) {
+            futures.add(action.get().onFailure(th -> {
+                report.errors.incrementAndGet();
+                log.error("[OrphanReconciler] Could not fix a difference : " + th.getMessage());
+            }));
+        }
+        final Promise<Void> promise = Promise.promise();
+        CompositeFuture.join(futures).onComplete(done -> {
+            final long elapsed = System.currentTimeMillis() - begin;
+            final long delay = Math.max(1L, batch.size() * 1000L / rate - elapsed);
+            vertx.setTimer(delay, t -> checkpoint.save(report.toJson(TaskCheckpoint.STATUS_RUNNING)).onComplete(saved -> promise.complete()));
+        });
+        return promise.future();
+    }
+
+    private void finish(final Report report, final String status) {
+        final JsonObject record = report.toJson(status).put("finishedAt", System.currentTimeMillis());
+        checkpoint.save(record).onComplete(saved -> {
+            running.set(false);
+            log.info("[OrphanReconciler] " + status + " : " + record.encode());
+        });
+    }
+
+    /**
+     * Flag the pad if it still exists with the same group and the group is still missing on the backends.
+     */
+    private Future<Void> flagIfStillMissing(final JsonObject pad, final Report report) {
+        final String id = pad.getString("_id");
+        final String groupId = pad.getString("epGroupID");
+        final JsonObject query = new JsonObject().put("_id", id).put("epGroupID", groupId)
+                .put(PadArchive.FIELD, new JsonObject().put("$ne", true));
+        return mongoClient.findOne(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, query, new JsonObject().put("_id", 1))
+                .compose(current -> current == null ? Future.succeededFuture(true) : groupExists(groupId, pad.getString("epDomain")))
+                .compose(exists -> {
+                    if (exists) {
+                        report.kept.incrementAndGet();
+                        return Future.succeededFuture();
+                    }
+                    return flagMissing(id);
+                });
+    }
+
+    private Future<Void> flagMissing(final String id) {
+        final Promise<Void> promise = Promise.promise();
+        final MongoUpdateBuilder modifier = new MongoUpdateBuilder().set("epMissing", true);
+        mongo.update(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, new JsonObject().put("_id", id), modifier.build(), event -> {
+            if ("ok".equals(event.body().getString("status"))) {
+                promise.complete();
+            } else {
+                promise.fail("could not flag pad " + id + " : " + event.body().getString("message"));
+            }
+        });
+        return promise.future();
+    }
+
+    /**
+     * @return false only if every backend the group may live on answers that it does not exist
+     */
+    private Future<Boolean> groupExists(final String groupId, final String domain) {
+        final List<EPLiteClient> clients = clientByDomain.containsKey(domain)
+                ? Collections.singletonList(clientByDomain.get(domain))
+                : new ArrayList<>(clientByDomain.values());
+        final AtomicBoolean exists = new AtomicBoolean(false);
+        final List<Future> checks = new ArrayList<>();
+        for (final EPLiteClient client : clients) {
+            final Promise<Void> promise = Promise.promise();
+            checks.add(promise.future());
+            client.listPads(groupId, res -> {
+                // Only a clear answer counts, a backend failing to answer keeps the pad
+                if (res == null || !res.getString("message", "").contains("does not exist")) {
+                    exists.set(true);
+                }
+                promise.complete();
+            });
+        }
+        return CompositeFuture.join(checks).map(v -> exists.get());
+    }
+
+    /**
+     * Queue the group deletion if no document nor pooled pad uses it, and if it was already an orphan before
+     * the grace period.
+     */
+    private Future<Void> collectIfStillOrphan(final Group group, final Report report) {
+        final JsonObject query = new JsonObject().put("epGroupID", group.id);
+        return mongoClient.count(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, query)
+                .compose(count -> count > 0L ? Future.succeededFuture(true) : padPool.contains(group.id))
+                .compose(used -> {
+                    if (used) {
+                        report.kept.incrementAndGet();
+                        return forgetOrphan(group.id);
+                    }
+                    return firstSeenAt(group, report).compose(firstSeenAt -> {
+                        if (firstSeenAt > report.startedAt - report.grace) {
+                            report.pending.incrementAndGet();
+                            return Future.succeededFuture();
+                        }
+                        final JsonObject pad = new JsonObject().put("epGroupID", group.id).put("epDomain", group.domain);
+                        return deletionOutbox.enqueue(Collections.singletonList(pad), group.domain)
+                                .compose(v -> forgetOrphan(group.id));
+                    });
+                });
+    }
+
+    /**
+     * Record the group as an orphan seen by this run.
+     * @return the start of the first run which saw the group as an orphan
+     */
+    private Future<Long> firstSeenAt(final Group group, final Report report) {
+        final JsonObject update = new JsonObject()
+                .put("$setOnInsert", new JsonObject().put("firstSeenAt", report.startedAt).put("domain", group.domain))
+                .put("$set", new JsonObject().put("lastSeenAt", report.startedAt));
+        return mongoClient.findOneAndUpdateWithOptions(CollaborativeEditor.COLLABORATIVEEDITOR_ORPHANS_COLLECTION,
+                new JsonObject().put("_id", group.id), update, new FindOptions(),
+                new UpdateOptions().setUpsert(true).setReturningNewDocument(true))
+                .map(orphan -> orphan != null ? orphan.getLong("firstSeenAt", report.startedAt) : report.startedAt);
+    }
+
+    private Future<Void> forgetOrphan(final String groupId) {
+        return mongoClient.removeDocument(CollaborativeEditor.COLLABORATIVEEDITOR_ORPHANS_COLLECTION,
+                new JsonObject().put("_id", groupId)).mapEmpty();
+    }
+
+    /**
+     * Forget the groups which were orphans in a previous run and are no longer.
+     */
+    private Future<Void> forgetResolvedOrphans(final Report report) {
+        final JsonObject query = new JsonObject().put("lastSeenAt", new JsonObject().put("$lt", report.startedAt));
+        return mongoClient.removeDocuments(CollaborativeEditor.COLLABORATIVEEDITOR_ORPHANS_COLLECTION, query)
+                .<Void>mapEmpty()
+                .onFailure(th -> log.error("[OrphanReconciler] Could not forget resolved orphans", th));
+    }
+
+    private static long createdAt(final JsonObject pad) {
+        final Object created = pad.getValue("created");
+        if (created instanceof JsonObject) {
+            final Date date = MongoDb.parseIsoDate((JsonObject) created);
+            if (date != null) {
+                return date.getTime();
+            }
+        }
+        return 0L;
+    }
+
+    /**
+     * Merge join of the sorted backend groups with the documents sorted by group.
+     */
+    private class Merge {
+        private final List<Group> groups;
+        private int index = 0;
+        private String lastMatched;
+
+        private Merge(final List<Group> groups) {
+            this.groups = groups;
+        }
+
+        private void onPad(final JsonObject pad, final Report report, final List<Supplier<Future<Void>>> actions) {
+            final String groupId = pad.getString("epGroupID");
+            if (groupId == null) {
+                return;
+            }
+            if (groupId.equals(lastMatched)) {
+                report.matched.incrementAndGet();
+                return;
+            }
+            while (index < groups.size() && groups.get(index).id.compareTo(groupId) < 0) {
+                orphan(groups.get(index++), report, actions);
+            }
+            if (index < groups.size() && groups.get(index).id.equals(groupId)) {
+                lastMatched = groupId;
+                index++;
+                report.matched.incrementAndGet();
+            } else if (createdAt(pad) > report.startedAt - report.grace) {
+                // Its group may have been created after the listing
+                report.recent.incrementAndGet();
+            } else {
+                report.missing.incrementAndGet();
+                report.sample(report.missingSample, pad.getString("_id"));
+                if (report.collect && !pad.getBoolean("epMissing", false)) {
+                    actions.add(() -> flagIfStillMissing(pad, report));
+                }
+            }
+        }
+
+        private void onEnd(final Report report, final List<Supplier<Future<Void>>> actions) {
+            while (index < groups.size()) {
+                orphan(groups.get(index++), report, actions);
+            }
+        }
+
+        private void orphan(final Group group, final Report report, final List<Supplier<Future<Void>>> actions) {
+            report.orphans.incrementAndGet();
+            report.sample(report.orphanSample, group.id);
+            if (report.collect) {
+                actions.add(() -> collectIfStillOrphan(group, report));
+            }
+        }
+    }
+
+    private static class Group implements Comparable<Group> {
+        private final String id;
+        private final String domain;
+
+        private Group(final String id, final String domain) {
+            this.id = id;
+            this.domain = domain;
+        }
+
+        @Override
+        public int compareTo(final Group other) {
+            return id.compareTo(other.id);
+        }
+    }
+
+    private static class Report {
+        private final boolean collect;
+        private final long grace;
+        private final long startedAt = System.currentTimeMillis();
+        private final AtomicLong matched = new AtomicLong();
+        private final AtomicLong orphans = new AtomicLong();
+        private final AtomicLong missing = new AtomicLong();
+        private final AtomicLong recent = new AtomicLong();
+        private final AtomicLong kept = new AtomicLong();
+        private final AtomicLong pending = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final JsonArray orphanSample = new JsonArray();
+        private final JsonArray missingSample = new JsonArray();
+
+        private Report(final boolean collect, final long grace) {
+            this.collect = collect;
+            this.grace = grace;
+        }
+
+        private void sample(final JsonArray sample, final String id) {
+            if (sample.size() < SAMPLE_SIZE) {
+                sample.add(id);
+            }
+        }
+
+        private JsonObject toJson(final String status) {
+            return new JsonObject()
+                    .put("status", status)
+                    .put("garbageCollect", collect)
+                    .put("startedAt", startedAt)
+                    .put("matched", matched.get())
+                    .put("orphanGroups", orphans.get())
+                    .put("missingPads", missing.get())
+                    .put("recentPads", recent.get())
+                    .put("keptOnRecheck", kept.get())
+                    .put("orphansInGrace", pending.get())
+                    .put("errors", errors.get())
+                    .put("orphanGroupsSample", orphanSample.copy())
+                    .put("missingPadsSample", missingSample.copy());
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package net.atos.entng.collaborativeeditor.cron;
+
+import fr.wseduc.mongodb.MongoDb;
+import fr.wseduc.webutils.I18n;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.mongo.MongoClient;
+import net.atos.entng.collaborativeeditor.CollaborativeEditor;
+import net.atos.entng.collaborativeeditor.helpers.BoundedWorkQueue;
+import org.entcore.common.mongodb.MongoDbResult;
+import org.etherpad_lite_client.EPLiteClient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of group pads created in advance on every backend, holding the welcome text of "pad-pool-locale", so
+ * that creating a pad only costs one Mongo operation. A pad is taken atomically from the pool; when a backend
+ * falls under the low watermark the pool is refilled up to the high watermark, in the background and with a
+ * bounded number of Etherpad calls. A backend is refilled by one node at a time, under a lease of
+ * "pad-pool-lease" milliseconds in the tasks collection.
+ */
+public class PadPool implements Handler<Long> {
+
+    private static final Logger log = LoggerFactory.getLogger(PadPool.class);
+    private final MongoDb mongo = MongoDb.getInstance();
+    private final Vertx vertx;
+    private final MongoClient mongoClient;
+    private final Map<String, EPLiteClient> clientByDomain;
+    private final EtherpadDeletionOutbox deletionOutbox;
+    private final boolean enabled;
+    private final long interval;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final int parallelism;
+    private final long leaseDuration;
+    private final String host;
+    private final String locale;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final Set<String> refilling = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public PadPool(final Vertx vertx, final MongoClient mongoClient, final Map<String, EPLiteClient> clientByDomain,
+                   final EtherpadDeletionOutbox deletionOutbox, final JsonObject config) {
+        this.vertx = vertx;
+        this.mongoClient = mongoClient;
+        this.clientByDomain = clientByDomain;
+        this.deletionOutbox = deletionOutbox;
+        this.enabled = config.getBoolean("pad-pool-enabled", false);
+        this.interval = config.getLong("pad-pool-interval", 60000L);
+        this.lowWatermark = config.getInteger("pad-pool-low-watermark", 20);
+        this.highWatermark = Math.max(lowWatermark, config.getInteger("pad-pool-high-watermark", 50));
+        this.parallelism = config.getInteger("pad-pool-parallelism", 4);
+        this.leaseDuration = config.getLong("pad-pool-lease", 300000L);
+        this.host = config.getString("host", "http://localhost:8090");
+        this.locale = config.getString("pad-pool-locale", "fr");
+    }
+
+    /**
+     * Fill the pool and check it periodically.
+     */
+    public void start() {
+        if (enabled && started.compareAndSet(false, true)) {
+            vertx.setPeriodic(interval, this);
+            handle(null);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void handle(Long timerId) {
+        for (final String domain : clientByDomain.keySet()) {
+            refillIfNeeded(domain);
+        }
+    }
+
+    /**
+     * Take a pad of the backend out of the pool.
+     * @param domain backend domain
+     * @return the pad (epName, epGroupID, epDomain and the text it holds), or null when the pool of the backend is empty
+     */
+    public Future<JsonObject> take(final String domain) {
+        if (!enabled) {
+            return Future.succeededFuture(null);
+        }
+        final Promise<JsonObject> promise = Promise.promise();
+        mongoClient.findOneAndDelete(CollaborativeEditor.COLLABORATIVEEDITOR_POOL_COLLECTION, new JsonObject().put("domain", domain), ar -> {
+            if (ar.failed()) {
+                log.error("[PadPool] Could not take a pad for " + domain, ar.cause());
+                misses.incrementAndGet();
+                promise.complete(null);
+            } else if (ar.result() == null) {
+                misses.incrementAndGet();
+                promise.complete(null);
+            } else {
+                hits.incrementAndGet();
+                final JsonObject entry = ar.result();
+                promise.complete(new JsonObject()
+                        .put("epName", entry.getString("epName"))
+                        .put("epGroupID", entry.getString("epGroupID"))
+                        .put("epDomain", domain)
+                        .put("text", entry.getString("text")));
+            }
+            refillIfNeeded(domain);
+        });
+        return promise.future();
+    }
+
+    /**
+     * @return the group ids of the pooled pads, which must not be taken for orphans
+     */
+    public Future<Set<String>> groupIds() {
+        final Promise<Set<String>> promise = Promise.promise();
+        mongo.find(CollaborativeEditor.COLLABORATIVEEDITOR_POOL_COLLECTION, new JsonObject(), null,
+                new JsonObject().put("epGroupID", 1), MongoDbResult.validResultsHandler(event -> {
+            if (event.isLeft()) {
+                promise.fail(event.left().getValue());
+                return;
+            }
+            final Set<String> ids = new HashSet<>();
+            for (final Object o : event.right().getValue()) {
+                if (o instanceof JsonObject && ((JsonObject) o).getString("epGroupID") != null) {
+                    ids.add(((JsonObject) o).getString("epGroupID"));
+                }
+            }
+            promise.complete(ids);
+        }));
+        return promise.future();
+    }
+
+    /**
+     * @param groupId Etherpad group id
+     * @return true if the group belongs to a pooled pad
+     */
+    public Future<Boolean> contains(final String groupId) {
+        return mongoClient.count(CollaborativeEditor.COLLABORATIVEEDITOR_POOL_COLLECTION, new JsonObject().put("epGroupID", groupId))
+                .map(count -> count > 0L);
+    }
+
+    /**
+     * @return pool sizes per backend and counters of this node
+     */
+    public Future<JsonObject> status() {
+        final List<Future> sizes = new ArrayList<>();
+        final JsonObject sizeByDomain = new JsonObject();
+        for (final String domain : clientByDomain.keySet()) {
+            sizes.add(size(domain).onSuccess(size -> sizeByDomain.put(domain, size)));
+        }
+        return CompositeFuture.join(sizes).otherwiseEmpty().map(v -> new JsonObject()
+                .put("enabled", enabled)
+                .put("lowWatermark", lowWatermark)
+                .put("highWatermark", highWatermark)
+                .put("size", sizeByDomain)
+                .put("hits", hits.get())
+                .put("misses", misses.get())
+                .put("created", created.get())
+                .put("failures", failures.get()));
+    }
+
+    /**
+     * @return the welcome text of the pooled pads
+     */
+    public String welcomeText() {
+        return I18n.getInstance().translate("collaborativeeditor.welcome", host, locale);
+    }
+
+    private void refillIfNeeded(final String domain) {
+        if (!enabled || !refilling.add(domain)) {
+            return;
+        }
+        final TaskCheckpoint lease = new TaskCheckpoint("padPool:" + domain);
+        size(domain).compose(size -> {
+            if (size >= lowWatermark) {
+                return Future.succeededFuture();
+            }
+            // One node refills the backend, the others would each add the missing pads
+            return lease.acquire(nodeId, leaseDuration).compose(acquired -> {
+                if (!acquired) {
+                    return Future.<Void>succeededFuture();
+                }
+                return size(domain).compose(current -> {
+                    final int missing = highWatermark - current.intValue();
+                    if (current >= lowWatermark || missing <= 0) {
+                        return Future.<Void>succeededFuture();
+                    }
+                    log.info("[PadPool] Refilling " + domain + " with " + missing + " pads");
+                    final String text = welcomeText();
+                    return BoundedWorkQueue.forEach(Collections.nCopies(missing, domain), parallelism, d -> createPad(d, text));
+                }).eventually(v -> lease.save(new JsonObject().put("status", TaskCheckpoint.STATUS_COMPLETED).put("owner", nodeId)));
+            });
+        }).onComplete(ar -> {
+            refilling.remove(domain);
+            if (ar.failed()) {
+                log.error("[PadPool] Could not refill " + domain, ar.cause());
+            }
+        });
+    }
+
+    private Future<Void> createPad(final String domain, final String text) {
+        final EPLiteClient client = clientByDomain.get(domain);
+        final Promise<Void> promise = Promise.promise();
+        client.createGroup(groupEvent -> {
+            if (!"ok".equals(groupEvent.getString("status"))) {
+                failures.incrementAndGet();
+                promise.complete();
+                return;
+            }
+            final String groupID = groupEvent.getString("groupID");
+            // The text is set before the pad is pooled, a taken pad is never written behind its user
+            client.createGroupPad(groupID, UUID.randomUUID().toString(), text, padEvent -> {
+                if (!"ok".equals(padEvent.getString("status"))) {
+                    failures.incrementAndGet();
+                    // Do not leak the empty group
+                    drop(new JsonObject().put("epGroupID", groupID), domain).onComplete(promise);
+                    return;
+                }
+                final JsonObject entry = new JsonObject()
+                        .put("_id", UUID.randomUUID().toString())
+                        .put("domain", domain)
+                        .put("epName", padEvent.getString("padID"))
+                        .put("epGroupID", groupID)
+                        .put("text", text)
+                        .put("created", System.currentTimeMillis());
+                mongo.insert(CollaborativeEditor.COLLABORATIVEEDITOR_POOL_COLLECTION, new JsonArray().add(entry),
+                        MongoDbResult.validActionResultHandler(inserted -> {
+                    if (inserted.isRight()) {
+                        created.incrementAndGet();
+                        promise.complete();
+                        return;
+                    }
+                    failures.incrementAndGet();
+                    log.error("[PadPool] Could not store pooled pad " + entry.getString("epName") + " : " + inserted.left().getValue());
+                    // Nothing references the pad, have it deleted rather than leaked on the backend
+                    drop(entry, domain).onComplete(promise);
+                }));
+            });
+        });
+        return promise.future();
+    }
+
+    /**
+     * Queue the deletion of a pad or group that could not be pooled. A failure to queue is logged, the orphan
+     * reconciler collects the group later.
+     */
+    private Future<Void> drop(final JsonObject pad, final String domain) {
+        return deletionOutbox.enqueue(Collections.singletonList(pad), domain)
+                .onFailure(th -> log.error("[PadPool] Could not queue the deletion of group " + pad.getString("epGroupID"), th))
+                .otherwiseEmpty();
+    }
+
+    private Future<Long> size(final String domain) {
+        final Promise<Long> promise = Promise.promise();
+        mongo.count(CollaborativeEditor.COLLABORATIVEEDITOR_POOL_COLLECTION, new JsonObject().put("domain", domain), event -> {
+            if ("ok".equals(event.body().getString("status"))) {
+                promise.complete(event.body().getLong("count", 0L));
+            } else {
+                promise.fail(event.body().getString("message"));
+            }
+        });
+        return promise.future();
+    }
+}
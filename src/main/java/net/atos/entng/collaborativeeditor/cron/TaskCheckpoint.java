@@ -0,0 +1,116 @@
+package net.atos.entng.collaborativeeditor.cron;
+
+import fr.wseduc.mongodb.MongoDb;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import net.atos.entng.collaborativeeditor.CollaborativeEditor;
+import org.entcore.common.mongodb.MongoDbResult;
+
+/**
+ * Persists the run record of a long-running maintenance task so that its progress can be followed
+ * and an interrupted run can resume from its last checkpoint.
+ */
+public class TaskCheckpoint {
+
+    public static final String STATUS_RUNNING = "running";
+    public static final String STATUS_COMPLETED = "completed";
+    public static final String STATUS_CANCELLED = "cancelled";
+    public static final String STATUS_FAILED = "failed";
+
+    private final MongoDb mongo = MongoDb.getInstance();
+    private final String taskName;
+
+    public TaskCheckpoint(final String taskName) {
+        this.taskName = taskName;
+    }
+
+    public String getTaskName() {
+        return taskName;
+    }
+
+    /**
+     * @return the persisted run record, or an empty object if the task never ran
+     */
+    public Future<JsonObject> load() {
+        final Promise<JsonObject> promise = Promise.promise();
+        mongo.findOne(CollaborativeEditor.COLLABORATIVEEDITOR_TASKS_COLLECTION, byId(), MongoDbResult.validResultHandler(event -> {
+            if (event.isRight()) {
+                final JsonObject record = event.right().getValue();
+                promise.complete(record != null ? record : new JsonObject());
+            } else {
+                promise.fail(event.left().getValue());
+            }
+        }));
+        return promise.future();
+    }
+
+    /**
+     * Upsert the run record.
+     * @param record fields of the run record, "_id" is ignored
+     */
+    public Future<Void> save(final JsonObject record) {
+        final JsonObject fields = record.copy();
+        fields.remove("_id");
+        fields.put("updatedAt", System.currentTimeMillis());
+        return update(new JsonObject().put("$set", fields));
+    }
+
+    /**
+     * Take the run for a node with a conditional upsert: the record is only switched to running if no run is
+     * in progress, or if the running one stopped saving checkpoints for "staleAfter" milliseconds (dead node).
+     * When another node holds the run the upsert collides on the _id and the run is not taken.
+     * @param owner id of the node taking the run
+     * @param staleAfter delay without checkpoint after which a running record is considered abandoned
+     * @return true if the run was taken
+     */
+    public Future<Boolean> acquire(final String owner, final long staleAfter) {
+        final Promise<Boolean> promise = Promise.promise();
+        final long now = System.currentTimeMillis();
+        final JsonObject query = byId().put("$or", new JsonArray()
+                .add(new JsonObject().put("status", new JsonObject().put("$ne", STATUS_RUNNING)))
+                .add(new JsonObject().put("updatedAt", new JsonObject().put("$lt", now - staleAfter))));
+        final JsonObject modifier = new JsonObject().put("$set", new JsonObject()
+                .put("status", STATUS_RUNNING)
+                .put("owner", owner)
+                .put("updatedAt", now));
+        mongo.update(CollaborativeEditor.COLLABORATIVEEDITOR_TASKS_COLLECTION, query, modifier, true, false, event -> {
+            final JsonObject body = event.body();
+            if ("ok".equals(body.getString("status"))) {
+                promise.complete(true);
+            } else if (body.getString("message", "").contains("E11000")) {
+                promise.complete(false);
+            } else {
+                promise.fail(body.getString("message"));
+            }
+        });
+        return promise.future();
+    }
+
+    /**
+     * Flag the run as cancelled so that the worker, whatever node it runs on, stops at its next checkpoint.
+     */
+    public Future<Void> requestCancel() {
+        return update(new JsonObject().put("$set", new JsonObject()
+                .put("cancelRequested", true)
+                .put("updatedAt", System.currentTimeMillis())));
+    }
+
+    private Future<Void> update(final JsonObject modifier) {
+        final Promise<Void> promise = Promise.promise();
+        mongo.update(CollaborativeEditor.COLLABORATIVEEDITOR_TASKS_COLLECTION, byId(), modifier, true, false,
+                MongoDbResult.validActionResultHandler(event -> {
+                    if (event.isRight()) {
+                        promise.complete();
+                    } else {
+                        promise.fail(event.left().getValue());
+                    }
+                }));
+        return promise.future();
+    }
+
+    private JsonObject byId() {
+        return new JsonObject().put("_id", taskName);
+    }
+}
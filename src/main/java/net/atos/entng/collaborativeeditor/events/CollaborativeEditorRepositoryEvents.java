@@ -4,7 +4,9 @@ import fr.wseduc.mongodb.MongoDb;
 import fr.wseduc.mongodb.MongoQueryBuilder;
 import fr.wseduc.webutils.I18n;
 import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
 import io.vertx.core.Handler;
+import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.eventbus.Message;
@@ -12,7 +14,10 @@ import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
+import net.atos.entng.collaborativeeditor.helpers.BoundedWorkQueue;
 import net.atos.entng.collaborativeeditor.helpers.EtherpadHelper;
+import net.atos.entng.collaborativeeditor.helpers.PadArchive;
+import net.atos.entng.collaborativeeditor.helpers.PadVisibility;
 import org.bson.conversions.Bson;
 import org.entcore.common.folders.impl.DocumentHelper;
 import org.entcore.common.mongodb.MongoDbConf;
@@ -23,6 +28,7 @@ import org.entcore.common.utils.StringUtils;
 import org.etherpad_lite_client.EPLiteClient;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -30,6 +36,7 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import static com.mongodb.client.model.Filters.*;
 
@@ -39,14 +46,24 @@ public class CollaborativeEditorRepositoryEvents extends MongoDbRepositoryEvents
 	private final MongoDb mongo = MongoDb.getInstance();
 	private final Vertx vertx;
 	private final EtherpadHelper helper;
+	private final int exportParallelism;
+	private final long exportPadTimeout;
+	private final int importParallelism;
+	private final int importRetries;
+	private final long importRetryDelay;
 
 	private final Map<String, Map<String, JsonObject>> oldPadsToNewPads = new ConcurrentHashMap<String, Map<String, JsonObject>>();
 
-	public CollaborativeEditorRepositoryEvents(Vertx vertx, EtherpadHelper helper)
+	public CollaborativeEditorRepositoryEvents(Vertx vertx, EtherpadHelper helper, JsonObject config)
 	{
 		super(vertx, "net-atos-entng-collaborativeeditor-controllers-CollaborativeEditorController|delete", null, null);
 		this.vertx = vertx;
 		this.helper = helper;
+		this.exportParallelism = config.getInteger("export-parallelism", 8);
+		this.exportPadTimeout = config.getLong("export-pad-timeout", 30000L);
+		this.importParallelism = config.getInteger("import-parallelism", 4);
+		this.importRetries = config.getInteger("import-retries", 3);
+		this.importRetryDelay = config.getLong("import-retry-delay", 500L);
 	}
 
 	@Override
@@ -70,23 +87,21 @@ public class CollaborativeEditorRepositoryEvents extends MongoDbRepositoryEvents
 		});
 	}
 
-	private void exportFiles(EPLiteClient client, final JsonArray results, String exportPath, Set<String> usedFileName,
+	private void exportFiles(String domain, final JsonArray results, String exportPath, Set<String> usedFileName,
 			final AtomicBoolean exported, final Handler<Boolean> handler)
 	{
-		if (results.isEmpty())
+		// File names are resolved up front so that parallel writes cannot race on usedFileName
+		final List<JsonObject> resources = new ArrayList<>(results.size());
+		final List<String> filePaths = new ArrayList<>(results.size());
+		for (Object o : results)
 		{
-			exported.set(true);
-			log.info("Collaborative Editor exported successfully to : " + exportPath);
-			handler.handle(exported.get());
-		}
-		else
-		{
-			JsonObject resources = results.getJsonObject(0);
-			String fileId = resources.getString("_id");
-			String fileName = resources.getString("title");
+			if (!(o instanceof JsonObject)) continue;
+			JsonObject resource = (JsonObject) o;
+			String fileId = resource.getString("_id");
+			String fileName = resource.getString("title");
 
 			if (fileName == null) {
-				fileName = resources.getString("name");
+				fileName = resource.getString("name");
 			}
 
 			fileName = StringUtils.replaceForbiddenCharacters(fileName);
@@ -94,66 +109,79 @@ public class CollaborativeEditorRepositoryEvents extends MongoDbRepositoryEvents
 			if (!usedFileName.add(fileName)) {
 				fileName += "_" + fileId;
 			}
+			resources.add(resource);
+			filePaths.add(exportPath + File.separator + fileName);
+		}
 
-			final String filePath = exportPath + File.separator + fileName;
-			final String padId = resources.getString("epName");
+		final long start = System.currentTimeMillis();
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		final AtomicInteger padErrors = new AtomicInteger(0);
+		final List<Integer> indexes = new ArrayList<>(resources.size());
+		for (int i = 0; i < resources.size(); i++) indexes.add(i);
 
-			vertx.fileSystem().writeFile(filePath, resources.toBuffer(), new Handler<AsyncResult<Void>>()
-			{
-				@Override
-				public void handle(AsyncResult<Void> event)
+		BoundedWorkQueue.forEach(indexes, exportParallelism, i ->
+		{
+			final JsonObject resource = resources.get(i);
+			final String filePath = filePaths.get(i);
+			return vertx.fileSystem().writeFile(filePath, resource.toBuffer())
+				.onFailure(th ->
 				{
-					if (event.succeeded())
-					{
-						exportPad(padId, client, exportPath, new Handler<Void>()
-						{
-							@Override
-							public void handle(Void v)
-							{
-								results.remove(0);
-								exportFiles(client, results, exportPath, usedFileName, exported, handler);
-							}
-						});
-					}
-					else
-					{
-						log.error("Collaborative Editor : Could not write file " + filePath, event.cause());
-						handler.handle(exported.get());
-					}
-				}
-			});
-		}
+					failed.set(true);
+					log.error("Collaborative Editor : Could not write file " + filePath, th);
+				})
+				.compose(v -> exportPad(resource, domain, exportPath))
+				.onFailure(th -> padErrors.incrementAndGet());
+		}).onComplete(done ->
+		{
+			final long elapsed = Math.max(1L, System.currentTimeMillis() - start);
+			exported.set(!failed.get());
+			log.info("Collaborative Editor exported " + resources.size() + " pads to : " + exportPath
+					+ " in " + elapsed + " ms (" + Math.round(resources.size() * 1000d / elapsed) + " pads/s, "
+					+ padErrors.get() + " failures)");
+			handler.handle(exported.get());
+		});
 	}
 
-	private void exportPad(String padId, EPLiteClient client, String exportPath, Handler<Void> handler)
+	private Future<Void> exportPad(JsonObject resource, String domain, String exportPath)
 	{
+		final String padId = resource.getString("epName");
 		final String padPath = exportPath + File.separator + "Pad_" + padId;
+		if (resource.getBoolean(PadArchive.FIELD, false))
+		{
+			// Archived pads are no longer in Etherpad, their HTML is in the archive
+			return helper.getPadArchive().html(resource.getString("_id"))
+				.compose(html -> vertx.fileSystem().writeFile(padPath, new JsonObject().put("html", html).toBuffer()))
+				.onFailure(th -> log.error("Collaborative Editor : Could not write archived pad " + padPath + " : " + th.getMessage()));
+		}
+		// Each pad is read from the backend hosting it, which may not be the one of the exporting host
+		final EPLiteClient client = helper.getClientForPad(resource, domain);
+		if (client == null)
+		{
+			log.error("Collaborative Editor : Could not export pad " + padPath + " : no.pad.client");
+			return Future.failedFuture("no.pad.client");
+		}
+		final Promise<JsonObject> html = Promise.promise();
+		final long timerId = vertx.setTimer(exportPadTimeout, t -> html.tryFail("timeout after " + exportPadTimeout + " ms"));
 
 		client.getHTML(padId, new Handler<JsonObject>()
 		{
 			@Override
 			public void handle(JsonObject res)
 			{
+				vertx.cancelTimer(timerId);
 				if (res != null && "ok".equals(res.getString("status")))
 				{
 					res.remove("status");
-
-					vertx.fileSystem().writeFile(padPath, res.toBuffer(), new Handler<AsyncResult<Void>>()
-					{
-						public void handle(AsyncResult<Void> event)
-						{
-							if (event.failed()) {
-								log.error("Collaborative Editor : Could not write pad " + padPath);
-							}
-							handler.handle(null);
-						}
-					});
+					html.tryComplete(res);
 				} else {
-					log.error("Collaborative Editor : Could not write pad " + padPath);
-					handler.handle(null);
+					html.tryFail(res != null ? res.getString("message", "") : "no response");
 				}
 			}
 		});
+
+		return html.future()
+			.compose(res -> vertx.fileSystem().writeFile(padPath, res.toBuffer()))
+			.onFailure(th -> log.error("Collaborative Editor : Could not write pad " + padPath + " : " + th.getMessage()));
 	}
 
 	@Override
@@ -197,7 +225,7 @@ public class CollaborativeEditorRepositoryEvents extends MongoDbRepositoryEvents
 						{
 							if (path != null)
 							{
-								exportFiles(helper.getClientFromHost(host), results, path, new HashSet<>(), exported, e -> handler.handle(new ExportResourceResult(e, path)));
+								exportFiles(helper.getDomainFromHost(host), results, path, new HashSet<>(), exported, e -> handler.handle(new ExportResourceResult(e, path)));
 							}
 							else
 							{
@@ -230,6 +258,13 @@ public class CollaborativeEditorRepositoryEvents extends MongoDbRepositoryEvents
 			{
 				DocumentHelper.setAppProperty(document, "epName", newPad.getString("epName"));
 				DocumentHelper.setAppProperty(document, "epGroupID", newPad.getString("epGroupID"));
+				DocumentHelper.setAppProperty(document, "epDomain", newPad.getString("epDomain"));
+				// The new pad lives in Etherpad even if the exported one was archived
+				DocumentHelper.setAppProperty(document, PadArchive.FIELD, false);
+				DocumentHelper.setAppProperty(document, PadArchive.ALIASES, new JsonArray());
+				// The importing user becomes the owner and the shares are not imported
+				DocumentHelper.setAppProperty(document, PadVisibility.FIELD, PadVisibility.compute(new JsonObject()
+					.put("owner", new JsonObject().put("userId", userId))));
 				return document;
 			}
 		}
@@ -248,7 +283,6 @@ public class CollaborativeEditorRepositoryEvents extends MongoDbRepositoryEvents
 	public void importResources(String importId, String userId, String userLogin, String userName, String importPath,
 		String locale, String host, boolean forceImportAsDuplication, Handler<JsonObject> handler)
 	{
-		CollaborativeEditorRepositoryEvents self = this;
 		this.fs.readDir(importPath, new Handler<AsyncResult<List<String>>>()
 		{
 			@Override
@@ -258,110 +292,131 @@ public class CollaborativeEditorRepositoryEvents extends MongoDbRepositoryEvents
 					handler.handle(new JsonObject().put("status", "error").put("message", "Failed to read import folder"));
 				else
 				{
-					List<String> filesInDir = result.result();
-					int nbFiles = filesInDir.size();
+					// Only read pads
+					List<String> padFiles = new ArrayList<>();
+					for(String filePath : result.result())
+					{
+						if(FileUtils.getFilename(filePath).startsWith("Pad_") == true)
+							padFiles.add(filePath);
+					}
 
-					AtomicInteger unprocessed = new AtomicInteger(nbFiles);
+					AtomicInteger nbImported = new AtomicInteger(0);
 					AtomicInteger nbErrors = new AtomicInteger(0);
+					AtomicInteger nbRetries = new AtomicInteger(0);
+					AtomicInteger nbCopies = new AtomicInteger(0);
 
 					Map<String, JsonObject> padMap = new ConcurrentHashMap<String, JsonObject>();
 					oldPadsToNewPads.put(importId, padMap);
 
-					Handler<Void> finaliseRead = new Handler<Void>()
-					{
-						@Override
-						public void handle(Void res)
-						{
-							CollaborativeEditorRepositoryEvents.super.importResources(importId, userId, userLogin, userName, importPath, locale, host, forceImportAsDuplication,
-								new Handler<JsonObject>()
+					BoundedWorkQueue.forEach(padFiles, importParallelism, filePath ->
+						importPad(filePath, host, forceImportAsDuplication, padMap, nbRetries, nbCopies)
+							.onSuccess(v -> nbImported.incrementAndGet())
+							.onFailure(th ->
 							{
-								@Override
-								public void handle(JsonObject rapport)
-								{
-									rapport.put("errorsNumber", Integer.toString(Integer.parseInt(rapport.getString("errorsNumber")) + nbErrors.get()));
-
-									handler.handle(rapport);
-								}
-							});
-						}
-					};
-
-					for(String filePath : filesInDir)
+								nbErrors.incrementAndGet();
+								log.error("Failed to import pad file " + filePath + " : " + th.getMessage());
+							})
+					).onComplete(done ->
 					{
-						String fileName = FileUtils.getFilename(filePath);
-
-						// Only read pads
-						if(fileName.startsWith("Pad_") == true)
+						log.info("Collaborative Editor import " + importId + " : " + nbImported.get() + " pads imported, "
+								+ nbErrors.get() + " errors, " + nbRetries.get() + " retries, " + nbCopies.get() + " copied inside Etherpad");
+						CollaborativeEditorRepositoryEvents.super.importResources(importId, userId, userLogin, userName, importPath, locale, host, forceImportAsDuplication,
+							new Handler<JsonObject>()
 						{
-							self.fs.readFile(filePath, new Handler<AsyncResult<Buffer>>()
+							@Override
+							public void handle(JsonObject rapport)
 							{
-								@Override
-								public void handle(AsyncResult<Buffer> fileResult)
-								{
-									if(fileResult.succeeded() == false)
-									{
-										int ix = unprocessed.decrementAndGet();
-
-										nbErrors.addAndGet(1);
-										log.error("Failed to read pad file " + filePath);
-
-										if(ix == 0)
-											finaliseRead.handle(null);
-									}
-									else
-									{
-										String padId = fileName.substring("Pad_".length());
-										String padHtml = fileResult.result().toJsonObject().getString("html", "");
-										String padText = fileResult.result().toJsonObject().getString("text", null);
-
-										// Create a new pad in EtherPad
-										helper.createPad(host, new Handler<JsonObject>()
-										{
-											@Override
-											public void handle(JsonObject padResult)
-											{
-												if(padResult.getString("status").equals("ok") == false)
-												{
-													nbErrors.addAndGet(1);
-
-													int ix = unprocessed.decrementAndGet();
-													if(ix == 0)
-														finaliseRead.handle(null);
-												}
-												else
-												{
-													padMap.put(padId, padResult);
-													Handler<JsonObject> hnd = new Handler<JsonObject>()
-													{
-														@Override
-														public void handle(JsonObject textRes)
-														{
-															int ix = unprocessed.decrementAndGet();
-															if(ix == 0)
-																finaliseRead.handle(null);
-														}
-													};
-
-													if(padText != null && padHtml.isEmpty() == true)
-														helper.setPadText(host, padResult.getString("epName"), padText, hnd);
-													else
-														helper.setPadHTML(host, padResult.getString("epName"), padHtml, hnd);
-												}
-											}
-										});
-									}
-								}
-							});
-						}
-						else
-						{
-							int ix = unprocessed.decrementAndGet();
-							if(ix == 0)
-								finaliseRead.handle(null);
-						}
-					}
+								oldPadsToNewPads.remove(importId);
+								rapport.put("errorsNumber", Integer.toString(Integer.parseInt(rapport.getString("errorsNumber")) + nbErrors.get()));
+								rapport.put("padsImportedNumber", Integer.toString(nbImported.get()));
+								rapport.put("padsRetriesNumber", Integer.toString(nbRetries.get()));
+
+								handler.handle(rapport);
+							}
+						});
+					});
 				}
 			}
 		});
 	}
+
+	/**
+	 * Import a pad. A duplication first tries to copy the source pad inside Etherpad, which only works when it
+	 * still lives on the backend of the host; otherwise the pad file is read, parsed once, then the pad is
+	 * created and its content set, each Etherpad call being retried with an exponential backoff.
+	 */
+	private Future<Void> importPad(String filePath, String host, boolean duplicate, Map<String, JsonObject> padMap,
+		AtomicInteger nbRetries, AtomicInteger nbCopies)
+	{
+		final String padId = FileUtils.getFilename(filePath).substring("Pad_".length());
+
+		if(duplicate == true)
+		{
+			return helper.copyPad(host, padId)
+				.map(copy ->
+				{
+					padMap.put(padId, copy);
+					nbCopies.incrementAndGet();
+					return (Void) null;
+				})
+				.recover(th -> importPadFile(filePath, padId, host, padMap, nbRetries));
+		}
+		return importPadFile(filePath, padId, host, padMap, nbRetries);
+	}
+
+	private Future<Void> importPadFile(String filePath, String padId, String host, Map<String, JsonObject> padMap, AtomicInteger nbRetries)
+	{
+		return this.fs.readFile(filePath).compose(buffer ->
+		{
+			final JsonObject pad = buffer.toJsonObject();
+			final String padHtml = pad.getString("html", "");
+			final String padText = pad.getString("text", null);
+
+			return withRetries(() -> etherpadCall(h -> helper.createPad(host, h)), nbRetries)
+				.compose(padResult ->
+				{
+					padMap.put(padId, padResult);
+					final String epName = padResult.getString("epName");
+
+					if(padText != null && padHtml.isEmpty() == true)
+						return withRetries(() -> etherpadCall(h -> helper.setPadText(host, epName, padText, h)), nbRetries);
+					else
+						return withRetries(() -> etherpadCall(h -> helper.setPadHTML(host, epName, padHtml, h)), nbRetries);
+				});
+		}).mapEmpty();
+	}
+
+	private Future<JsonObject> etherpadCall(Handler<Handler<JsonObject>> call)
+	{
+		final Promise<JsonObject> promise = Promise.promise();
+		call.handle(res ->
+		{
+			if(res != null && "ok".equals(res.getString("status")))
+				promise.complete(res);
+			else
+				promise.fail(res != null ? res.getString("message", "") : "no response");
+		});
+		return promise.future();
+	}
+
+	private <T> Future<T> withRetries(Supplier<Future<T>> call, AtomicInteger nbRetries)
+	{
+		final Promise<T> promise = Promise.promise();
+		attempt(call, 0, nbRetries, promise);
+		return promise.future();
+	}
+
+	private <T> void attempt(Supplier<Future<T>> call, int attempt, AtomicInteger nbRetries, Promise<T> promise)
+	{
+		call.get().onComplete(ar ->
+		{
+			if(ar.succeeded() || attempt >= importRetries)
+				promise.handle(ar);
+			else
+			{
+				nbRetries.incrementAndGet();
+				vertx.setTimer(importRetryDelay * (1L << attempt), t -> attempt(call, attempt + 1, nbRetries, promise));
+			}
+		});
+	}
 }
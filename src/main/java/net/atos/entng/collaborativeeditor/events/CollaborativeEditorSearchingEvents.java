@@ -19,8 +19,13 @@
 
 package net.atos.entng.collaborativeeditor.events;
 
+import fr.wseduc.mongodb.MongoQueryBuilder;
 import fr.wseduc.webutils.Either;
 import fr.wseduc.webutils.Either.Right;
+import io.vertx.ext.mongo.FindOptions;
+import net.atos.entng.collaborativeeditor.CollaborativeEditor;
+import net.atos.entng.collaborativeeditor.helpers.MongoReadRouting;
+import net.atos.entng.collaborativeeditor.helpers.PadVisibility;
 import org.entcore.common.search.SearchingEvents;
 import org.entcore.common.service.SearchService;
 import io.vertx.core.Handler;
@@ -37,9 +42,11 @@ public class CollaborativeEditorSearchingEvents implements SearchingEvents {
 
 	private static final Logger log = LoggerFactory.getLogger(CollaborativeEditorSearchingEvents.class);
 	private SearchService searchService;
+	private final MongoReadRouting readRouting;
 
-	public CollaborativeEditorSearchingEvents(Vertx vertx, SearchService searchService) {
+	public CollaborativeEditorSearchingEvents(Vertx vertx, SearchService searchService, MongoReadRouting readRouting) {
 		this.searchService = searchService;
+		this.readRouting = readRouting;
 	}
 
 	@Override
@@ -52,8 +59,9 @@ public class CollaborativeEditorSearchingEvents implements SearchingEvents {
 			returnFields.add("modified");
 			returnFields.add("owner.userId");
 			returnFields.add("owner.displayName");
+			// "contentText" is matched by the text index but is not returned, it can be large
 
-			searchService.search(userId, groupIds.getList(), returnFields, searchWords.getList(), page, limit, new Handler<Either<String, JsonArray>>() {
+			final Handler<Either<String, JsonArray>> searchHandler = new Handler<Either<String, JsonArray>>() {
 				@Override
 				public void handle(Either<String, JsonArray> event) {
 					if (event.isRight()) {
@@ -65,13 +73,45 @@ public class CollaborativeEditorSearchingEvents implements SearchingEvents {
 						log.debug("[CollaborativeEditorSearchingEvents][searchResource] The resources searched by user are finded");
 					}
 				}
-			});
+			};
+			if (readRouting.isSecondary(MongoReadRouting.SEARCH)) {
+				searchOnSecondary(userId, groupIds, returnFields, searchWords, page, limit, searchHandler);
+			} else {
+				searchService.search(userId, groupIds.getList(), returnFields, searchWords.getList(), page, limit, searchHandler);
+			}
 		} else {
 			handler.handle(new Right<String, JsonArray>(new JsonArray()));
 		}
 	}
 
 
+	/**
+	 * Same search as the MongoDbSearchService (every word in the text index), on the pads visible by the user.
+	 */
+	private void searchOnSecondary(String userId, JsonArray groupIds, List<String> returnFields, JsonArray searchWords,
+								   Integer page, Integer limit, final Handler<Either<String, JsonArray>> handler) {
+		final StringBuilder text = new StringBuilder();
+		for (Object word : searchWords) {
+			text.append('"').append(word).append("\" ");
+		}
+		final JsonObject query = new JsonObject()
+				.put("$text", new JsonObject().put("$search", text.toString().trim()))
+				.mergeIn(MongoQueryBuilder.build(PadVisibility.visibleFilter(userId, groupIds.getList())));
+		final JsonObject fields = new JsonObject().put("_id", 1);
+		for (String field : returnFields) {
+			fields.put(field, 1);
+		}
+		final FindOptions options = new FindOptions().setFields(fields).setSort(new JsonObject().put("modified", -1))
+				.setSkip(page * limit).setLimit(limit);
+		readRouting.client(MongoReadRouting.SEARCH).findWithOptions(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, query, options, ar -> {
+			if (ar.succeeded()) {
+				handler.handle(new Right<String, JsonArray>(new JsonArray(ar.result())));
+			} else {
+				handler.handle(new Either.Left<String, JsonArray>(ar.cause().getMessage()));
+			}
+		});
+	}
+
 	private void formatSearchResult(final JsonArray results, final JsonArray columnsHeader, final Handler<Either<String, JsonArray>> handler) {
 		final List<String> aHeader = columnsHeader.getList();
 		final JsonArray traity = new JsonArray();
@@ -2,11 +2,19 @@ package net.atos.entng.collaborativeeditor.explorer;
 
 import fr.wseduc.mongodb.MongoDb;
 import fr.wseduc.webutils.security.SecuredAction;
+import io.vertx.core.CompositeFuture;
 import io.vertx.core.Future;
+import io.vertx.core.Vertx;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.mongo.FindOptions;
 import io.vertx.ext.mongo.MongoClient;
 import net.atos.entng.collaborativeeditor.CollaborativeEditor;
+import net.atos.entng.collaborativeeditor.cron.EtherpadDeletionOutbox;
+import net.atos.entng.collaborativeeditor.helpers.PadArchive;
+import net.atos.entng.collaborativeeditor.helpers.PadVisibility;
 import org.entcore.broker.api.dto.resources.ResourcesDeletedDTO;
 import org.entcore.broker.api.publisher.BrokerPublisherFactory;
 import org.entcore.broker.api.utils.AddressParameter;
@@ -15,32 +23,55 @@ import org.entcore.common.explorer.ExplorerMessage;
 import org.entcore.common.explorer.ExplorerPluginFactory;
 import org.entcore.common.explorer.IExplorerPlugin;
 import org.entcore.common.explorer.IExplorerPluginCommunication;
+import org.entcore.common.explorer.IdAndVersion;
 import org.entcore.common.explorer.impl.ExplorerPluginResourceMongo;
 import org.entcore.common.explorer.impl.ExplorerSubResource;
 import org.entcore.common.share.ShareModel;
 import org.entcore.common.share.ShareService;
 import org.entcore.common.user.UserInfos;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 public class CollaborativeEditorExplorerPlugin extends ExplorerPluginResourceMongo {
     public static final String APPLICATION = CollaborativeEditor.APPLICATION;
     public static final String TYPE = CollaborativeEditor.TYPE;
     public static final String COLLECTION = CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION;
+    private static final Logger log = LoggerFactory.getLogger(CollaborativeEditorExplorerPlugin.class);
 
     private final Map<String, SecuredAction> securedActions;
     private final MongoClient mongoClient;
     private ShareService shareService;
+    private EtherpadDeletionOutbox deletionOutbox;
+    private PadArchive padArchive;
+    private String defaultDomain;
     private final ResourceBrokerPublisher resourcePublisher;
+    private final Vertx vertx;
+    private final int notificationBatchSize;
+    private final long notificationFlushDelay;
+    /**
+     * Notifications waiting to be sent, one per resource id, in the order of their last change
+     */
+    private final Map<String, PendingNotification> pendingNotifications = new LinkedHashMap<>();
+    private long flushTimer = -1L;
+    private Future<Void> lastFlush = Future.succeededFuture();
 
     protected CollaborativeEditorExplorerPlugin(
             final IExplorerPluginCommunication communication
             , final MongoClient mongoClient
-            , final Map<String, SecuredAction> securedActions) {
+            , final Map<String, SecuredAction> securedActions
+            , final JsonObject config) {
         super(communication, mongoClient);
+        this.vertx = communication.vertx();
+        // Set the notification batching
+        this.notificationBatchSize = config.getInteger("explorer-notification-batch-size", 50);
+        this.notificationFlushDelay = config.getLong("explorer-notification-flush-delay", 500L);
         // Set the mongo client
         this.mongoClient = mongoClient;
         // Set the secured actions
@@ -53,15 +84,118 @@ public class CollaborativeEditorExplorerPlugin extends ExplorerPluginResourceMon
         );
     }
 
-    public static Future<CollaborativeEditorExplorerPlugin> create(final Map<String, SecuredAction> securedActions)  {
+    public static Future<CollaborativeEditorExplorerPlugin> create(final Map<String, SecuredAction> securedActions, final JsonObject config)  {
         // Create the explorer plugin using mongo
         return ExplorerPluginFactory.createMongoPlugin((params) ->
-                new CollaborativeEditorExplorerPlugin(params.getCommunication(), params.getDb(), securedActions))
+                new CollaborativeEditorExplorerPlugin(params.getCommunication(), params.getDb(), securedActions, config))
                 .map(plugin -> (CollaborativeEditorExplorerPlugin) plugin);
     }
 
     public MongoClient getMongoClient() { return mongoClient; }
 
+    /**
+     * Queue an upsert notification. Notifications of the same resource are coalesced until the buffer is
+     * flushed, either because it is full or because the flush delay elapsed.
+     * @param user user at the origin of the change
+     * @param source resource fields, with "_id" and "version"
+     */
+    public void bufferUpsert(final UserInfos user, final JsonObject source) {
+        bufferUpsert(user, source, Optional.empty());
+    }
+
+    /**
+     * Queue an upsert notification.
+     * @param user user at the origin of the change
+     * @param source resource fields, with "_id" and "version"
+     * @param folderId folder where the resource is created
+     */
+    public void bufferUpsert(final UserInfos user, final JsonObject source, final Optional<Number> folderId) {
+        buffer(source.getString("_id"), new PendingNotification(user, source, folderId, null));
+    }
+
+    /**
+     * Queue a delete notification. It replaces any pending upsert of the same resource.
+     * @param user user at the origin of the deletion
+     * @param id resource id and version
+     */
+    public void bufferDeleteById(final UserInfos user, final IdAndVersion id) {
+        buffer(id.getId(), new PendingNotification(user, null, Optional.empty(), id));
+    }
+
+    private void buffer(final String id, final PendingNotification notification) {
+        if (notificationBatchSize <= 1 || notificationFlushDelay <= 0) {
+            send(Collections.singletonList(notification));
+            return;
+        }
+        final boolean full;
+        synchronized (pendingNotifications) {
+            final PendingNotification previous = pendingNotifications.remove(id);
+            pendingNotifications.put(id, previous != null ? previous.coalesce(notification) : notification);
+            full = pendingNotifications.size() >= notificationBatchSize;
+            if (!full && flushTimer < 0) {
+                flushTimer = vertx.setTimer(notificationFlushDelay, t -> flushNotifications());
+            }
+        }
+        if (full) {
+            flushNotifications();
+        }
+    }
+
+    /**
+     * Send the pending notifications, after the previous flush completed so that the notifications of a
+     * resource always reach the explorer in order.
+     * @return a future completed when the notifications are sent
+     */
+    public Future<Void> flushNotifications() {
+        final List<PendingNotification> batch;
+        synchronized (pendingNotifications) {
+            if (flushTimer >= 0) {
+                vertx.cancelTimer(flushTimer);
+                flushTimer = -1L;
+            }
+            if (pendingNotifications.isEmpty()) {
+                return lastFlush;
+            }
+            batch = new ArrayList<>(pendingNotifications.values());
+            pendingNotifications.clear();
+            lastFlush = lastFlush.otherwiseEmpty().compose(v -> send(batch));
+            return lastFlush;
+        }
+    }
+
+    private Future<Void> send(final List<PendingNotification> batch) {
+        final Map<String, List<JsonObject>> upsertsByUser = new LinkedHashMap<>();
+        final Map<String, List<IdAndVersion>> deletesByUser = new LinkedHashMap<>();
+        final Map<String, UserInfos> users = new HashMap<>();
+        final List<Future> futures = new ArrayList<>();
+        for (final PendingNotification notification : batch) {
+            final String userId = notification.user.getUserId();
+            users.put(userId, notification.user);
+            if (notification.deleted != null) {
+                deletesByUser.computeIfAbsent(userId, k -> new ArrayList<>()).add(notification.deleted);
+            } else if (notification.folderId.isPresent()) {
+                futures.add(notifyUpsert(notification.user, notification.source, notification.folderId));
+            } else {
+                upsertsByUser.computeIfAbsent(userId, k -> new ArrayList<>()).add(notification.source);
+            }
+        }
+        upsertsByUser.forEach((userId, sources) -> futures.add(notifyUpsert(users.get(userId), sources)));
+        deletesByUser.forEach((userId, ids) -> futures.add(notifyDeleteById(users.get(userId), ids)));
+        return CompositeFuture.join(futures).<Void>mapEmpty().onFailure(th -> log.error("[CollaborativeEditorExplorerPlugin] Could not send explorer notifications", th));
+    }
+
+    /**
+     * Clean up Etherpad when pads are deleted from the explorer.
+     * @param deletionOutbox durable queue of the Etherpad deletions
+     * @param padArchive archive tier, whose copies of the deleted pads are dropped
+     * @param defaultDomain domain to use when a pad does not know its backend
+     */
+    public void setEtherpadCleanup(final EtherpadDeletionOutbox deletionOutbox, final PadArchive padArchive, final String defaultDomain) {
+        this.deletionOutbox = deletionOutbox;
+        this.padArchive = padArchive;
+        this.defaultDomain = defaultDomain;
+    }
+
     public ShareService createShareService(final Map<String, List<String>> groupedActions) {
         this.shareService = createMongoShareService(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, securedActions, groupedActions);
         return this.shareService;
@@ -72,6 +206,29 @@ public class CollaborativeEditorExplorerPlugin extends ExplorerPluginResourceMon
         return Optional.ofNullable(shareService);
     }
 
+    /**
+     * Called by the share service once "shared" is written, whatever the path (share routes, broker, explorer):
+     * visibleTo is refreshed before the explorer is told about the new shares.
+     */
+    @Override
+    public Future<Void> notifyShare(final String id, final UserInfos user, final JsonArray shared) {
+        return refreshVisibility(Collections.singleton(id)).compose(v -> super.notifyShare(id, user, shared));
+    }
+
+    @Override
+    public Future<Void> notifyShare(final Set<String> ids, final UserInfos user, final JsonArray shared) {
+        return refreshVisibility(ids).compose(v -> super.notifyShare(ids, user, shared));
+    }
+
+    private Future<Void> refreshVisibility(final Set<String> ids) {
+        final List<Future> futures = new ArrayList<>();
+        for (final String id : ids) {
+            futures.add(PadVisibility.refresh(id));
+        }
+        // A failed refresh is logged, the notification is still sent
+        return CompositeFuture.join(futures).<Void>mapEmpty().otherwiseEmpty();
+    }
+
     @Override
     protected String getApplication() { return APPLICATION; }
 
@@ -87,8 +244,10 @@ public class CollaborativeEditorExplorerPlugin extends ExplorerPluginResourceMon
         message.withName(source.getString("name", ""));
         message.withDescription(source.getString("description", ""));
         message.withThumbnail(source.getString("thumbnail"));
-        // Pad does not have content
-        message.withContent("", ExplorerMessage.ExplorerContentType.Text);
+        // Pad text is filled by the content indexer, leave the indexed content untouched otherwise
+        if (source.containsKey("contentText")) {
+            message.withContent(source.getString("contentText", ""), ExplorerMessage.ExplorerContentType.Text);
+        }
         // Pad are not public
         message.withPublic(false);
         // Set the trashed status
@@ -152,11 +311,68 @@ public class CollaborativeEditorExplorerPlugin extends ExplorerPluginResourceMon
         json.put("owner", author);
     }
     
+    /**
+     * A pending notification: an upsert (source) or a deletion (deleted).
+     */
+    private static class PendingNotification {
+        private final UserInfos user;
+        private final JsonObject source;
+        private final Optional<Number> folderId;
+        private final IdAndVersion deleted;
+
+        private PendingNotification(final UserInfos user, final JsonObject source, final Optional<Number> folderId, final IdAndVersion deleted) {
+            this.user = user;
+            this.source = source;
+            this.folderId = folderId;
+            this.deleted = deleted;
+        }
+
+        /**
+         * Merge a newer notification of the same resource: a deletion wins, successive upserts keep the latest
+         * value of each field and the folder of the creation.
+         */
+        private PendingNotification coalesce(final PendingNotification newer) {
+            if (newer.deleted != null || deleted != null) {
+                return newer;
+            }
+            return new PendingNotification(newer.user, source.copy().mergeIn(newer.source),
+                    newer.folderId.isPresent() ? newer.folderId : folderId, null);
+        }
+    }
+
+    /**
+     * Delete pads from the explorer (trash emptied, resources deleted from the new UI). The documents go with a
+     * single query, the Etherpad pads and groups are queued in the deletion outbox before, so that a pad whose
+     * cleanup cannot be queued is kept rather than leaked on the backend.
+     */
+    @Override
     protected Future<List<Boolean>> doDelete(UserInfos user, List<String> ids) {
-        return super.doDelete(user, ids).onSuccess(result -> {
-            // Notify resource deletion via broker and dont wait for completion
-            final ResourcesDeletedDTO notification = new ResourcesDeletedDTO(ids, CollaborativeEditor.TYPE);
-            resourcePublisher.notifyResourcesDeleted(notification);
-        });
+        if (deletionOutbox == null) {
+            return super.doDelete(user, ids).onSuccess(result -> notifyDeleted(ids));
+        }
+        final JsonObject query = new JsonObject().put("_id", new JsonObject().put("$in", new JsonArray(ids)));
+        final FindOptions options = new FindOptions().setFields(new JsonObject()
+                .put("epName", 1).put("epGroupID", 1).put("epDomain", 1).put(PadArchive.FIELD, 1));
+        return mongoClient.findWithOptions(COLLECTION, query, options).compose(pads ->
+                deletionOutbox.enqueue(pads, defaultDomain, false).compose(queued -> super.doDelete(user, ids)).onSuccess(result -> {
+            notifyDeleted(ids);
+            // Clean Etherpad in the background
+            deletionOutbox.drain();
+            final List<String> archivedIds = new ArrayList<>();
+            for (final JsonObject pad : pads) {
+                if (pad.getBoolean(PadArchive.FIELD, false)) {
+                    archivedIds.add(pad.getString("_id"));
+                }
+            }
+            if (!archivedIds.isEmpty()) {
+                padArchive.forget(archivedIds);
+            }
+        }));
+    }
+
+    private void notifyDeleted(final List<String> ids) {
+        // Notify resource deletion via broker and dont wait for completion
+        final ResourcesDeletedDTO notification = new ResourcesDeletedDTO(ids, CollaborativeEditor.TYPE);
+        resourcePublisher.notifyResourcesDeleted(notification);
     }
 }
@@ -0,0 +1,284 @@
+package net.atos.entng.collaborativeeditor.explorer;
+
+import fr.wseduc.mongodb.MongoDb;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import net.atos.entng.collaborativeeditor.CollaborativeEditor;
+import net.atos.entng.collaborativeeditor.cron.TaskCheckpoint;
+import org.entcore.common.mongodb.MongoDbResult;
+import org.entcore.common.user.UserInfos;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resynchronises every pad with the explorer. The collection is split in _id ranges (ids are hexadecimal,
+ * so ranges are cut on their first character), each range being read by its own cursor, page by page.
+ * Each page is turned into explorer messages through the plugin (doToMessage) and sent grouped by owner.
+ * Cursors share the configured rate, and the position of every range is checkpointed after each page so
+ * that an interrupted reindex resumes where it stopped.
+ */
+public class ExplorerReindexJob {
+
+    public static final String TASK_NAME = "explorerReindex";
+    private static final String HEX = "0123456789abcdef";
+
+    private static final Logger log = LoggerFactory.getLogger(ExplorerReindexJob.class);
+    private final MongoDb mongo = MongoDb.getInstance();
+    private final Vertx vertx;
+    private final CollaborativeEditorExplorerPlugin explorerPlugin;
+    private final TaskCheckpoint checkpoint = new TaskCheckpoint(TASK_NAME);
+    private final int cursors;
+    private final int pageSize;
+    private final int rate;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicBoolean cancelRequested = new AtomicBoolean(false);
+
+    public ExplorerReindexJob(final Vertx vertx, final CollaborativeEditorExplorerPlugin explorerPlugin, final JsonObject config) {
+        this.vertx = vertx;
+        this.explorerPlugin = explorerPlugin;
+        this.cursors = Math.max(1, Math.min(HEX.length(), config.getInteger("reindex-cursors", 4)));
+        this.pageSize = config.getInteger("reindex-page-size", 200);
+        this.rate = Math.max(1, config.getInteger("reindex-rate", 200));
+    }
+
+    /**
+     * Start a reindex, or resume the last one if it did not complete.
+     * @return the run record as it was when the run started
+     */
+    public Future<JsonObject> start() {
+        if (!running.compareAndSet(false, true)) {
+            return status();
+        }
+        cancelRequested.set(false);
+        return checkpoint.load().compose(previous -> {
+            final Run run = Run.resumeOrCreate(previous, cursors);
+            return count().compose(total -> {
+                run.total = total;
+                return checkpoint.save(run.toJson(TaskCheckpoint.STATUS_RUNNING).put("cancelRequested", false).putNull("finishedAt"));
+            }).map(v -> run);
+        }).map(run -> {
+            final List<Future> workers = new ArrayList<>();
+            for (final Range range : run.ranges.values()) {
+                if (!range.done) {
+                    workers.add(nextPage(run, range));
+                }
+            }
+            CompositeFuture.join(workers).onComplete(ar -> finish(run, cancelRequested.get()
+                    ? TaskCheckpoint.STATUS_CANCELLED
+                    : (ar.succeeded() ? TaskCheckpoint.STATUS_COMPLETED : TaskCheckpoint.STATUS_FAILED)));
+            return run.toJson(TaskCheckpoint.STATUS_RUNNING);
+        }).onFailure(th -> {
+            running.set(false);
+            log.error("[ExplorerReindexJob] Could not start the reindex", th);
+        });
+    }
+
+    /**
+     * @return the persisted run record
+     */
+    public Future<JsonObject> status() {
+        return checkpoint.load().map(record -> record.put("active", running.get()));
+    }
+
+    /**
+     * Stop the reindex after the current pages. The checkpoint is kept, so the next start resumes.
+     */
+    public Future<Void> cancel() {
+        cancelRequested.set(true);
+        return checkpoint.requestCancel();
+    }
+
+    private Future<Void> nextPage(final Run run, final Range range) {
+        if (cancelRequested.get()) {
+            return Future.succeededFuture();
+        }
+        final JsonObject idRange = new JsonObject();
+        if (range.lastId != null) {
+            idRange.put("$gt", range.lastId);
+        } else if (range.from != null) {
+            idRange.put("$gte", range.from);
+        }
+        if (range.to != null) {
+            idRange.put("$lt", range.to);
+        }
+        final JsonObject query = idRange.isEmpty() ? new JsonObject() : new JsonObject().put("_id", idRange);
+        final JsonObject sort = new JsonObject().put("_id", 1);
+        final long pageStart = System.currentTimeMillis();
+        final Promise<JsonArray> page = Promise.promise();
+        mongo.find(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, query, sort, null, 0, pageSize, pageSize,
+                MongoDbResult.validResultsHandler(event -> {
+            if (event.isRight()) {
+                page.complete(event.right().getValue());
+            } else {
+                page.fail(event.left().getValue());
+            }
+        }));
+        return page.future().compose(pads -> {
+            if (pads.isEmpty()) {
+                range.done = true;
+                return checkpoint.save(run.toJson(TaskCheckpoint.STATUS_RUNNING));
+            }
+            return send(pads, run).compose(v -> {
+                range.lastId = pads.getJsonObject(pads.size() - 1).getString("_id");
+                range.done = pads.size() < pageSize;
+                return checkpoint.save(run.toJson(TaskCheckpoint.STATUS_RUNNING));
+            }).compose(v -> {
+                if (range.done) {
+                    return Future.succeededFuture();
+                }
+                // Each cursor gets its share of the rate
+                final long minDuration = pads.size() * 1000L * cursors / rate;
+                final long wait = minDuration - (System.currentTimeMillis() - pageStart);
+                final Promise<Void> throttle = Promise.promise();
+                vertx.setTimer(Math.max(1L, wait), t -> throttle.complete());
+                return throttle.future().compose(t -> nextPage(run, range));
+            });
+        });
+    }
+
+    private Future<Void> send(final JsonArray pads, final Run run) {
+        final Map<String, List<JsonObject>> padsByOwner = new LinkedHashMap<>();
+        final Map<String, UserInfos> owners = new LinkedHashMap<>();
+        final long version = System.currentTimeMillis();
+        for (final Object o : pads) {
+            if (!(o instanceof JsonObject)) continue;
+            final JsonObject pad = ((JsonObject) o).copy().put("version", version);
+            final Optional<UserInfos> owner = explorerPlugin.getCreatorForModel(pad);
+            if (!owner.isPresent()) {
+                run.skipped.incrementAndGet();
+                continue;
+            }
+            owners.putIfAbsent(owner.get().getUserId(), owner.get());
+            padsByOwner.computeIfAbsent(owner.get().getUserId(), k -> new ArrayList<>()).add(pad);
+        }
+        final List<Future> futures = new ArrayList<>();
+        padsByOwner.forEach((ownerId, sources) -> futures.add(explorerPlugin.notifyUpsert(owners.get(ownerId), sources)
+                .onSuccess(v -> run.processed.addAndGet(sources.size()))
+                .onFailure(th -> {
+                    run.errors.addAndGet(sources.size());
+                    log.error("[ExplorerReindexJob] Could not reindex pads of " + ownerId, th);
+                })));
+        return CompositeFuture.join(futures).<Void>mapEmpty().otherwiseEmpty();
+    }
+
+    private void finish(final Run run, final String status) {
+        final JsonObject record = run.toJson(status).put("finishedAt", System.currentTimeMillis());
+        checkpoint.save(record).onComplete(saved -> {
+            running.set(false);
+            log.info("[ExplorerReindexJob] Reindex " + run.runId + " " + status + " : " + record.encode());
+        });
+    }
+
+    private Future<Long> count() {
+        final Promise<Long> promise = Promise.promise();
+        mongo.count(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, new JsonObject(), event -> {
+            if ("ok".equals(event.body().getString("status"))) {
+                promise.complete(event.body().getLong("count", 0L));
+            } else {
+                promise.fail(event.body().getString("message"));
+            }
+        });
+        return promise.future();
+    }
+
+    /**
+     * A slice of the _id space read by one cursor. A null bound is open.
+     */
+    private static class Range {
+        private String from;
+        private String to;
+        private String lastId;
+        private boolean done;
+
+        private JsonObject toJson() {
+            return new JsonObject().put("from", from).put("to", to).put("lastId", lastId).put("done", done);
+        }
+
+        private static Range fromJson(final JsonObject json) {
+            final Range range = new Range();
+            range.from = json.getString("from");
+            range.to = json.getString("to");
+            range.lastId = json.getString("lastId");
+            range.done = json.getBoolean("done", false);
+            return range;
+        }
+    }
+
+    private static class Run {
+        private String runId;
+        private long startedAt;
+        private long total;
+        private final long segmentStartedAt = System.currentTimeMillis();
+        private long segmentProcessedBase;
+        private final Map<String, Range> ranges = new LinkedHashMap<>();
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+
+        private static Run resumeOrCreate(final JsonObject previous, final int cursors) {
+            final Run run = new Run();
+            final String previousStatus = previous.getString("status");
+            final JsonArray previousRanges = previous.getJsonArray("ranges");
+            if (previousStatus != null && !TaskCheckpoint.STATUS_COMPLETED.equals(previousStatus)
+                    && previousRanges != null && !previousRanges.isEmpty()) {
+                run.runId = previous.getString("runId");
+                run.startedAt = previous.getLong("startedAt", run.segmentStartedAt);
+                run.processed.set(previous.getLong("processed", 0L));
+                run.skipped.set(previous.getLong("skipped", 0L));
+                run.errors.set(previous.getLong("errors", 0L));
+                run.segmentProcessedBase = run.processed.get();
+                for (final Object o : previousRanges) {
+                    final Range range = Range.fromJson((JsonObject) o);
+                    run.ranges.put(String.valueOf(range.from), range);
+                }
+            } else {
+                run.runId = UUID.randomUUID().toString();
+                run.startedAt = run.segmentStartedAt;
+                // Cut the hexadecimal _id space on the first character; the first and last ranges are open
+                // so that ids outside of [0-9a-f] are read too
+                for (int i = 0; i < cursors; i++) {
+                    final Range range = new Range();
+                    range.from = i == 0 ? null : String.valueOf(HEX.charAt(i * HEX.length() / cursors));
+                    range.to = i == cursors - 1 ? null : String.valueOf(HEX.charAt((i + 1) * HEX.length() / cursors));
+                    run.ranges.put(String.valueOf(range.from), range);
+                }
+            }
+            return run;
+        }
+
+        private JsonObject toJson(final String status) {
+            final long elapsed = Math.max(1L, System.currentTimeMillis() - segmentStartedAt);
+            final double throughput = (processed.get() - segmentProcessedBase) * 1000d / elapsed;
+            final long remaining = Math.max(0L, total - processed.get() - skipped.get());
+            final JsonArray rangesJson = new JsonArray();
+            for (final Range range : ranges.values()) {
+                rangesJson.add(range.toJson());
+            }
+            final JsonObject json = new JsonObject()
+                    .put("runId", runId)
+                    .put("status", status)
+                    .put("startedAt", startedAt)
+                    .put("total", total)
+                    .put("processed", processed.get())
+                    .put("skipped", skipped.get())
+                    .put("errors", errors.get())
+                    .put("throughput", Math.round(throughput * 100d) / 100d)
+                    .put("ranges", rangesJson);
+            json.put("eta", throughput > 0 ? (long) (remaining / throughput) : null);
+            return json;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package net.atos.entng.collaborativeeditor.explorer;
+
+import fr.wseduc.mongodb.MongoDb;
+import fr.wseduc.mongodb.MongoUpdateBuilder;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import net.atos.entng.collaborativeeditor.CollaborativeEditor;
+import net.atos.entng.collaborativeeditor.helpers.BoundedWorkQueue;
+import net.atos.entng.collaborativeeditor.helpers.EtherpadActivity;
+import net.atos.entng.collaborativeeditor.helpers.EtherpadHelper;
+import net.atos.entng.collaborativeeditor.helpers.PadArchive;
+import org.entcore.common.mongodb.MongoDbResult;
+import org.entcore.common.user.UserInfos;
+import org.etherpad_lite_client.EPLiteClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes the text of the pads to the explorer. Pads are checked at most once per debounce interval,
+ * oldest check first: the revision count of the pad is compared with the marker stored on the document
+ * ("epRevisions"), and the text is only fetched for the pads which changed. The text is normalised and
+ * truncated, stored in "contentText" and sent to the explorer through doToMessage. The stored text is
+ * covered by the collection text index, so the global search finds pads by their content without any
+ * Etherpad call at query time. The same pass stores the statistics shown by the list views: an excerpt,
+ * the character count ("charCount"), the author count ("authorCount") and the read-only id ("epReadOnly"),
+ * the revision count being the marker itself. When the Etherpad hooks report the activity, only the pads
+ * flagged "contentDirty" since their last check are selected. Every node runs the indexer: a selected pad is
+ * claimed by moving its check date forward before any Etherpad call, and skipped if another node did it first.
+ */
+public class PadContentIndexer implements Handler<Long> {
+
+    private static final Logger log = LoggerFactory.getLogger(PadContentIndexer.class);
+    private final MongoDb mongo = MongoDb.getInstance();
+    private final Vertx vertx;
+    private final CollaborativeEditorExplorerPlugin explorerPlugin;
+    private final Map<String, EPLiteClient> clientByDomain;
+    private final long interval;
+    private final long debounce;
+    private final int batchSize;
+    private final int parallelism;
+    private final int maxLength;
+    private final int excerptLength;
+    private final boolean storedActivity;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong indexed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public PadContentIndexer(final Vertx vertx, final CollaborativeEditorExplorerPlugin explorerPlugin,
+                             final Map<String, EPLiteClient> clientByDomain, final JsonObject config) {
+        this.vertx = vertx;
+        this.explorerPlugin = explorerPlugin;
+        this.clientByDomain = clientByDomain;
+        this.interval = config.getLong("content-index-interval", 60000L);
+        this.debounce = config.getLong("content-index-debounce", 600000L);
+        this.batchSize = config.getInteger("content-index-batch-size", 100);
+        this.parallelism = config.getInteger("content-index-parallelism", 4);
+        this.maxLength = config.getInteger("content-index-max-length", 10000);
+        this.excerptLength = config.getInteger("content-index-excerpt-length", 200);
+        this.storedActivity = EtherpadActivity.isEnabled(config);
+    }
+
+    /**
+     * Start checking the pads periodically.
+     */
+    public void start() {
+        vertx.setPeriodic(interval, this);
+    }
+
+    @Override
+    public void handle(Long timerId) {
+        if (running.compareAndSet(false, true)) {
+            nextBatch().onComplete(ar -> {
+                running.set(false);
+                if (ar.failed()) {
+                    log.error("[PadContentIndexer] Could not index pad contents", ar.cause());
+                }
+            });
+        }
+    }
+
+    /**
+     * @return counters of this node
+     */
+    public JsonObject status() {
+        return new JsonObject()
+                .put("checked", checked.get())
+                .put("claimedElsewhere", skipped.get())
+                .put("indexed", indexed.get())
+                .put("failures", failures.get())
+                .put("running", running.get());
+    }
+
+    private Future<Void> nextBatch() {
+        final long now = System.currentTimeMillis();
+        final JsonObject due = new JsonObject().put("contentCheckedAt", new JsonObject().put("$lt", now - debounce));
+        if (storedActivity) {
+            due.put(EtherpadActivity.CONTENT_DIRTY, true);
+        }
+        final JsonObject query = new JsonObject()
+                .put("epMissing", new JsonObject().put("$ne", true))
+                .put(PadArchive.FIELD, new JsonObject().put("$ne", true))
+                .put("$or", new JsonArray()
+                        .add(new JsonObject().put("contentCheckedAt", new JsonObject().put("$exists", false)))
+                        .add(due));
+        final JsonObject sort = new JsonObject().put("contentCheckedAt", 1);
+        final Promise<JsonArray> page = Promise.promise();
+        mongo.find(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, query, sort, null, 0, batchSize, batchSize,
+                MongoDbResult.validResultsHandler(event -> {
+            if (event.isRight()) {
+                page.complete(event.right().getValue());
+            } else {
+                page.fail(event.left().getValue());
+            }
+        }));
+        return page.future().compose(results -> {
+            final List<JsonObject> pads = new ArrayList<>();
+            for (final Object o : results) {
+                if (o instanceof JsonObject) pads.add((JsonObject) o);
+            }
+            return BoundedWorkQueue.forEach(pads, parallelism, pad -> check(pad, now)).compose(v -> {
+                explorerPlugin.flushNotifications();
+                // Keep going while pads are due, every checked pad leaves the selection
+                return pads.size() >= batchSize ? nextBatch() : Future.succeededFuture();
+            });
+        });
+    }
+
+    private Future<Void> check(final JsonObject pad, final long now) {
+        return claim(pad).compose(claimed -> {
+            if (!claimed) {
+                skipped.incrementAndGet();
+                return Future.succeededFuture();
+            }
+            return checkClaimed(pad, now);
+        }, th -> {
+            log.error("[PadContentIndexer] Could not claim pad " + pad.getString("_id") + " : " + th.getMessage());
+            return Future.succeededFuture();
+        });
+    }
+
+    /**
+     * Take the pad for this node: its check date is moved forward only if it did not change since the pad was
+     * read, so that a pad selected by several nodes is checked once.
+     * @return true if the pad was taken
+     */
+    private Future<Boolean> claim(final JsonObject pad) {
+        final Promise<Boolean> promise = Promise.promise();
+        final Object previous = pad.getValue("contentCheckedAt");
+        final JsonObject query = new JsonObject().put("_id", pad.getString("_id"))
+                .put("contentCheckedAt", previous != null ? previous : new JsonObject().put("$exists", false));
+        final MongoUpdateBuilder modifier = new MongoUpdateBuilder().set("contentCheckedAt", System.currentTimeMillis());
+        mongo.update(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, query, modifier.build(), event -> {
+            final JsonObject body = event.body();
+            if ("ok".equals(body.getString("status"))) {
+                promise.complete(body.getInteger("number", 0) > 0);
+            } else {
+                promise.fail(body.getString("message", ""));
+            }
+        });
+        return promise.future();
+    }
+
+    private Future<Void> checkClaimed(final JsonObject pad, final long now) {
+        checked.incrementAndGet();
+        final EPLiteClient client = getClient(pad);
+        if (client == null || pad.getString("epName") == null) {
+            return markChecked(pad, new MongoUpdateBuilder());
+        }
+        final String padId = pad.getString("epName");
+        final MongoUpdateBuilder checkedModifier = new MongoUpdateBuilder();
+        return readOnlyId(client, pad, checkedModifier)
+                .compose(v -> call(handler -> client.getRevisionsCount(padId, handler))).compose(revisionsResult -> {
+            final Long revisions = revisionsResult.getLong("revisions");
+            if (revisions == null || revisions.equals(pad.getLong("epRevisions"))) {
+                return markChecked(pad, checkedModifier);
+            }
+            final Future<JsonObject> text = call(handler -> client.getText(padId, handler));
+            // The author count is optional, a failure keeps the previous value
+            final Future<JsonObject> authors = call(handler -> client.listAuthorsOfPad(padId, handler))
+                    .otherwise((JsonObject) null);
+            return text.compose(textResult -> authors.compose(authorsResult -> {
+                final String rawText = textResult.getString("text", "");
+                final String contentText = summarize(rawText, maxLength);
+                final MongoUpdateBuilder modifier = checkedModifier
+                        .set("contentText", contentText)
+                        .set("excerpt", summarize(rawText, excerptLength))
+                        .set("charCount", rawText.trim().length())
+                        .set("epRevisions", revisions);
+                if (authorsResult != null) {
+                    modifier.set("authorCount", authorsResult.getJsonArray("authorIDs", new JsonArray()).size());
+                }
+                return markChecked(pad, modifier).onSuccess(v -> {
+                    indexed.incrementAndGet();
+                    final Optional<UserInfos> owner = explorerPlugin.getCreatorForModel(pad);
+                    if (owner.isPresent()) {
+                        final JsonObject source = pad.copy().put("contentText", contentText).put("version", now);
+                        explorerPlugin.bufferUpsert(owner.get(), source);
+                    }
+                });
+            }));
+        }).recover(th -> {
+            failures.incrementAndGet();
+            log.warn("[PadContentIndexer] Could not index pad " + pad.getString("_id") + " : " + th.getMessage());
+            // Do not retry before the next debounce interval
+            return markChecked(pad, new MongoUpdateBuilder());
+        });
+    }
+
+    /**
+     * Store the read-only id of the pad, tagged with the pad name, so that the list does not ask Etherpad for it.
+     */
+    private Future<Void> readOnlyId(final EPLiteClient client, final JsonObject pad, final MongoUpdateBuilder modifier) {
+        final String padId = pad.getString("epName");
+        if (EtherpadHelper.cachedReadOnlyId(pad) != null) {
+            return Future.succeededFuture();
+        }
+        return call(handler -> client.getReadOnlyID(padId, handler)).map(res -> {
+            modifier.set(EtherpadHelper.READ_ONLY_FIELD, new JsonObject()
+                    .put("pad", padId)
+                    .put("id", res.getString("readOnlyID")));
+            return (Void) null;
+        }).otherwiseEmpty();
+    }
+
+    private Future<Void> markChecked(final JsonObject pad, final MongoUpdateBuilder modifier) {
+        final Promise<Void> promise = Promise.promise();
+        modifier.set("contentCheckedAt", System.currentTimeMillis());
+        mongo.update(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, new JsonObject().put("_id", pad.getString("_id")),
+                modifier.build(), MongoDbResult.validActionResultHandler(event -> {
+            if (event.isRight()) {
+                promise.complete();
+            } else {
+                promise.fail(event.left().getValue());
+            }
+        }));
+        return promise.future().compose(v -> clearDirty(pad));
+    }
+
+    /**
+     * Clear the flag set by the Etherpad hooks, unless an edition was reported since the pad was read.
+     */
+    private Future<Void> clearDirty(final JsonObject pad) {
+        if (!pad.getBoolean(EtherpadActivity.CONTENT_DIRTY, false)) {
+            return Future.succeededFuture();
+        }
+        final Promise<Void> promise = Promise.promise();
+        final JsonObject query = new JsonObject().put("_id", pad.getString("_id"))
+                .put(EtherpadActivity.LAST_EDITED, pad.getLong(EtherpadActivity.LAST_EDITED));
+        final MongoUpdateBuilder modifier = new MongoUpdateBuilder().unset(EtherpadActivity.CONTENT_DIRTY);
+        mongo.update(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, query, modifier.build(),
+                MongoDbResult.validActionResultHandler(event -> {
+            if (event.isLeft()) {
+                // The pad stays selected and is checked again at the next debounce interval
+                log.error("[PadContentIndexer] Could not clear the dirty flag of pad " + pad.getString("_id") + " : " + event.left().getValue());
+            }
+            promise.complete();
+        }));
+        return promise.future();
+    }
+
+    /**
+     * Pads which do not know their backend yet are only resolved when there is a single backend; the
+     * not using pad task tags them with their domain.
+     */
+    private EPLiteClient getClient(final JsonObject pad) {
+        final String domain = pad.getString("epDomain");
+        if (domain != null) {
+            return clientByDomain.get(domain);
+        }
+        return clientByDomain.size() == 1 ? clientByDomain.values().iterator().next() : null;
+    }
+
+    /**
+     * Collapse the whitespaces and cut the text on a word boundary.
+     */
+    private static String summarize(final String text, final int maxLength) {
+        final String normalized = text.replaceAll("\\s+", " ").trim();
+        if (normalized.length() <= maxLength) {
+            return normalized;
+        }
+        final int lastSpace = normalized.lastIndexOf(' ', maxLength);
+        return normalized.substring(0, lastSpace > maxLength / 2 ? lastSpace : maxLength);
+    }
+
+    private static Future<JsonObject> call(final Handler<Handler<JsonObject>> etherpadCall) {
+        final Promise<JsonObject> promise = Promise.promise();
+        etherpadCall.handle(res -> {
+            if (res != null && "ok".equals(res.getString("status"))) {
+                promise.complete(res);
+            } else {
+                promise.fail(res != null ? res.getString("message", "") : "no response");
+            }
+        });
+        return promise.future();
+    }
+}
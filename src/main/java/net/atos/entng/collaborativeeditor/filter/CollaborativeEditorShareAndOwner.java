@@ -6,36 +6,28 @@ import fr.wseduc.webutils.http.Binding;
 import io.vertx.core.Handler;
 import io.vertx.core.http.HttpServerRequest;
 import net.atos.entng.collaborativeeditor.CollaborativeEditor;
+import net.atos.entng.collaborativeeditor.helpers.PadArchive;
+import net.atos.entng.collaborativeeditor.helpers.PadVisibility;
 import org.bson.conversions.Bson;
 import org.entcore.common.http.filter.MongoAppFilter;
 import org.entcore.common.http.filter.ResourcesProvider;
 import org.entcore.common.user.UserInfos;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class CollaborativeEditorShareAndOwner implements ResourcesProvider {
     public void authorize(HttpServerRequest request, Binding binding, UserInfos user, Handler<Boolean> handler) {
         // Get the id of the pad from the request
         String id = request.params().get("id");
         if (id != null && !id.trim().isEmpty()) {
-            List<Bson> groups = new ArrayList();
             // Get the shared method name from the request
             String sharedMethod = binding.getServiceMethod().replaceAll("\\.", "-");
-            // Filter by userId having the sharedMethod set to true
-            groups.add(Filters.and(new Bson[]{Filters.eq("userId", user.getUserId()), Filters.eq(sharedMethod, true)}));
-            // Filter by groupId having the sharedMethod set to true
-            for(final String groupdId : user.getGroupsIds()){
-                groups.add(Filters.and(new Bson[]{Filters.eq("groupId", groupdId), Filters.and(new Bson[]{Filters.eq(sharedMethod, true)})}));
-            }
-            // Filter by the pad (id OR epName) AND (the owner OR the sharedMethod set to true by group OR the sharedMethod set to true by user))
-            Bson query = Filters.and(new Bson[]{
-                    Filters.or(new Bson[]{ Filters.eq("_id", id), Filters.eq("epName", id) }),
-                    Filters.or(new Bson[]{
-                            Filters.eq("owner.userId", user.getUserId()),
-                            Filters.elemMatch("shared", Filters.or(groups))
-                    })
-            });
+            // Filter by the pad (id or pad name, never both so that the lookup uses the indexes of one kind;
+            // a pad name may be a former name of a rehydrated pad)
+            // AND (the owner OR the sharedMethod given to the user or to one of their groups), through visibleTo
+            // or through the owner and shares themselves
+            Bson query = Filters.and(
+                    isPadName(id) ? Filters.or(Filters.eq("epName", id), Filters.eq(PadArchive.ALIASES, id)) : Filters.eq("_id", id),
+                    PadVisibility.grantedFilter(user, sharedMethod)
+            );
             // Execute the query and expect 1 result
             MongoAppFilter.executeCountQuery(request, CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, MongoQueryBuilder.build(query), 1, handler);
         } else {
@@ -44,4 +36,13 @@ public class CollaborativeEditorShareAndOwner implements ResourcesProvider {
         }
 
     }
+
+    /**
+     * Etherpad group pads are named "g.&lt;groupId&gt;$&lt;padName&gt;", document ids are ObjectIds or UUIDs.
+     * @param id id given in the request
+     * @return true if the id is an Etherpad pad name
+     */
+    static boolean isPadName(final String id) {
+        return id.startsWith("g.") && id.indexOf('$') > 0;
+    }
 }
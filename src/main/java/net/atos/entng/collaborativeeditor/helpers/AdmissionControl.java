@@ -0,0 +1,216 @@
+package net.atos.entng.collaborativeeditor.helpers;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket admission of the routes which hit Etherpad on every call (session, open, retrieve, embed, create).
+ * A request takes one token from the bucket of its user, then one from the bucket of its Etherpad domain.
+ * An empty user bucket answers 429 and an empty domain bucket 503, both with a Retry-After, instead of
+ * letting the request queue on the backend until it times out. Buckets are per node: the domain rate is the
+ * share of the backend capacity given to each node.
+ */
+public class AdmissionControl implements Handler<Long> {
+
+    public static final int TOO_MANY_REQUESTS = 429;
+    public static final int SERVICE_UNAVAILABLE = 503;
+    private static final int WINDOW_SECONDS = 60;
+
+    private final boolean enabled;
+    private final double userBurst;
+    private final double userRate;
+    private final double domainBurst;
+    private final double domainRate;
+    private final Map<String, Bucket> userBuckets = new ConcurrentHashMap<>();
+    private final Map<String, Bucket> domainBuckets = new ConcurrentHashMap<>();
+    private final Map<String, RouteCounters> counters = new ConcurrentHashMap<>();
+    private final Window admittedWindow = new Window();
+    private final Window shedWindow = new Window();
+
+    public AdmissionControl(final Vertx vertx, final JsonObject config) {
+        this.enabled = config.getBoolean("admission-enabled", true);
+        this.userBurst = Math.max(1d, config.getDouble("admission-user-burst", 20d));
+        this.userRate = config.getDouble("admission-user-rate", 2d);
+        this.domainBurst = Math.max(1d, config.getDouble("admission-domain-burst", 500d));
+        this.domainRate = config.getDouble("admission-domain-rate", 100d);
+        if (enabled) {
+            vertx.setPeriodic(WINDOW_SECONDS * 1000L, this);
+        }
+    }
+
+    /**
+     * Take the tokens of a request.
+     * @param route route name, for the metrics
+     * @param userId user id, null for an anonymous request
+     * @param domain Etherpad domain of the request
+     * @return the decision, with the status to answer and the delay to advertise when refused
+     */
+    public Decision admit(final String route, final String userId, final String domain) {
+        final RouteCounters routeCounters = counters.computeIfAbsent(route, k -> new RouteCounters());
+        if (!enabled) {
+            routeCounters.admitted.incrementAndGet();
+            return Decision.ADMITTED;
+        }
+        final long now = System.currentTimeMillis();
+        final Bucket user = userId != null ? userBuckets.computeIfAbsent(userId, k -> new Bucket(userBurst, userRate, now)) : null;
+        final long userWait = user != null ? user.take(now) : 0L;
+        if (userWait > 0L) {
+            routeCounters.shedUser.incrementAndGet();
+            shedWindow.add(now);
+            return new Decision(TOO_MANY_REQUESTS, userWait);
+        }
+        final Bucket backend = domainBuckets.computeIfAbsent(domain != null ? domain : "", k -> new Bucket(domainBurst, domainRate, now));
+        final long domainWait = backend.take(now);
+        if (domainWait > 0L) {
+            // The user is not charged for the overload of the backend
+            if (user != null) {
+                user.refund();
+            }
+            routeCounters.shedBackend.incrementAndGet();
+            shedWindow.add(now);
+            return new Decision(SERVICE_UNAVAILABLE, domainWait);
+        }
+        routeCounters.admitted.incrementAndGet();
+        admittedWindow.add(now);
+        return Decision.ADMITTED;
+    }
+
+    /**
+     * @return counters per route, and the shed rate of the last minute
+     */
+    public JsonObject status() {
+        final long now = System.currentTimeMillis();
+        final long admitted = admittedWindow.sum(now);
+        final long shed = shedWindow.sum(now);
+        final JsonObject routes = new JsonObject();
+        for (final Map.Entry<String, RouteCounters> route : counters.entrySet()) {
+            routes.put(route.getKey(), new JsonObject()
+                    .put("admitted", route.getValue().admitted.get())
+                    .put("shedUser", route.getValue().shedUser.get())
+                    .put("shedBackend", route.getValue().shedBackend.get()));
+        }
+        return new JsonObject()
+                .put("enabled", enabled)
+                .put("users", userBuckets.size())
+                .put("domains", domainBuckets.size())
+                .put("routes", routes)
+                .put("lastMinute", new JsonObject()
+                        .put("admitted", admitted)
+                        .put("shed", shed)
+                        .put("shedRate", admitted + shed == 0L ? 0d : Math.round(shed * 10000d / (admitted + shed)) / 10000d));
+    }
+
+    @Override
+    public void handle(Long timerId) {
+        // A full bucket holds no state worth keeping, it is recreated full on the next request
+        final long now = System.currentTimeMillis();
+        userBuckets.values().removeIf(bucket -> bucket.isFull(now));
+    }
+
+    /**
+     * Outcome of an admission.
+     */
+    public static class Decision {
+        private static final Decision ADMITTED = new Decision(0, 0L);
+        public final int status;
+        public final long retryAfterMillis;
+
+        private Decision(final int status, final long retryAfterMillis) {
+            this.status = status;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        public boolean isAdmitted() {
+            return status == 0;
+        }
+
+        /**
+         * @return the Retry-After header value, in whole seconds
+         */
+        public long retryAfterSeconds() {
+            return Math.max(1L, (retryAfterMillis + 999L) / 1000L);
+        }
+    }
+
+    private static class Bucket {
+        private final double capacity;
+        private final double rate;
+        private double tokens;
+        private long updatedAt;
+
+        private Bucket(final double capacity, final double rate, final long now) {
+            this.capacity = capacity;
+            this.rate = rate;
+            this.tokens = capacity;
+            this.updatedAt = now;
+        }
+
+        /**
+         * @return 0 if a token was taken, otherwise the milliseconds until the next one
+         */
+        private synchronized long take(final long now) {
+            refill(now);
+            if (tokens >= 1d) {
+                tokens -= 1d;
+                return 0L;
+            }
+            return rate > 0d ? (long) Math.ceil((1d - tokens) * 1000d / rate) : WINDOW_SECONDS * 1000L;
+        }
+
+        private synchronized void refund() {
+            tokens = Math.min(capacity, tokens + 1d);
+        }
+
+        private synchronized boolean isFull(final long now) {
+            refill(now);
+            return tokens >= capacity;
+        }
+
+        private void refill(final long now) {
+            if (now > updatedAt) {
+                tokens = Math.min(capacity, tokens + (now - updatedAt) * rate / 1000d);
+                updatedAt = now;
+            }
+        }
+    }
+
+    private static class RouteCounters {
+        private final AtomicLong admitted = new AtomicLong();
+        private final AtomicLong shedUser = new AtomicLong();
+        private final AtomicLong shedBackend = new AtomicLong();
+    }
+
+    /**
+     * Events of the last minute, counted in one second slots.
+     */
+    private static class Window {
+        private final long[] counts = new long[WINDOW_SECONDS];
+        private final long[] seconds = new long[WINDOW_SECONDS];
+
+        private synchronized void add(final long now) {
+            final long second = now / 1000L;
+            final int slot = (int) (second % WINDOW_SECONDS);
+            if (seconds[slot] != second) {
+                seconds[slot] = second;
+                counts[slot] = 0L;
+            }
+            counts[slot]++;
+        }
+
+        private synchronized long sum(final long now) {
+            final long second = now / 1000L;
+            long sum = 0L;
+            for (int i = 0; i < WINDOW_SECONDS; i++) {
+                if (second - seconds[i] < WINDOW_SECONDS) {
+                    sum += counts[i];
+                }
+            }
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package net.atos.entng.collaborativeeditor.helpers;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Runs an asynchronous task over a list of items with at most <code>parallelism</code> tasks in flight.
+ * Each task is responsible for its own error accounting: a failed task does not stop the queue, and the
+ * returned future always succeeds once every item has been processed.
+ */
+public final class BoundedWorkQueue {
+
+    private BoundedWorkQueue() {
+    }
+
+    /**
+     * Apply the task to every item, keeping at most parallelism calls pending at the same time.
+     * @param items items to process
+     * @param parallelism maximum number of tasks in flight
+     * @param task asynchronous task to apply on each item
+     * @return a future completed when all the items have been processed
+     */
+    public static <T> Future<Void> forEach(final List<T> items, final int parallelism, final Function<T, Future<?>> task) {
+        final Promise<Void> promise = Promise.promise();
+        if (items == null || items.isEmpty()) {
+            promise.complete();
+            return promise.future();
+        }
+        final AtomicInteger next = new AtomicInteger(0);
+        final AtomicInteger done = new AtomicInteger(0);
+        final int workers = Math.max(1, Math.min(parallelism, items.size()));
+        for (int i = 0; i < workers; i++) {
+            pump(items, next, done, task, promise);
+        }
+        return promise.future();
+    }
+
+    private static <T> void pump(final List<T> items, final AtomicInteger next, final AtomicInteger done,
+                                 final Function<T, Future<?>> task, final Promise<Void> promise) {
+        final int index = next.getAndIncrement();
+        if (index >= items.size()) {
+            return;
+        }
+        Future<?> future;
+        try {
+            future = task.apply(items.get(index));
+        } catch (RuntimeException e) {
+            future = Future.failedFuture(e);
+        }
+        if (future == null) {
+            future = Future.succeededFuture();
+        }
+        future.onComplete(ar -> {
+            if (done.incrementAndGet() == items.size()) {
+                promise.tryComplete();
+            } else {
+                pump(items, next, done, task, promise);
+            }
+        });
+    }
+}
@@ -0,0 +1,238 @@
+package net.atos.entng.collaborativeeditor.helpers;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.mongo.BulkOperation;
+import io.vertx.ext.mongo.BulkWriteOptions;
+import io.vertx.ext.mongo.MongoClient;
+import net.atos.entng.collaborativeeditor.CollaborativeEditor;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Activity of the pads as reported by the Etherpad hooks (padUpdate, padCreate, padRemove, userJoin, userLeave).
+ * The events are signed with "etherpad-webhook-secret" and folded per pad in memory; every
+ * "etherpad-webhook-flush-interval" the pending state is written with one bulk write: "epLastEdited",
+ * "epActiveUsers", the "contentDirty" flag read by the content indexer, and "epMissing" for removed pads.
+ * Once enabled, the stored state replaces the getLastEdited and getRevisionsCount polling.
+ */
+public class EtherpadActivity implements Handler<Long> {
+
+    public static final String SIGNATURE_HEADER = "X-Etherpad-Signature";
+    public static final String TIMESTAMP_HEADER = "X-Etherpad-Timestamp";
+    public static final String LAST_EDITED = "epLastEdited";
+    public static final String ACTIVE_USERS = "epActiveUsers";
+    public static final String CONTENT_DIRTY = "contentDirty";
+
+    private static final Set<String> EVENTS = new HashSet<>(Arrays.asList(
+            "padUpdate", "padCreate", "padRemove", "userJoin", "userLeave"));
+    private static final Logger log = LoggerFactory.getLogger(EtherpadActivity.class);
+    private final MongoClient mongoClient;
+    private final String secret;
+    private final long maxSkew;
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public EtherpadActivity(final Vertx vertx, final MongoClient mongoClient, final JsonObject config) {
+        this.mongoClient = mongoClient;
+        this.secret = config.getString("etherpad-webhook-secret");
+        this.maxSkew = config.getLong("etherpad-webhook-max-skew", 300000L);
+        if (isEnabled(config)) {
+            vertx.setPeriodic(config.getLong("etherpad-webhook-flush-interval", 5000L), this);
+        }
+    }
+
+    /**
+     * @param config module config
+     * @return true if the pad activity comes from the Etherpad hooks
+     */
+    public static boolean isEnabled(final JsonObject config) {
+        final String secret = config.getString("etherpad-webhook-secret");
+        return secret != null && !secret.isEmpty();
+    }
+
+    /**
+     * Check the signature of a hook call: hex HMAC-SHA256 of "&lt;timestamp&gt;.&lt;body&gt;" with the shared secret.
+     * Calls older than "etherpad-webhook-max-skew" are refused so that a captured call cannot be replayed later.
+     * @param timestamp value of the timestamp header, in milliseconds
+     * @param signature value of the signature header
+     * @param body raw request body
+     * @return true if the call comes from a backend knowing the secret
+     */
+    public boolean verify(final String timestamp, final String signature, final Buffer body) {
+        if (secret == null || secret.isEmpty() || timestamp == null || signature == null) {
+            return false;
+        }
+        try {
+            if (Math.abs(System.currentTimeMillis() - Long.parseLong(timestamp)) > maxSkew) {
+                return false;
+            }
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            mac.update((timestamp + ".").getBytes(StandardCharsets.UTF_8));
+            final byte[] expected = toHex(mac.doFinal(body.getBytes())).getBytes(StandardCharsets.UTF_8);
+            final String given = signature.trim().toLowerCase();
+            final String hex = given.startsWith("sha256=") ? given.substring("sha256=".length()) : given;
+            return MessageDigest.isEqual(expected, hex.getBytes(StandardCharsets.UTF_8));
+        } catch (NumberFormatException | GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Fold events into the pending state of their pads.
+     * @param events events holding "event", "padId", and optionally "timestamp" and "userCount"
+     * @return number of events accepted
+     */
+    public int ingest(final JsonArray events) {
+        int accepted = 0;
+        for (final Object o : events) {
+            if (!(o instanceof JsonObject)) {
+                rejected.incrementAndGet();
+                continue;
+            }
+            final JsonObject event = (JsonObject) o;
+            final String padId = event.getString("padId");
+            final String type = event.getString("event");
+            if (padId == null || !EVENTS.contains(type)) {
+                rejected.incrementAndGet();
+                continue;
+            }
+            final long timestamp = event.getLong("timestamp", System.currentTimeMillis());
+            final Integer userCount = event.getInteger("userCount");
+            // Merged under the lock of the key, a concurrent flush takes the state before or after, never during
+            pending.compute(padId, (k, state) -> {
+                final Pending merged = state != null ? state : new Pending();
+                merged.apply(type, timestamp, userCount);
+                return merged;
+            });
+            received.incrementAndGet();
+            accepted++;
+        }
+        return accepted;
+    }
+
+    /**
+     * @return pending pads and counters of this node
+     */
+    public JsonObject status() {
+        return new JsonObject()
+                .put("enabled", secret != null && !secret.isEmpty())
+                .put("pending", pending.size())
+                .put("received", received.get())
+                .put("rejected", rejected.get())
+                .put("written", written.get())
+                .put("failures", failures.get());
+    }
+
+    @Override
+    public void handle(Long timerId) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        final List<BulkOperation> operations = new ArrayList<>();
+        for (final String padId : new ArrayList<>(pending.keySet())) {
+            final Pending state = pending.remove(padId);
+            final JsonObject update = state != null ? toUpdate(state) : null;
+            if (update != null && !update.isEmpty()) {
+                // Archived pads are deleted from Etherpad on purpose, their removal is not news
+                final JsonObject filter = new JsonObject().put("epName", padId)
+                        .put(PadArchive.FIELD, new JsonObject().put("$ne", true));
+                operations.add(BulkOperation.createUpdate(filter, update).setMulti(false).setUpsert(false));
+            }
+        }
+        if (operations.isEmpty()) {
+            return;
+        }
+        mongoClient.bulkWriteWithOptions(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, operations,
+                new BulkWriteOptions(false), ar -> {
+            if (ar.failed()) {
+                failures.addAndGet(operations.size());
+                log.error("[EtherpadActivity] Could not store the activity of " + operations.size() + " pads", ar.cause());
+            } else {
+                written.addAndGet(ar.result().getModifiedCount());
+            }
+        });
+    }
+
+    private JsonObject toUpdate(final Pending state) {
+        final JsonObject set = new JsonObject();
+        final JsonObject update = new JsonObject();
+        if (state.lastEdited > 0L) {
+            update.put("$max", new JsonObject().put(LAST_EDITED, state.lastEdited));
+            set.put(CONTENT_DIRTY, true);
+        }
+        if (state.usersAt > 0L) {
+            set.put(ACTIVE_USERS, state.users);
+        }
+        if (state.removed) {
+            // Same flag as the reconciler, the pad is no longer asked to Etherpad
+            set.put("epMissing", true).put(ACTIVE_USERS, 0);
+        } else if (state.created) {
+            update.put("$unset", new JsonObject().put("epMissing", ""));
+        }
+        if (!set.isEmpty()) {
+            update.put("$set", set);
+        }
+        return update;
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static class Pending {
+        private long lastEdited;
+        private int users;
+        private long usersAt;
+        private boolean created;
+        private boolean removed;
+
+        private void apply(final String type, final long timestamp, final Integer userCount) {
+            switch (type) {
+                case "padUpdate":
+                    lastEdited = Math.max(lastEdited, timestamp);
+                    break;
+                case "padCreate":
+                    lastEdited = Math.max(lastEdited, timestamp);
+                    removed = false;
+                    created = true;
+                    break;
+                case "padRemove":
+                    removed = true;
+                    created = false;
+                    break;
+                default:
+                    // userJoin and userLeave carry the count computed by Etherpad, a lost event leaves no drift
+                    if (userCount != null && timestamp >= usersAt) {
+                        users = userCount;
+                        usersAt = timestamp;
+                    }
+            }
+        }
+    }
+}
@@ -28,10 +28,15 @@ import fr.wseduc.webutils.Utils;
 import fr.wseduc.webutils.http.Renders;
 import fr.wseduc.webutils.request.CookieHelper;
 import fr.wseduc.webutils.request.RequestUtils;
+import io.vertx.core.CompositeFuture;
 import io.vertx.core.Future;
 import io.vertx.core.Promise;
 import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.ext.mongo.FindOptions;
 import net.atos.entng.collaborativeeditor.CollaborativeEditor;
+import net.atos.entng.collaborativeeditor.cron.EtherpadDeletionOutbox;
+import net.atos.entng.collaborativeeditor.cron.PadPool;
 import net.atos.entng.collaborativeeditor.explorer.CollaborativeEditorExplorerPlugin;
 import org.bson.conversions.Bson;
 import org.entcore.broker.api.dto.resources.ResourcesDeletedDTO;
@@ -63,6 +68,11 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -70,15 +80,36 @@ import static org.entcore.common.http.response.DefaultResponseHandler.notEmptyRe
 
 public class EtherpadHelper extends MongoDbControllerHelper {
     public static final String RESOURCE_NAME = "pad";
+    /**
+     * Share key of the right allowing to delete a pad
+     */
+    public static final String MANAGER_RIGHT = "net-atos-entng-collaborativeeditor-controllers-CollaborativeEditorController|delete";
+    /**
+     * Share key of the right allowing to read a pad
+     */
+    public static final String READ_RIGHT = "net-atos-entng-collaborativeeditor-controllers-CollaborativeEditorController|retrieve";
+    /**
+     * Workflow action allowing to create a pad
+     */
+    public static final String CREATE_ACTION = "net.atos.entng.collaborativeeditor.controllers.CollaborativeEditorController|create";
+    /**
+     * Read-only id of the pad, tagged with the pad name it belongs to
+     */
+    public static final String READ_ONLY_FIELD = "epReadOnly";
     /**
      * Class logger
      */
     private static final Logger log = LoggerFactory.getLogger(EtherpadHelper.class);
+    /**
+     * Lifetime of the Etherpad sessions, in seconds; the session cookie expires with the session
+     */
+    private static final long SESSION_DURATION = 60L * 60L;
+    private static final long SESSION_REUSE_MARGIN = 5L * 60L;
 
     /**
      * Etherpad client
      */
-    private final Map<String,EPLiteClient> clientByDomain = new HashMap();
+    private final Map<String,EPLiteClient> clientByDomain = new LinkedHashMap<>();
 
 
     /**
@@ -91,6 +122,19 @@ public class EtherpadHelper extends MongoDbControllerHelper {
     protected final MongoDb mongo;
     protected final String collection;
     private final ResourceBrokerPublisher resourcePublisher;
+    private final long exportPadTimeout;
+    private final EtherpadDeletionOutbox deletionOutbox;
+    private final PadPool padPool;
+    private final PadArchive padArchive;
+    private final PadSnapshotCache snapshotCache;
+    private final PadPresence padPresence;
+    private final EtherpadActivity etherpadActivity;
+    private final AdmissionControl admissionControl;
+    private final MongoReadRouting readRouting;
+    /**
+     * Etherpad author ids by backend and login, authors are never deleted so they can be kept
+     */
+    private final Map<String, String> authorByLogin;
 
     /**
      * Constructor
@@ -107,12 +151,22 @@ public class EtherpadHelper extends MongoDbControllerHelper {
     public EtherpadHelper(Vertx vertx, String collection, JsonArray urlByDomain, String etherpadUrl, String etherpadApiKey
             , Boolean trustAll, String domain, final JsonObject config, final CollaborativeEditorExplorerPlugin explorerPlugin) {
         super(collection);
+        this.vertx = vertx;
         this.mongo = MongoDb.getInstance();
         this.collection = collection;
         final EventStore eventStore = EventStoreFactory.getFactory().getEventStore(CollaborativeEditor.class.getSimpleName());
         this.eventHelper = new EventHelper(eventStore);
         this.etherpadCrudService = new MongoDbCrudService(collection);
         this.explorerPlugin = explorerPlugin;
+        this.exportPadTimeout = config.getLong("export-pad-timeout", 30000L);
+        this.readRouting = new MongoReadRouting(vertx, explorerPlugin.getMongoClient(), config);
+        final int authorCacheSize = config.getInteger("author-cache-size", 10000);
+        this.authorByLogin = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > authorCacheSize;
+            }
+        };
 
         // Initialize resource publisher for deletion notifications
         this.resourcePublisher = BrokerPublisherFactory.create(
@@ -140,7 +194,8 @@ public class EtherpadHelper extends MongoDbControllerHelper {
                     log.error("[Collaborative Editor] Error : Module property 'etherpad-url' must be defined for " + padDomain);
                 }
 
-                clientByDomain.put(padDomain,  new EPLiteClient(vertx, padUrl, etherpadApiKey, trustAll, config));
+                final String apiVersion = conf.getString("etherpad-api-version", config.getString("etherpad-api-version", EPLiteClient.DEFAULT_API_VERSION));
+                clientByDomain.put(padDomain,  new EPLiteClient(vertx, padUrl, etherpadApiKey, apiVersion, trustAll, config));
             }
         } else {
             if (StringUtils.isEmpty(etherpadUrl)) {
@@ -151,8 +206,21 @@ public class EtherpadHelper extends MongoDbControllerHelper {
                 log.error("[Collaborative Editor] Error : Module property 'etherpad-domain' must be defined");
             }
 
-            clientByDomain.put(domain,  new EPLiteClient(vertx, etherpadUrl, etherpadApiKey, trustAll, config));
+            final String apiVersion = config.getString("etherpad-api-version", EPLiteClient.DEFAULT_API_VERSION);
+            clientByDomain.put(domain,  new EPLiteClient(vertx, etherpadUrl, etherpadApiKey, apiVersion, trustAll, config));
+        }
+
+        if (config.getBoolean("etherpad-api-negotiation", true)) {
+            negotiateApiVersions();
         }
+
+        this.deletionOutbox = new EtherpadDeletionOutbox(vertx, explorerPlugin.getMongoClient(), Collections.unmodifiableMap(clientByDomain), config);
+        this.padPool = new PadPool(vertx, explorerPlugin.getMongoClient(), Collections.unmodifiableMap(clientByDomain), deletionOutbox, config);
+        this.snapshotCache = new PadSnapshotCache(config);
+        this.padPresence = new PadPresence(vertx, Collections.unmodifiableMap(clientByDomain), config);
+        this.etherpadActivity = new EtherpadActivity(vertx, explorerPlugin.getMongoClient(), config);
+        this.admissionControl = new AdmissionControl(vertx, config);
+        this.padArchive = new PadArchive(vertx, explorerPlugin.getMongoClient(), Collections.unmodifiableMap(clientByDomain), deletionOutbox);
     }
 
     @Override
@@ -161,14 +229,17 @@ public class EtherpadHelper extends MongoDbControllerHelper {
             if (user != null) {
                 final String text = I18n.getInstance().translate("collaborativeeditor.welcome", getHost(request), I18n.acceptLanguage(request));
 
-                createPad(getAuthDomain(request), text, event -> {
+                acquirePad(getAuthDomain(request), text, event -> {
                     if (!"ok".equals(event.getString("status"))) {
                         Renders.renderError(request, event);
                     } else {
                         RequestUtils.bodyToJson(request, padData -> {
                             padData.put("epName", event.getString("epName"));
                             padData.put("epGroupID", event.getString("epGroupID"));
+                            padData.put("epDomain", event.getString("epDomain"));
                             padData.put("locale", I18n.acceptLanguage(request));
+                            padData.put(PadVisibility.FIELD, PadVisibility.compute(new JsonObject()
+                                    .put("owner", new JsonObject().put("userId", user.getUserId()))));
 
                             etherpadCrudService.create(padData, user, res -> {
                                 if (res.isRight()) {
@@ -182,9 +253,12 @@ public class EtherpadHelper extends MongoDbControllerHelper {
                                             .put("version", System.currentTimeMillis());
 
                                     final Optional<Number> folderId = Optional.ofNullable(explorerPad.getNumber("folder"));
-                                    explorerPlugin.notifyUpsert(user, explorerPad, folderId);
+                                    explorerPlugin.bufferUpsert(user, explorerPad, folderId);
                                     Renders.renderJson(request, mongoCreatedPad);
                                 } else {
+                                    // The pad, taken from the pool or just created, is referenced by no document
+                                    deletionOutbox.enqueue(Collections.singletonList(event), event.getString("epDomain")).onFailure(th ->
+                                        log.error("Collaborative Editor : could not queue the deletion of pad " + event.getString("epName") + " : " + th.getMessage()));
                                     Renders.renderError(request, new JsonObject().put("error", res.left().getValue()));
                                 }
                             });
@@ -198,13 +272,44 @@ public class EtherpadHelper extends MongoDbControllerHelper {
         });
     }
 
+    /**
+     * Take a pad from the pool of the backend, or create one when the pool is empty. A pooled pad already holds the
+     * welcome text of the pool locale; another text is set before the pad is handed over, never behind its user.
+     * @param host request host
+     * @param text initial text of the pad
+     * @param handler receives the status, epName, epGroupID and epDomain of the pad
+     */
+    private void acquirePad(final String host, final String text, final Handler<JsonObject> handler) {
+        final String domain = getAuthDomain(host);
+        padPool.take(domain).onComplete(ar -> {
+            final JsonObject pooled = ar.succeeded() ? ar.result() : null;
+            if (pooled == null) {
+                createPad(host, text, handler);
+                return;
+            }
+            final JsonObject pad = pooled.copy().put("status", "ok");
+            pad.remove("text");
+            if (text == null || text.equals(pooled.getString("text"))) {
+                handler.handle(pad);
+                return;
+            }
+            clientByDomain.get(domain).setText(pooled.getString("epName"), text, event -> {
+                if (!"ok".equals(event.getString("status"))) {
+                    log.warn("Collaborative Editor : could not set the text of pooled pad " + pooled.getString("epName") + " : " + event.getString("message"));
+                }
+                handler.handle(pad);
+            });
+        });
+    }
+
     public void createPad(final String host, final Handler<JsonObject> handler) {
         createPad(host, null, handler);
     }
 
     public void createPad(final String host, final String text, final Handler<JsonObject> handler) {
         final String randomName = UUID.randomUUID().toString();
-        final EPLiteClient client = clientByDomain.get(getAuthDomain(host));
+        final String domain = getAuthDomain(host);
+        final EPLiteClient client = clientByDomain.get(domain);
         if(client == null)
         {
             handler.handle(new JsonObject().put("status", "error").put("message", "no.pad.client"));
@@ -231,6 +336,7 @@ public class EtherpadHelper extends MongoDbControllerHelper {
                                     .put("status", "ok")
                                     .put("epName", padName)
                                     .put("epGroupID", groupID)
+                                    .put("epDomain", domain)
                                 );
                             } else {
                                 handler.handle(event);
@@ -244,6 +350,90 @@ public class EtherpadHelper extends MongoDbControllerHelper {
         });
     }
 
+    /**
+     * Use the latest API version offered by every backend, so that the newer methods are available.
+     */
+    private void negotiateApiVersions() {
+        for (final Map.Entry<String, EPLiteClient> backend : clientByDomain.entrySet()) {
+            backend.getValue().negotiateApiVersion(res -> {
+                if ("ok".equals(res.getString("status"))) {
+                    log.info("[Collaborative Editor] Etherpad API " + res.getString("apiVersion") + " used for " + backend.getKey()
+                            + " (server offers " + res.getString("serverVersion") + ")");
+                } else {
+                    log.warn("[Collaborative Editor] Could not detect the Etherpad API version of " + backend.getKey()
+                            + ", keeping " + res.getString("apiVersion") + " : " + res.getString("message"));
+                }
+            });
+        }
+    }
+
+    /**
+     * Copy a pad into a new group of the same backend. With copyPad the content never leaves Etherpad, and the
+     * copy is checked by comparing its revision count with the one of the source; older backends get the
+     * HTML of the source set on a new pad.
+     * @param host host or domain of the backend holding the source pad
+     * @param sourceId name of the source pad
+     * @return the epName, epGroupID and epDomain of the copy
+     */
+    public Future<JsonObject> copyPad(final String host, final String sourceId) {
+        final String domain = getAuthDomain(host);
+        final EPLiteClient client = clientByDomain.get(domain);
+        if (client == null) {
+            return Future.failedFuture("no.pad.client");
+        }
+        if (!client.supports(EPLiteClient.COPY_PAD_API_VERSION)) {
+            return copyPadHTML(client, domain, sourceId);
+        }
+        return etherpadCall(handler -> client.getRevisionsCount(sourceId, handler)).compose(source ->
+            etherpadCall(client::createGroup).compose(group -> {
+                final String groupID = group.getString("groupID");
+                final String destinationId = groupID + "$" + UUID.randomUUID().toString();
+                return etherpadCall(handler -> client.copyPad(sourceId, destinationId, false, handler))
+                        .compose(copied -> etherpadCall(handler -> client.getRevisionsCount(destinationId, handler)))
+                        .compose(copy -> {
+                            // The source may have been edited meanwhile, never behind it
+                            if (copy.getLong("revisions", -1L) < source.getLong("revisions", 0L)) {
+                                return Future.<JsonObject>failedFuture("copy.incomplete");
+                            }
+                            return Future.succeededFuture(new JsonObject()
+                                    .put("epName", destinationId)
+                                    .put("epGroupID", groupID)
+                                    .put("epDomain", domain));
+                        })
+                        // Do not leak the group, the pad goes with it
+                        .recover(th -> dropCopy(groupID, domain, th));
+            }));
+    }
+
+    private Future<JsonObject> copyPadHTML(final EPLiteClient client, final String domain, final String sourceId) {
+        return etherpadCall(handler -> client.getHTML(sourceId, handler)).compose(html ->
+            etherpadCall(client::createGroup).compose(group -> {
+                final String groupID = group.getString("groupID");
+                return etherpadCall(handler -> client.createGroupPad(groupID, UUID.randomUUID().toString(), handler))
+                        .compose(pad -> etherpadCall(handler -> client.setHTML(pad.getString("padID"), html.getString("html", ""), handler))
+                                .map(v -> new JsonObject()
+                                        .put("epName", pad.getString("padID"))
+                                        .put("epGroupID", groupID)
+                                        .put("epDomain", domain)))
+                        .recover(th -> dropCopy(groupID, domain, th));
+            }));
+    }
+
+    /**
+     * Queue the deletion of the group of a failed copy in the deletion outbox, the pad goes with it.
+     * @param groupID group created for the copy
+     * @param domain backend of the group
+     * @param cause failure of the copy
+     * @return a future failed with the cause of the copy failure
+     */
+    private Future<JsonObject> dropCopy(final String groupID, final String domain, final Throwable cause) {
+        final JsonObject group = new JsonObject().put("epGroupID", groupID).put("epDomain", domain);
+        return deletionOutbox.enqueue(Collections.singletonList(group), domain)
+                .onFailure(th -> log.error("Collaborative Editor : could not queue the deletion of group " + groupID + " : " + th.getMessage()))
+                .otherwiseEmpty()
+                .compose(v -> Future.failedFuture(cause));
+    }
+
     public void setPadText(final String host, final String padId, final String text, final Handler<JsonObject> handler)
     {
         final EPLiteClient client = clientByDomain.get(getAuthDomain(host));
@@ -273,39 +463,45 @@ public class EtherpadHelper extends MongoDbControllerHelper {
                     public void handle(Either<String, JsonObject> event) {
                         if (event.isRight()) {
                             if (event.right().getValue() != null && event.right().getValue().size() > 0) {
-                                final JsonObject object = event.right().getValue();
                                 final String domain = getAuthDomain(request);
                                 final EPLiteClient client = clientByDomain.get(domain);
-                                // Create author if he doesn't exists
-                                client.createAuthorIfNotExistsFor(user.getLogin(), new Handler<JsonObject>() {
-                                    @Override
-                                    public void handle(JsonObject event) {
-                                        if ("ok".equals(event.getString("status"))) {
-                                            final String authorID = event.getString("authorID");
-                                            // Create session for the user on the pad group
-                                            Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("Europe/Paris"));
-                                            Date now = calendar.getTime();
-                                            final long validUntil = (now.getTime() + (2 * 60L * 60L * 1000L)) / 1000L;
-                                            client.createSession(object.getString("epGroupID"), authorID, validUntil, new Handler<JsonObject>() {
-                                                @Override
-                                                public void handle(JsonObject event) {
-                                                    if ("ok".equals(event.getString("status"))) {
-                                                        final String session = event.getString("sessionID");
-                                                        request.response().putHeader("Set-Cookie", "sessionID=" + session + ";max-age=" + 2 * 360 * 1000 + ";path=/;domain=" + domain);
-                                                        object.put("url", client.getPadUrl() + "/p/" + object.getString("epName"));
-                                                        object.remove("epGroupID");
-                                                        object.remove("epName");
-
-                                                        Renders.renderJson(request, object, 200);
-                                                    } else {
-                                                        Renders.renderError(request, event);
+                                padArchive.rehydrate(event.right().getValue(), domain).onComplete(rehydrated -> {
+                                    if (rehydrated.failed()) {
+                                        Renders.renderError(request, new JsonObject().put("error", "pad.rehydration.failed"));
+                                        return;
+                                    }
+                                    final JsonObject object = rehydrated.result();
+                                    // Create author if he doesn't exists
+                                    client.createAuthorIfNotExistsFor(user.getLogin(), new Handler<JsonObject>() {
+                                        @Override
+                                        public void handle(JsonObject event) {
+                                            if ("ok".equals(event.getString("status"))) {
+                                                final String authorID = event.getString("authorID");
+                                                // Create session for the user on the pad group
+                                                Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("Europe/Paris"));
+                                                Date now = calendar.getTime();
+                                                final long validUntil = now.getTime() / 1000L + 2 * SESSION_DURATION;
+                                                client.createSession(object.getString("epGroupID"), authorID, validUntil, new Handler<JsonObject>() {
+                                                    @Override
+                                                    public void handle(JsonObject event) {
+                                                        if ("ok".equals(event.getString("status"))) {
+                                                            final String session = event.getString("sessionID");
+                                                            request.response().putHeader("Set-Cookie", sessionCookie(session, 2 * SESSION_DURATION, domain));
+                                                            object.put("url", client.getPadUrl() + "/p/" + object.getString("epName"));
+                                                            object.remove("epGroupID");
+                                                            object.remove("epName");
+
+                                                            Renders.renderJson(request, object, 200);
+                                                        } else {
+                                                            Renders.renderError(request, event);
+                                                        }
                                                     }
-                                                }
-                                            });
-                                        } else {
-                                            Renders.renderError(request, event);
+                                                });
+                                            } else {
+                                                Renders.renderError(request, event);
+                                            }
                                         }
-                                    }
+                                    });
                                 });
                             } else {
                                 request.response().setStatusCode(404).end();
@@ -340,7 +536,7 @@ public class EtherpadHelper extends MongoDbControllerHelper {
 
                 final String userDisplayName = user.getUsername();
 
-                etherpadCrudService.list(v, user, new Handler<Either<String, JsonArray>>() {
+                listVisible(v, user, new Handler<Either<String, JsonArray>>() {
                     @Override
                     public void handle(Either<String, JsonArray> event) {
                         if (event.isRight()) {
@@ -349,30 +545,43 @@ public class EtherpadHelper extends MongoDbControllerHelper {
 
                             final String language = Utils.getOrElse(I18n.acceptLanguage(request), "fr", false);
 
+                            if (objects.isEmpty()) {
+                                Renders.renderJson(request, objects);
+                                return;
+                            }
+
                             for (int i=0;i<objects.size();i++) {
                                 final JsonObject jsonObject = objects.getJsonObject(i);
+                                // The indexed text is only meant for the explorer
+                                jsonObject.remove("contentText");
+                                if (jsonObject.getBoolean("epMissing", false) || jsonObject.getBoolean(PadArchive.FIELD, false)) {
+                                    // The reconciler found no pad behind this entry, or the pad is archived and only
+                                    // recreated when opened: don't ask Etherpad for it
+                                    jsonObject.remove("epName");
+                                    jsonObject.remove("epGroupID");
+                                    if (callCount.decrementAndGet() == 0) {
+                                        Renders.renderJson(request, objects);
+                                    }
+                                    continue;
+                                }
                                 final EPLiteClient client = clientByDomain.get(getAuthDomain(request));
-                                client.getReadOnlyID(jsonObject.getString("epName"), new Handler<JsonObject>() {
+                                final String cachedReadOnlyId = cachedReadOnlyId(jsonObject);
+                                if (cachedReadOnlyId != null) {
+                                    // Stored by the content indexer, no Etherpad call needed
+                                    putUrls(jsonObject, client, cachedReadOnlyId, userDisplayName, language);
+                                    if (callCount.decrementAndGet() == 0) {
+                                        Renders.renderJson(request, objects);
+                                    }
+                                    continue;
+                                }
+                                final String padName = jsonObject.getString("epName");
+                                client.getReadOnlyID(padName, new Handler<JsonObject>() {
                                     @Override
                                     public void handle(JsonObject event) {
                                         if ("ok".equals(event.getString("status"))) {
                                             final String readOnlyId = event.getString("readOnlyID");
-
-                                            try {
-                                                final String urlReadOnlyStr = client.getPadUrl() + "/p/" + readOnlyId + "?userName=" + userDisplayName + "&lang=" + language;
-                                                final URL urlReadOnly = new URL(urlReadOnlyStr);
-                                                final URI uriReadOnly = new URI(urlReadOnly.getProtocol(), urlReadOnly.getUserInfo(), urlReadOnly.getHost(), urlReadOnly.getPort(), urlReadOnly.getPath(), urlReadOnly.getQuery(), urlReadOnly.getRef());
-                                                jsonObject.put("readOnlyUrl", uriReadOnly.toASCIIString());
-
-                                                final String urlStr = client.getPadUrl() + "/p/" + jsonObject.getString("epName") + "?userName=" + userDisplayName + "&lang=" + language;
-                                                final URL url = new URL(urlStr);
-                                                final URI uri = new URI(url.getProtocol(), url.getUserInfo(), url.getHost(), url.getPort(), url.getPath(), url.getQuery(), url.getRef());
-                                                jsonObject.put("url", uri.toASCIIString());
-                                            } catch (MalformedURLException | URISyntaxException e) {
-                                                log.error("Can't generate etherpad-lite url", e);
-                                            }
-                                            jsonObject.remove("epName");
-                                            jsonObject.remove("epGroupID");
+                                            storeReadOnlyId(jsonObject.getString("_id"), padName, readOnlyId);
+                                            putUrls(jsonObject, client, readOnlyId, userDisplayName, language);
 
                                             if (callCount.decrementAndGet() == 0) {
                                                 Renders.renderJson(request, objects);
@@ -399,6 +608,371 @@ public class EtherpadHelper extends MongoDbControllerHelper {
         });
     }
 
+    /**
+     * Put the edition and read-only urls of a pad in its document, and remove the Etherpad identifiers.
+     */
+    private void putUrls(final JsonObject pad, final EPLiteClient client, final String readOnlyId,
+                         final String userDisplayName, final String language) {
+        try {
+            final String urlReadOnlyStr = client.getPadUrl() + "/p/" + readOnlyId + "?userName=" + userDisplayName + "&lang=" + language;
+            final URL urlReadOnly = new URL(urlReadOnlyStr);
+            final URI uriReadOnly = new URI(urlReadOnly.getProtocol(), urlReadOnly.getUserInfo(), urlReadOnly.getHost(), urlReadOnly.getPort(), urlReadOnly.getPath(), urlReadOnly.getQuery(), urlReadOnly.getRef());
+            pad.put("readOnlyUrl", uriReadOnly.toASCIIString());
+
+            final String urlStr = client.getPadUrl() + "/p/" + pad.getString("epName") + "?userName=" + userDisplayName + "&lang=" + language;
+            final URL url = new URL(urlStr);
+            final URI uri = new URI(url.getProtocol(), url.getUserInfo(), url.getHost(), url.getPort(), url.getPath(), url.getQuery(), url.getRef());
+            pad.put("url", uri.toASCIIString());
+        } catch (MalformedURLException | URISyntaxException e) {
+            log.error("Can't generate etherpad-lite url", e);
+        }
+        pad.remove("epName");
+        pad.remove("epGroupID");
+        pad.remove(READ_ONLY_FIELD);
+    }
+
+    /**
+     * @return the read-only id stored in the document, or null if it is missing or belongs to a previous pad name
+     */
+    public static String cachedReadOnlyId(final JsonObject pad) {
+        final JsonObject readOnly = pad.getJsonObject(READ_ONLY_FIELD);
+        if (readOnly == null || readOnly.getString("id") == null || !readOnly.getString("pad", "").equals(pad.getString("epName"))) {
+            return null;
+        }
+        return readOnly.getString("id");
+    }
+
+    private void storeReadOnlyId(final String id, final String padName, final String readOnlyId) {
+        if (id == null || readOnlyId == null) {
+            return;
+        }
+        final JsonObject modifier = new JsonObject().put("$set", new JsonObject().put(READ_ONLY_FIELD,
+                new JsonObject().put("pad", padName).put("id", readOnlyId)));
+        mongo.update(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, new JsonObject().put("_id", id), modifier, event -> {
+            if (!"ok".equals(event.body().getString("status"))) {
+                log.warn("Collaborative Editor : could not store the read-only id of pad " + id);
+            }
+        });
+    }
+
+    /**
+     * List the pads of the user through the visibleTo multikey index, or the owner and shares indexes for the pads
+     * whose visibleTo is not refreshed yet; the other filters are left to the CRUD service.
+     * The read may be served by a secondary, see {@link MongoReadRouting}.
+     */
+    private void listVisible(final VisibilityFilter filter, final UserInfos user, final Handler<Either<String, JsonArray>> handler) {
+        final Bson query;
+        switch (filter) {
+            case OWNER:
+                query = Filters.eq("owner.userId", user.getUserId());
+                break;
+            case SHARED:
+                query = Filters.and(PadVisibility.visibleFilter(user),
+                        Filters.ne("owner.userId", user.getUserId()));
+                break;
+            case ALL:
+            case OWNER_AND_SHARED:
+                query = PadVisibility.visibleFilter(user);
+                break;
+            default:
+                etherpadCrudService.list(filter, user, handler);
+                return;
+        }
+        final FindOptions options = new FindOptions().setSort(new JsonObject().put("modified", -1));
+        readRouting.client(MongoReadRouting.LIST).findWithOptions(collection, MongoQueryBuilder.build(query), options, ar -> {
+            if (ar.succeeded()) {
+                handler.handle(new Either.Right<>(new JsonArray(ar.result())));
+            } else {
+                handler.handle(new Either.Left<>(ar.cause().getMessage()));
+            }
+        });
+    }
+
+    /**
+     * Open a pad in a single request: the pad, the Etherpad author and the current session cookie are looked up
+     * in parallel, the session is reused when it is still valid for the pad group, and the pad is returned with
+     * its edition and read only urls. The resource filter has already checked the read right.
+     * @param request HTTP request
+     */
+    public void open(final HttpServerRequest request) {
+        UserUtils.getUserInfos(eb, request, user -> {
+            if (user == null) {
+                log.debug("User not found in session.");
+                Renders.unauthorized(request);
+                return;
+            }
+            final String id = request.params().get("id");
+            final String domain = getAuthDomain(request);
+            final EPLiteClient domainClient = clientByDomain.get(domain);
+            final String currentSession = CookieHelper.get("sessionID", request);
+
+            final Promise<JsonObject> padPromise = Promise.promise();
+            mongo.findOne(collection, new JsonObject().put("_id", id), MongoDbResult.validResultHandler(event -> {
+                if (event.isLeft()) {
+                    padPromise.fail(event.left().getValue());
+                } else {
+                    padPromise.complete(event.right().getValue());
+                }
+            }));
+            final Future<String> authorFuture = getAuthorId(domainClient, user);
+            final Future<JsonObject> sessionFuture = currentSession != null
+                    ? etherpadCall(handler -> domainClient.getSessionInfo(currentSession, handler)).otherwise(new JsonObject())
+                    : Future.succeededFuture(new JsonObject());
+
+            padPromise.future().compose(found -> found == null || found.isEmpty()
+                    ? Future.succeededFuture(found)
+                    : padArchive.rehydrate(found, domain)).onComplete(padResult -> {
+                if (padResult.failed()) {
+                    Renders.renderJson(request, new JsonObject().put("error", padResult.cause().getMessage()), 400);
+                    return;
+                }
+                final JsonObject pad = padResult.result();
+                if (pad == null || pad.isEmpty() || pad.getBoolean("epMissing", false)) {
+                    request.response().setStatusCode(404).end();
+                    return;
+                }
+                final EPLiteClient client = getClientForPad(pad, domain);
+                final Future<String> author = client == domainClient ? authorFuture : getAuthorId(client, user);
+                final Future<JsonObject> readOnly = etherpadCall(handler -> client.getReadOnlyID(pad.getString("epName"), handler));
+                final long now = System.currentTimeMillis() / 1000L;
+                final Future<Boolean> sessionSet = CompositeFuture.all(author, sessionFuture).compose(v -> {
+                    final JsonObject session = sessionFuture.result();
+                    if (client == domainClient
+                            && pad.getString("epGroupID", "").equals(session.getString("groupID"))
+                            && author.result().equals(session.getString("authorID"))
+                            && session.getLong("validUntil", 0L) > now + SESSION_REUSE_MARGIN) {
+                        return Future.succeededFuture(true);
+                    }
+                    final long validUntil = now + SESSION_DURATION;
+                    return etherpadCall(handler -> client.createSession(pad.getString("epGroupID"), author.result(), validUntil, handler))
+                            .map(created -> {
+                                request.response().putHeader("Set-Cookie", sessionCookie(created.getString("sessionID"), SESSION_DURATION, domain));
+                                return false;
+                            });
+                });
+                CompositeFuture.join(sessionSet, readOnly).onComplete(ar -> {
+                    if (sessionSet.failed()) {
+                        Renders.renderError(request, new JsonObject().put("error", sessionSet.cause().getMessage()));
+                        return;
+                    }
+                    final String language = Utils.getOrElse(I18n.acceptLanguage(request), "fr", false);
+                    pad.put("url", padUrl(client, pad.getString("epName"), user.getUsername(), language));
+                    if (readOnly.succeeded()) {
+                        pad.put("readOnlyUrl", padUrl(client, readOnly.result().getString("readOnlyID"), user.getUsername(), language));
+                    }
+                    pad.put("renderUrl", "/collaborativeeditor/render/" + id);
+                    pad.put("sessionReused", sessionSet.result());
+                    pad.remove("epName");
+                    pad.remove("epGroupID");
+                    pad.remove(PadVisibility.FIELD);
+                    pad.remove("contentText");
+                    Renders.renderJson(request, pad, 200);
+                });
+            });
+        });
+    }
+
+    /**
+     * @return the Etherpad author of the user, from the local cache or created if it does not exist
+     */
+    private Future<String> getAuthorId(final EPLiteClient client, final UserInfos user) {
+        final String key = client.getPadUrl() + "|" + user.getLogin();
+        synchronized (authorByLogin) {
+            final String authorId = authorByLogin.get(key);
+            if (authorId != null) {
+                return Future.succeededFuture(authorId);
+            }
+        }
+        return etherpadCall(handler -> client.createAuthorIfNotExistsFor(user.getLogin(), handler)).map(res -> {
+            final String authorId = res.getString("authorID");
+            synchronized (authorByLogin) {
+                authorByLogin.put(key, authorId);
+            }
+            return authorId;
+        });
+    }
+
+    private static String padUrl(final EPLiteClient client, final String padId, final String userName, final String language) {
+        final String urlStr = client.getPadUrl() + "/p/" + padId + "?userName=" + userName + "&lang=" + language;
+        try {
+            final URL url = new URL(urlStr);
+            return new URI(url.getProtocol(), url.getUserInfo(), url.getHost(), url.getPort(), url.getPath(), url.getQuery(), url.getRef()).toASCIIString();
+        } catch (MalformedURLException | URISyntaxException e) {
+            log.error("Can't generate etherpad-lite url", e);
+            return urlStr;
+        }
+    }
+
+    /**
+     * Duplicate a pad for the current user, who needs the read right on the source and the create workflow right.
+     * The content is copied inside Etherpad, the new document belongs to the user and takes the name given in
+     * the body, or the name of the source.
+     * @param request HTTP request
+     */
+    public void duplicate(final HttpServerRequest request) {
+        UserUtils.getUserInfos(eb, request, user -> {
+            if (user == null) {
+                log.debug("User not found in session.");
+                Renders.unauthorized(request);
+                return;
+            }
+            if (!canCreate(user)) {
+                Renders.unauthorized(request);
+                return;
+            }
+            final String id = request.params().get("id");
+            final String domain = getAuthDomain(request);
+            RequestUtils.bodyToJson(request, body -> mongo.findOne(collection, new JsonObject().put("_id", id), MongoDbResult.validResultHandler(event -> {
+                if (event.isLeft()) {
+                    Renders.renderError(request, new JsonObject().put("error", event.left().getValue()));
+                    return;
+                }
+                final JsonObject source = event.right().getValue();
+                if (source.isEmpty() || source.getBoolean("epMissing", false)) {
+                    request.response().setStatusCode(404).end();
+                    return;
+                }
+                padArchive.rehydrate(source, domain)
+                        .compose(pad -> copyPad(pad.getString("epDomain", domain), pad.getString("epName")))
+                        .onComplete(copy -> {
+                    if (copy.failed()) {
+                        log.error("Collaborative Editor : could not duplicate pad " + id + " : " + copy.cause().getMessage());
+                        Renders.renderError(request, new JsonObject().put("error", copy.cause().getMessage()));
+                        return;
+                    }
+                    final JsonObject padData = new JsonObject()
+                            .put("name", body.getString("name", source.getString("name")))
+                            .put("description", source.getString("description", ""))
+                            .put("thumbnail", source.getString("thumbnail", ""))
+                            .put("locale", source.getString("locale", I18n.acceptLanguage(request)))
+                            .put("epName", copy.result().getString("epName"))
+                            .put("epGroupID", copy.result().getString("epGroupID"))
+                            .put("epDomain", copy.result().getString("epDomain"))
+                            .put(PadVisibility.FIELD, PadVisibility.compute(new JsonObject()
+                                    .put("owner", new JsonObject().put("userId", user.getUserId()))));
+                    etherpadCrudService.create(padData, user, res -> {
+                        if (res.isRight()) {
+                            eventHelper.onCreateResource(request, RESOURCE_NAME);
+                            final JsonObject created = res.right().getValue();
+                            explorerPlugin.bufferUpsert(user, padData.copy()
+                                    .put("_id", created.getString("_id"))
+                                    .put("version", System.currentTimeMillis()));
+                            Renders.renderJson(request, created);
+                        } else {
+                            final JsonObject copied = copy.result();
+                            // The copy is referenced by no document; if it cannot be queued, the orphan reconciler collects its group
+                            deletionOutbox.enqueue(Collections.singletonList(copied), domain).onFailure(th ->
+                                log.error("Collaborative Editor : could not queue the deletion of copy " + copied.getString("epName") + " : " + th.getMessage()));
+                            Renders.renderError(request, new JsonObject().put("error", res.left().getValue()));
+                        }
+                    });
+                });
+            })));
+        });
+    }
+
+    /**
+     * @param user user
+     * @return true if the user has the create workflow right
+     */
+    private static boolean canCreate(final UserInfos user) {
+        if (user.getAuthorizedActions() == null) {
+            return false;
+        }
+        for (final UserInfos.Action action : user.getAuthorizedActions()) {
+            if (CREATE_ACTION.equals(action.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Render the sanitised HTML of a pad for the read-only viewers. The HTML comes from the snapshot cache,
+     * which only asks Etherpad for the revision count of the pad, and the response can be revalidated with
+     * If-None-Match or If-Modified-Since. The resource filter has already checked the read right.
+     * @param request HTTP request
+     */
+    public void render(final HttpServerRequest request) {
+        final String id = request.params().get("id");
+        final String domain = getAuthDomain(request);
+        final JsonObject keys = new JsonObject().put("epName", 1).put("epGroupID", 1).put("epDomain", 1)
+                .put("epMissing", 1).put(PadArchive.FIELD, 1);
+        mongo.findOne(collection, new JsonObject().put("_id", id), keys, MongoDbResult.validResultHandler(event -> {
+            if (event.isLeft()) {
+                Renders.renderError(request, new JsonObject().put("error", event.left().getValue()));
+                return;
+            }
+            final JsonObject found = event.right().getValue();
+            if (found.isEmpty() || found.getBoolean("epMissing", false)) {
+                request.response().setStatusCode(404).end();
+                return;
+            }
+            padArchive.rehydrate(found, domain)
+                    .compose(pad -> snapshotCache.get(getClientForPad(pad, domain), pad.getString("epName")))
+                    .onComplete(ar -> {
+                if (ar.failed()) {
+                    Renders.renderError(request, new JsonObject().put("error", ar.cause().getMessage()));
+                    return;
+                }
+                final PadSnapshotCache.Snapshot snapshot = ar.result();
+                final HttpServerResponse response = request.response()
+                        .putHeader("ETag", snapshot.etag)
+                        .putHeader("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                                ZonedDateTime.ofInstant(Instant.ofEpochMilli(snapshot.lastModified), ZoneOffset.UTC)))
+                        .putHeader("Cache-Control", "private, no-cache");
+                if (isNotModified(request, snapshot)) {
+                    response.setStatusCode(304).end();
+                    return;
+                }
+                response.putHeader("Content-Type", "text/html; charset=utf-8")
+                        .putHeader("Content-Security-Policy", "default-src 'none'; style-src 'unsafe-inline'")
+                        .putHeader("X-Content-Type-Options", "nosniff")
+                        .end("<!DOCTYPE html><html><head><meta charset=\"utf-8\"></head><body>" + snapshot.html + "</body></html>");
+            });
+        }));
+    }
+
+    private static boolean isNotModified(final HttpServerRequest request, final PadSnapshotCache.Snapshot snapshot) {
+        final String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return ifNoneMatch.contains(snapshot.etag) || "*".equals(ifNoneMatch.trim());
+        }
+        final String ifModifiedSince = request.getHeader("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                final long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                // HTTP dates have a one second precision
+                return snapshot.lastModified / 1000L <= since / 1000L;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static Future<JsonObject> etherpadCall(final Handler<Handler<JsonObject>> call) {
+        final Promise<JsonObject> promise = Promise.promise();
+        call.handle(res -> {
+            if (res != null && "ok".equals(res.getString("status"))) {
+                promise.complete(res);
+            } else {
+                promise.fail(res != null ? res.getString("message", "") : "no response");
+            }
+        });
+        return promise.future();
+    }
+
+    /**
+     * @param sessionID Etherpad session id
+     * @param duration lifetime of the Etherpad session, in seconds
+     * @param domain cookie domain
+     * @return the Set-Cookie value of a session, expiring with it
+     */
+    private static String sessionCookie(final String sessionID, final long duration, final String domain) {
+        return "sessionID=" + sessionID + ";max-age=" + duration + ";path=/;domain=" + domain;
+    }
+
     public Future<Void> createSession(final HttpServerRequest request){
         return this.createSession(request, false, Optional.empty());
     }
@@ -409,43 +983,54 @@ public class EtherpadHelper extends MongoDbControllerHelper {
     public Future<Void> createSession(final HttpServerRequest request, final boolean byName, final Optional<String> redirectUrl) {
         final Promise<Void> promise = Promise.promise();
         UserUtils.getUserInfos(eb, request, user -> {
-            String id = request.params().get("id");
-            Bson idFilter = byName? Filters.eq("epName", id) : Filters.eq("_id", id);
+            final String id = request.params().get("id");
+            Bson idFilter = byName? Filters.or(Filters.eq("epName", id), Filters.eq(PadArchive.ALIASES, id)) : Filters.eq("_id", id);
             mongo.findOne(collection, MongoQueryBuilder.build(idFilter), null, MongoDbResult.validResultHandler(findEvent -> {
                 if (findEvent.isRight()) {
                     if (findEvent.right().getValue() != null && findEvent.right().getValue().size() > 0) {
-                        final JsonObject object = findEvent.right().getValue();
                         final String domain = getAuthDomain(request);
                         final EPLiteClient client = clientByDomain.get(domain);
-                        // Create author if he doesn't exists
-                        client.createAuthorIfNotExistsFor(user.getLogin(), createEvent -> {
-                            if ("ok".equals(createEvent.getString("status"))) {
-                                final String authorID = createEvent.getString("authorID");
-                                // Create session for the user on the pad group
-                                Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("Europe/Paris"));
-                                calendar.setTime(new Date());
-                                Date now = calendar.getTime();
-                                long validUntil = (now.getTime() + (1 * 60L * 60L * 1000L)) / 1000L;
-                                client.createSession(object.getString("epGroupID"), authorID, validUntil, event -> {
-                                    if ("ok".equals(event.getString("status"))) {
-                                        final String session = event.getString("sessionID");
-                                        final HttpServerResponse response = request.response();
-                                        response.putHeader("Set-Cookie", "sessionID=" + session + ";max-age=" + 360 * 1000 + ";path=/;domain=" + domain);
-                                        if(redirectUrl.isPresent()){
-                                            Renders.redirect(request, redirectUrl.get());
+                        padArchive.rehydrate(findEvent.right().getValue(), domain).onComplete(rehydrated -> {
+                            if (rehydrated.failed()) {
+                                Renders.renderError(request, new JsonObject().put("error", "pad.rehydration.failed"));
+                                promise.fail(rehydrated.cause());
+                                return;
+                            }
+                            final JsonObject object = rehydrated.result();
+                            // A rehydrated pad has a new name, the embed redirection follows it
+                            final Optional<String> location = byName
+                                    ? redirectUrl.map(url -> url.replace(id, object.getString("epName")))
+                                    : redirectUrl;
+                            // Create author if he doesn't exists
+                            client.createAuthorIfNotExistsFor(user.getLogin(), createEvent -> {
+                                if ("ok".equals(createEvent.getString("status"))) {
+                                    final String authorID = createEvent.getString("authorID");
+                                    // Create session for the user on the pad group
+                                    Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("Europe/Paris"));
+                                    calendar.setTime(new Date());
+                                    Date now = calendar.getTime();
+                                    long validUntil = now.getTime() / 1000L + SESSION_DURATION;
+                                    client.createSession(object.getString("epGroupID"), authorID, validUntil, event -> {
+                                        if ("ok".equals(event.getString("status"))) {
+                                            final String session = event.getString("sessionID");
+                                            final HttpServerResponse response = request.response();
+                                            response.putHeader("Set-Cookie", sessionCookie(session, SESSION_DURATION, domain));
+                                            if(location.isPresent()){
+                                                Renders.redirect(request, location.get());
+                                            } else {
+                                                response.setStatusCode(200).end();
+                                            }
+                                            promise.complete();
                                         } else {
-                                            response.setStatusCode(200).end();
+                                            Renders.renderError(request, event);
+                                            promise.fail(event.getString("error", "pad.session.create.failed"));
                                         }
-                                        promise.complete();
-                                    } else {
-                                        Renders.renderError(request, event);
-                                        promise.fail(event.getString("error", "pad.session.create.failed"));
-                                    }
-                                });
-                            } else {
-                                Renders.renderError(request, createEvent);
-                                promise.fail(createEvent.getString("error", "pad.session.create.failed"));
-                            }
+                                    });
+                                } else {
+                                    Renders.renderError(request, createEvent);
+                                    promise.fail(createEvent.getString("error", "pad.session.create.failed"));
+                                }
+                            });
                         });
                     } else {
                         request.response().setStatusCode(404).end();
@@ -502,32 +1087,29 @@ public class EtherpadHelper extends MongoDbControllerHelper {
                         if (retrieveEvent.right().getValue() != null && !retrieveEvent.right().getValue().isEmpty()) {
                             final JsonObject retrievedPad = retrieveEvent.right().getValue();
 
-                            etherpadCrudService.delete(id, user, crudDeleteEvent -> {
-                                if (crudDeleteEvent.isRight()) {
-                                    final EPLiteClient client = clientByDomain.get(getAuthDomain(request));
-
-                                    client.deletePad(retrievedPad.getString("epName"), clientDeletePadEvent -> {
-                                        if (!"ok".equals(clientDeletePadEvent.getString("status"))) {
-                                            log.error("Fail to delete a pad on backend " + clientDeletePadEvent.getString("message"));
-                                        }
-                                    });
-
-                                    client.deleteGroup(retrievedPad.getString("epGroupID"), clientDeleteGroupEvent -> {
-                                        if (!"ok".equals(clientDeleteGroupEvent.getString("status"))) {
-                                            log.error("Fail to delete a group on backend " + clientDeleteGroupEvent.getString("message"));
-                                        }
-                                    });
-                                    // Notify resource deletion via broker and don't wait for completion
-                                    final ResourcesDeletedDTO notification = ResourcesDeletedDTO.forSingleResource(id, CollaborativeEditor.TYPE);
-                                    resourcePublisher.notifyResourcesDeleted(notification);
-                                    // Notify EUR and and don't wait for explorer notifications to complete
-                                    explorerPlugin.notifyDeleteById(user, new IdAndVersion(id, System.currentTimeMillis()));
-
-                                    Renders.renderJson(request, crudDeleteEvent.right().getValue(), 200);
-                                } else {
-                                    log.error("Fail to delete a pad on mongo backend from id : " + id + ", error : " + crudDeleteEvent.left().getValue());
-                                    Renders.renderError(request, new JsonObject().put("error", crudDeleteEvent.left().getValue()));
+                            // The Etherpad cleanup is queued first: a pad whose cleanup cannot be queued is kept
+                            deletionOutbox.enqueue(Collections.singletonList(retrievedPad), getAuthDomain(request), false).onComplete(queued -> {
+                                if (queued.failed()) {
+                                    log.error("Fail to queue the backend deletion of pad " + id + ", error : " + queued.cause().getMessage());
+                                    Renders.renderError(request, new JsonObject().put("error", queued.cause().getMessage()));
+                                    return;
                                 }
+                                etherpadCrudService.delete(id, user, crudDeleteEvent -> {
+                                    if (crudDeleteEvent.isRight()) {
+                                        deleteOnBackend(Collections.singletonList(retrievedPad));
+                                        // Notify resource deletion via broker and don't wait for completion
+                                        final ResourcesDeletedDTO notification = ResourcesDeletedDTO.forSingleResource(id, CollaborativeEditor.TYPE);
+                                        resourcePublisher.notifyResourcesDeleted(notification);
+                                        // Notify EUR and and don't wait for explorer notifications to complete
+                                        explorerPlugin.bufferDeleteById(user, new IdAndVersion(id, System.currentTimeMillis()));
+
+                                        Renders.renderJson(request, crudDeleteEvent.right().getValue(), 200);
+                                    } else {
+                                        // The queued entries are dropped by the outbox as the pad is still stored
+                                        log.error("Fail to delete a pad on mongo backend from id : " + id + ", error : " + crudDeleteEvent.left().getValue());
+                                        Renders.renderError(request, new JsonObject().put("error", crudDeleteEvent.left().getValue()));
+                                    }
+                                });
                             });
                         } else {
                             Renders.renderError(request, new JsonObject().put("error", "Empty result from id : " + id));
@@ -543,6 +1125,256 @@ public class EtherpadHelper extends MongoDbControllerHelper {
         });
     }
 
+    /**
+     * Stream the pads owned by or shared with the user into a zip archive sent as the response body.
+     * The "id" query parameters, if any, restrict the export to these pads.
+     * @param request HTTP request
+     */
+    public void exportArchive(final HttpServerRequest request) {
+        UserUtils.getUserInfos(eb, request, user -> {
+            if (user == null) {
+                log.debug("User not found in session.");
+                Renders.unauthorized(request);
+                return;
+            }
+            // Only the pads the user can read, not every pad where the user merely appears in the shares
+            Bson filter = PadVisibility.grantedFilter(user, READ_RIGHT);
+            final List<String> ids = request.params().getAll("id");
+            if (!ids.isEmpty()) {
+                filter = Filters.and(filter, Filters.in("_id", ids));
+            }
+            final String domain = getAuthDomain(request);
+            final HttpServerResponse response = request.response();
+            response.setChunked(true)
+                    .putHeader("Content-Type", "application/zip")
+                    .putHeader("Content-Disposition", "attachment; filename=\"" + CollaborativeEditor.APPLICATION + ".zip\"");
+            final ReadStream<JsonObject> pads = readRouting.client(MongoReadRouting.EXPORT)
+                    .findBatchWithOptions(collection, MongoQueryBuilder.build(filter), new FindOptions().setSort(new JsonObject().put("_id", 1)));
+            new PadArchiveExporter(vertx, pad -> getClientForPad(pad, domain), padArchive, exportPadTimeout)
+                    .export(pads, response)
+                    .onSuccess(stats -> log.info("Collaborative Editor archive exported for user " + user.getUserId() + " : " + stats.encode()));
+        });
+    }
+
+    /**
+     * Run the handler if the user and the Etherpad domain of the request still have tokens, otherwise answer
+     * right away with 429 (user) or 503 (domain) and a Retry-After.
+     * @param request HTTP request
+     * @param route route name, for the metrics
+     * @param handler called when the request is admitted
+     */
+    public void admit(final HttpServerRequest request, final String route, final Handler<Void> handler) {
+        UserUtils.getUserInfos(eb, request, user -> {
+            final AdmissionControl.Decision decision = admissionControl.admit(route,
+                    user != null ? user.getUserId() : null, getAuthDomain(request));
+            if (decision.isAdmitted()) {
+                handler.handle(null);
+                return;
+            }
+            request.response()
+                    .setStatusCode(decision.status)
+                    .putHeader("Retry-After", String.valueOf(decision.retryAfterSeconds()))
+                    .putHeader("Content-Type", "application/json")
+                    .end(new JsonObject().put("error", decision.status == AdmissionControl.TOO_MANY_REQUESTS
+                            ? "too.many.requests" : "etherpad.overloaded").encode());
+        });
+    }
+
+    /**
+     * Stream the presence of the users on the pads given by the "id" query parameters, as server-sent events.
+     * Only the pads visible by the user are watched; without any id, the most recently modified ones are.
+     * @param request HTTP request
+     */
+    public void presence(final HttpServerRequest request) {
+        UserUtils.getUserInfos(eb, request, user -> {
+            if (user == null) {
+                log.debug("User not found in session.");
+                Renders.unauthorized(request);
+                return;
+            }
+            Bson filter = Filters.and(PadVisibility.visibleFilter(user),
+                    Filters.ne(PadArchive.FIELD, true), Filters.ne("epMissing", true));
+            final List<String> ids = request.params().getAll("id");
+            if (!ids.isEmpty()) {
+                filter = Filters.and(filter, Filters.in("_id", ids));
+            }
+            final FindOptions options = new FindOptions()
+                    .setFields(new JsonObject().put("_id", 1).put("epName", 1).put("epDomain", 1))
+                    .setSort(new JsonObject().put("modified", -1))
+                    .setLimit(padPresence.getMaxPads());
+            readRouting.client(MongoReadRouting.LIST).findWithOptions(collection, MongoQueryBuilder.build(filter), options, ar -> {
+                if (ar.failed()) {
+                    Renders.renderError(request, new JsonObject().put("error", ar.cause().getMessage()));
+                    return;
+                }
+                padPresence.subscribe(request.response(), ar.result(), getAuthDomain(request));
+            });
+        });
+    }
+
+    /**
+     * @param pad pad document
+     * @param fallbackDomain domain to use when the pad does not know its backend
+     * @return the client of the backend hosting the pad
+     */
+    public EPLiteClient getClientForPad(final JsonObject pad, final String fallbackDomain) {
+        final EPLiteClient client = clientByDomain.get(pad.getString("epDomain", fallbackDomain));
+        return client != null ? client : clientByDomain.get(fallbackDomain);
+    }
+
+    /**
+     * Delete in one go the pads given in the "ids" array of the request body. Only the pads the user owns
+     * or manages are deleted: Mongo documents are removed with a single query, the broker and the explorer
+     * are notified once, and the Etherpad pads and groups are cleaned up through the deletion outbox.
+     * @param request HTTP request
+     */
+    public void deleteAll(final HttpServerRequest request) {
+        UserUtils.getUserInfos(eb, request, user -> {
+            if (user == null) {
+                log.debug("User not found in session.");
+                Renders.unauthorized(request);
+                return;
+            }
+            RequestUtils.bodyToJson(request, body -> {
+                final JsonArray ids = body.getJsonArray("ids", new JsonArray());
+                if (ids.isEmpty()) {
+                    Renders.badRequest(request, "invalid.ids");
+                    return;
+                }
+                final String domain = getAuthDomain(request);
+                final Bson managed = Filters.and(
+                        Filters.in("_id", ids.getList()),
+                        PadVisibility.grantedFilter(user, MANAGER_RIGHT));
+                final JsonObject projection = new JsonObject().put("epName", 1).put("epGroupID", 1).put("epDomain", 1).put(PadArchive.FIELD, 1);
+                mongo.find(collection, MongoQueryBuilder.build(managed), null, projection, MongoDbResult.validResultsHandler(findEvent -> {
+                    if (findEvent.isLeft()) {
+                        Renders.renderError(request, new JsonObject().put("error", findEvent.left().getValue()));
+                        return;
+                    }
+                    final List<JsonObject> pads = new ArrayList<>();
+                    final List<String> deletedIds = new ArrayList<>();
+                    for (final Object o : findEvent.right().getValue()) {
+                        if (!(o instanceof JsonObject)) continue;
+                        pads.add((JsonObject) o);
+                        deletedIds.add(((JsonObject) o).getString("_id"));
+                    }
+                    if (pads.isEmpty()) {
+                        Renders.renderJson(request, new JsonObject().put("number", 0), 200);
+                        return;
+                    }
+                    // The Etherpad cleanup is queued first: pads whose cleanup cannot be queued are kept
+                    deletionOutbox.enqueue(pads, domain, false).onComplete(queued -> {
+                        if (queued.failed()) {
+                            log.error("Fail to queue the backend deletion of pads, error : " + queued.cause().getMessage());
+                            Renders.renderError(request, new JsonObject().put("error", queued.cause().getMessage()));
+                            return;
+                        }
+                        final JsonObject deleteQuery = MongoQueryBuilder.build(Filters.in("_id", deletedIds));
+                        mongo.delete(collection, deleteQuery, MongoDbResult.validActionResultHandler(deleteEvent -> {
+                            if (deleteEvent.isLeft()) {
+                                log.error("Fail to delete pads on mongo backend, error : " + deleteEvent.left().getValue());
+                                Renders.renderError(request, new JsonObject().put("error", deleteEvent.left().getValue()));
+                                return;
+                            }
+                            // Notify resource deletion via broker and don't wait for completion
+                            resourcePublisher.notifyResourcesDeleted(new ResourcesDeletedDTO(deletedIds, CollaborativeEditor.TYPE));
+                            // Notify EUR through the batching buffer and don't wait for explorer notifications to complete
+                            final long version = System.currentTimeMillis();
+                            for (final String deletedId : deletedIds) {
+                                explorerPlugin.bufferDeleteById(user, new IdAndVersion(deletedId, version));
+                            }
+                            explorerPlugin.flushNotifications();
+                            // Clean Etherpad in the background
+                            deleteOnBackend(pads);
+
+                            Renders.renderJson(request, new JsonObject().put("number", deletedIds.size()).put("ids", new JsonArray(deletedIds)), 200);
+                        }));
+                    });
+                }));
+            });
+        });
+    }
+
+    /**
+     * Run the Etherpad cleanup queued for deleted pads, and drop their archives.
+     * @param pads deleted pad documents
+     */
+    private void deleteOnBackend(final List<JsonObject> pads) {
+        deletionOutbox.drain();
+        final List<String> archivedIds = new ArrayList<>();
+        for (final JsonObject pad : pads) {
+            if (pad.getBoolean(PadArchive.FIELD, false)) {
+                archivedIds.add(pad.getString("_id"));
+            }
+        }
+        if (!archivedIds.isEmpty()) {
+            padArchive.forget(archivedIds);
+        }
+    }
+
+    /**
+     * @return the domain of the first configured backend, for the pads deleted outside of a request
+     */
+    public String getDefaultDomain() {
+        return clientByDomain.isEmpty() ? null : clientByDomain.keySet().iterator().next();
+    }
+
+    /**
+     * @return the durable queue of deletions to run on the Etherpad backends
+     */
+    public EtherpadDeletionOutbox getDeletionOutbox() {
+        return deletionOutbox;
+    }
+
+    /**
+     * @return the admission control of the routes calling Etherpad
+     */
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    /**
+     * @return the activity reported by the Etherpad hooks
+     */
+    public EtherpadActivity getEtherpadActivity() {
+        return etherpadActivity;
+    }
+
+    /**
+     * @return the presence feed of the pads
+     */
+    public PadPresence getPadPresence() {
+        return padPresence;
+    }
+
+    /**
+     * @return the snapshots served to the read-only viewers
+     */
+    public PadSnapshotCache getSnapshotCache() {
+        return snapshotCache;
+    }
+
+    /**
+     * @return the archive tier of the cold pads
+     */
+    public PadArchive getPadArchive() {
+        return padArchive;
+    }
+
+    /**
+     * @return the pool of pre-created pads
+     */
+    public PadPool getPadPool() {
+        return padPool;
+    }
+
+    /**
+     * @return the routing of the reads between the Mongo primary and the secondaries
+     */
+    public MongoReadRouting getReadRouting() {
+        return readRouting;
+    }
+
     private static String getAuthDomain(final String host) {
         String domain = "";
 
@@ -568,10 +1400,24 @@ public class EtherpadHelper extends MongoDbControllerHelper {
         return clientByDomain.values().iterator().next();
     }
 
+    /**
+     * @return the Etherpad clients indexed by their domain, in configuration order
+     */
+    public Map<String, EPLiteClient> getClientsByDomain() {
+        return Collections.unmodifiableMap(clientByDomain);
+    }
+
     public EPLiteClient getClientFromHost(final String host) {
+        return clientByDomain.get(getDomainFromHost(host));
+    }
+
+    /**
+     * @param host host, with or without its scheme
+     * @return the domain of the Etherpad backend serving the host
+     */
+    public String getDomainFromHost(final String host) {
         String[] s = host.split("://");
         String hostname = s.length > 1 ? s[1] : s[0];
-        final String domain = getAuthDomain(hostname);
-        return clientByDomain.get(domain);
+        return getAuthDomain(hostname);
     }
 }
\ No newline at end of file
@@ -0,0 +1,97 @@
+package net.atos.entng.collaborativeeditor.helpers;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.mongo.MongoClient;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chooses the Mongo client of the read-heavy operations. The operations listed in
+ * "mongo-secondary-operations" read through a second client built from "mongo-secondary-config"
+ * (secondaryPreferred by default, the maximum staleness being set with "maxStalenessSeconds" in its
+ * connection_string), every other read stays on the primary. Without secondary configuration every
+ * operation reads from the primary. Authorisation and the reads the cleanup tasks act upon (archive, delete,
+ * orphans) are never routed, so a share change or a recent edit is always seen.
+ * The counters are the reads routed to each client: with secondaryPreferred, a read routed to the secondary
+ * client is still served by the primary when no secondary is available.
+ */
+public class MongoReadRouting {
+
+    public static final String LIST = "list";
+    public static final String SEARCH = "search";
+    public static final String EXPORT = "export";
+
+    private static final Logger log = LoggerFactory.getLogger(MongoReadRouting.class);
+    private final MongoClient primary;
+    private final MongoClient secondary;
+    private final Set<String> secondaryOperations = new HashSet<>();
+    private final Map<String, AtomicLong> routedToPrimary = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> routedToSecondary = new ConcurrentHashMap<>();
+
+    public MongoReadRouting(final Vertx vertx, final MongoClient primary, final JsonObject config) {
+        this.primary = primary;
+        final JsonObject secondaryConfig = config.getJsonObject("mongo-secondary-config");
+        if (secondaryConfig != null) {
+            final JsonObject clientConfig = secondaryConfig.copy();
+            if (!clientConfig.containsKey("readPreference")
+                    && !clientConfig.getString("connection_string", "").contains("readPreference")) {
+                clientConfig.put("readPreference", "secondaryPreferred");
+            }
+            this.secondary = MongoClient.createShared(vertx, clientConfig, "collaborativeeditor-secondary");
+            final JsonArray operations = config.getJsonArray("mongo-secondary-operations",
+                    new JsonArray().add(LIST).add(SEARCH).add(EXPORT));
+            for (final Object operation : operations) {
+                if (operation instanceof String) secondaryOperations.add((String) operation);
+            }
+            log.info("[MongoReadRouting] Secondary reads enabled for " + secondaryOperations);
+        } else {
+            this.secondary = null;
+        }
+    }
+
+    /**
+     * @param operation read operation
+     * @return true if the operation reads from the secondaries
+     */
+    public boolean isSecondary(final String operation) {
+        return secondary != null && secondaryOperations.contains(operation);
+    }
+
+    /**
+     * Get the client of an operation and count the read.
+     * @param operation read operation
+     * @return the client to read with
+     */
+    public MongoClient client(final String operation) {
+        if (isSecondary(operation)) {
+            routedToSecondary.computeIfAbsent(operation, k -> new AtomicLong()).incrementAndGet();
+            return secondary;
+        }
+        routedToPrimary.computeIfAbsent(operation, k -> new AtomicLong()).incrementAndGet();
+        return primary;
+    }
+
+    /**
+     * @return the reads routed to the primary client and to the secondary client, per operation
+     */
+    public JsonObject stats() {
+        final JsonObject primaryStats = new JsonObject();
+        routedToPrimary.forEach((operation, count) -> primaryStats.put(operation, count.get()));
+        final JsonObject secondaryStats = new JsonObject();
+        routedToSecondary.forEach((operation, count) -> secondaryStats.put(operation, count.get()));
+        return new JsonObject()
+                .put("secondaryEnabled", secondary != null)
+                .put("secondaryOperations", new JsonArray(new ArrayList<>(secondaryOperations)))
+                .put("routedToPrimary", primaryStats)
+                .put("routedToSecondary", secondaryStats);
+    }
+}
@@ -0,0 +1,315 @@
+package net.atos.entng.collaborativeeditor.helpers;
+
+import fr.wseduc.mongodb.MongoDb;
+import fr.wseduc.mongodb.MongoUpdateBuilder;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.mongo.MongoClient;
+import net.atos.entng.collaborativeeditor.CollaborativeEditor;
+import net.atos.entng.collaborativeeditor.cron.EtherpadDeletionOutbox;
+import org.etherpad_lite_client.EPLiteClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Archive tier of the cold pads. Archiving stores the gzipped HTML of the pad in the archive collection,
+ * flags the document "archived" and deletes the pad and its group from Etherpad through the deletion outbox.
+ * The first open of an archived pad recreates it in a new group from the archive; its previous names are
+ * kept in "epAliases" so that the embed links keep working.
+ */
+public class PadArchive {
+
+    public static final String FIELD = "archived";
+    public static final String ALIASES = "epAliases";
+
+    private static final Logger log = LoggerFactory.getLogger(PadArchive.class);
+    private final MongoDb mongo = MongoDb.getInstance();
+    private final Vertx vertx;
+    private final MongoClient mongoClient;
+    private final Map<String, EPLiteClient> clientByDomain;
+    private final EtherpadDeletionOutbox deletionOutbox;
+    private final Map<String, Future<JsonObject>> rehydrating = new ConcurrentHashMap<>();
+    private final AtomicLong archived = new AtomicLong();
+    private final AtomicLong rehydrated = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public PadArchive(final Vertx vertx, final MongoClient mongoClient, final Map<String, EPLiteClient> clientByDomain,
+                      final EtherpadDeletionOutbox deletionOutbox) {
+        this.vertx = vertx;
+        this.mongoClient = mongoClient;
+        this.clientByDomain = clientByDomain;
+        this.deletionOutbox = deletionOutbox;
+    }
+
+    /**
+     * Archive a pad which has not been edited since lastEdited. The pad is left in Etherpad if someone is
+     * on it or if it has been edited meanwhile.
+     * @param pad pad document holding _id, epName and epGroupID
+     * @param domain domain of the backend hosting the pad
+     * @param lastEdited last edition of the pad, as returned by getLastEdited
+     * @return true if the pad has been archived
+     */
+    public Future<Boolean> archive(final JsonObject pad, final String domain, final long lastEdited) {
+        final EPLiteClient client = clientByDomain.get(domain);
+        final String id = pad.getString("_id");
+        final String padId = pad.getString("epName");
+        if (client == null || padId == null) {
+            return Future.failedFuture("no.pad.client");
+        }
+        return etherpadCall(handler -> client.padUsersCount(padId, handler)).compose(users -> {
+            if (users.getInteger("padUsersCount", 0) > 0) {
+                return Future.succeededFuture(false);
+            }
+            return etherpadCall(handler -> client.getHTML(padId, handler))
+                    .compose(html -> gzip(html.getString("html", "")))
+                    .compose(compressed -> save(new JsonObject()
+                            .put("_id", id)
+                            .put("epName", padId)
+                            .put("epGroupID", pad.getString("epGroupID"))
+                            .put("epDomain", domain)
+                            .put("html", new JsonObject().put("$binary", compressed))
+                            .put("compressedSize", compressed.length)
+                            .put("archivedAt", System.currentTimeMillis())))
+                    .compose(v -> etherpadCall(handler -> client.getLastEdited(padId, handler)))
+                    .compose(check -> {
+                        if (check.getLong("lastEdited", 0L) > lastEdited) {
+                            // Edited while archiving, keep it in Etherpad
+                            return forget(Collections.singletonList(id)).map(false);
+                        }
+                        final MongoUpdateBuilder modifier = new MongoUpdateBuilder()
+                                .set(FIELD, true)
+                                .set("archivedAt", System.currentTimeMillis())
+                                .set("epDomain", domain);
+                        return update(new JsonObject().put("_id", id), modifier)
+                                .compose(matched -> deletionOutbox.enqueue(Collections.singletonList(pad), domain))
+                                .map(true);
+                    });
+        }).onComplete(ar -> {
+            if (ar.failed()) {
+                failures.incrementAndGet();
+                log.error("[PadArchive] Could not archive pad " + id + " : " + ar.cause().getMessage());
+            } else if (ar.result()) {
+                archived.incrementAndGet();
+            } else {
+                skipped.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Recreate an archived pad in Etherpad. Concurrent opens of the same pad on this node share the same
+     * rehydration; on another node, the first one to update the document wins and the others drop their copy.
+     * @param pad pad document
+     * @param fallbackDomain domain to use when the archive does not know its backend
+     * @return the pad document, with its new epName, epGroupID and epDomain if it was archived
+     */
+    public Future<JsonObject> rehydrate(final JsonObject pad, final String fallbackDomain) {
+        if (!pad.getBoolean(FIELD, false)) {
+            return Future.succeededFuture(pad);
+        }
+        final String id = pad.getString("_id");
+        final Promise<JsonObject> promise = Promise.promise();
+        final Future<JsonObject> running = rehydrating.putIfAbsent(id, promise.future());
+        if (running != null) {
+            return running;
+        }
+        doRehydrate(pad, fallbackDomain).onComplete(ar -> {
+            rehydrating.remove(id);
+            if (ar.succeeded()) {
+                rehydrated.incrementAndGet();
+            } else {
+                failures.incrementAndGet();
+                log.error("[PadArchive] Could not rehydrate pad " + id + " : " + ar.cause().getMessage());
+            }
+            promise.handle(ar);
+        });
+        return promise.future();
+    }
+
+    /**
+     * Read the HTML of an archived pad from the archive collection, the pad being no longer in Etherpad.
+     * @param id pad id
+     * @return the HTML of the pad
+     */
+    public Future<String> html(final String id) {
+        final Promise<JsonObject> archiveFound = Promise.promise();
+        mongoClient.findOne(CollaborativeEditor.COLLABORATIVEEDITOR_ARCHIVE_COLLECTION, new JsonObject().put("_id", id),
+                new JsonObject().put("html", 1), archiveFound);
+        return archiveFound.future().compose(archive -> archive == null || archive.getJsonObject("html") == null
+                ? Future.failedFuture("archive.notfound")
+                : gunzip(archive.getJsonObject("html").getBinary("$binary")));
+    }
+
+    /**
+     * Remove the archives of deleted pads.
+     * @param ids pad ids
+     */
+    public Future<Void> forget(final List<String> ids) {
+        final Promise<Void> promise = Promise.promise();
+        final JsonObject query = new JsonObject().put("_id", new JsonObject().put("$in", new JsonArray(ids)));
+        mongoClient.removeDocuments(CollaborativeEditor.COLLABORATIVEEDITOR_ARCHIVE_COLLECTION, query, ar -> {
+            if (ar.failed()) {
+                log.error("[PadArchive] Could not remove archives " + ids, ar.cause());
+            }
+            promise.complete();
+        });
+        return promise.future();
+    }
+
+    /**
+     * @return counters of this node
+     */
+    public JsonObject status() {
+        return new JsonObject()
+                .put("archived", archived.get())
+                .put("skipped", skipped.get())
+                .put("rehydrated", rehydrated.get())
+                .put("rehydrating", rehydrating.size())
+                .put("failures", failures.get());
+    }
+
+    private Future<JsonObject> doRehydrate(final JsonObject pad, final String fallbackDomain) {
+        final String id = pad.getString("_id");
+        final Promise<JsonObject> archiveFound = Promise.promise();
+        mongoClient.findOne(CollaborativeEditor.COLLABORATIVEEDITOR_ARCHIVE_COLLECTION, new JsonObject().put("_id", id), null, archiveFound);
+        return archiveFound.future().compose(archive -> {
+            if (archive == null) {
+                return Future.failedFuture("archive.notfound");
+            }
+            final String domain = clientByDomain.containsKey(archive.getString("epDomain"))
+                    ? archive.getString("epDomain") : fallbackDomain;
+            final EPLiteClient client = clientByDomain.get(domain);
+            if (client == null) {
+                return Future.failedFuture("no.pad.client");
+            }
+            return gunzip(archive.getJsonObject("html").getBinary("$binary")).compose(html ->
+                etherpadCall(client::createGroup).compose(group -> {
+                    final String groupID = group.getString("groupID");
+                    return etherpadCall(handler -> client.createGroupPad(groupID, UUID.randomUUID().toString(), handler))
+                            .compose(created -> {
+                                final String padId = created.getString("padID");
+                                return etherpadCall(handler -> client.setHTML(padId, html, handler)).compose(v -> {
+                                    final MongoUpdateBuilder modifier = new MongoUpdateBuilder()
+                                            .set("epName", padId)
+                                            .set("epGroupID", groupID)
+                                            .set("epDomain", domain)
+                                            .unset(FIELD)
+                                            .unset("archivedAt")
+                                            .addToSet(ALIASES, archive.getString("epName"));
+                                    return update(new JsonObject().put("_id", id).put(FIELD, true), modifier);
+                                }).compose(matched -> {
+                                    if (matched == 0) {
+                                        // Rehydrated by another node meanwhile, drop this copy
+                                        return dropGroup(groupID, domain).compose(v -> reload(id));
+                                    }
+                                    forget(Collections.singletonList(id));
+                                    final JsonObject result = pad.copy()
+                                            .put("epName", padId)
+                                            .put("epGroupID", groupID)
+                                            .put("epDomain", domain);
+                                    result.remove(FIELD);
+                                    result.remove("archivedAt");
+                                    return Future.succeededFuture(result);
+                                });
+                            })
+                            .recover(th -> dropGroup(groupID, domain).compose(v -> Future.<JsonObject>failedFuture(th)));
+                }));
+        });
+    }
+
+    /**
+     * Queue the deletion of a group created for a rehydration that is not kept, the pad goes with it.
+     * @return a future completed once queued, or once the failure to queue is logged
+     */
+    private Future<Void> dropGroup(final String groupID, final String domain) {
+        final JsonObject group = new JsonObject().put("epGroupID", groupID).put("epDomain", domain);
+        return deletionOutbox.enqueue(Collections.singletonList(group), domain)
+                .onFailure(th -> log.error("[PadArchive] Could not queue the deletion of group " + groupID + " : " + th.getMessage()))
+                .otherwiseEmpty();
+    }
+
+    private Future<Void> save(final JsonObject archive) {
+        final Promise<String> promise = Promise.promise();
+        mongoClient.save(CollaborativeEditor.COLLABORATIVEEDITOR_ARCHIVE_COLLECTION, archive, promise);
+        return promise.future().mapEmpty();
+    }
+
+    private Future<Integer> update(final JsonObject query, final MongoUpdateBuilder modifier) {
+        final Promise<Integer> promise = Promise.promise();
+        mongo.update(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, query, modifier.build(), event -> {
+            if ("ok".equals(event.body().getString("status"))) {
+                promise.complete(event.body().getInteger("number", 0));
+            } else {
+                promise.fail(event.body().getString("message"));
+            }
+        });
+        return promise.future();
+    }
+
+    private Future<JsonObject> reload(final String id) {
+        final Promise<JsonObject> promise = Promise.promise();
+        mongoClient.findOne(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, new JsonObject().put("_id", id), null, promise);
+        return promise.future();
+    }
+
+    private Future<byte[]> gzip(final String html) {
+        return vertx.executeBlocking(promise -> {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(html.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                promise.fail(e);
+                return;
+            }
+            promise.complete(out.toByteArray());
+        }, false);
+    }
+
+    private Future<String> gunzip(final byte[] compressed) {
+        return vertx.executeBlocking(promise -> {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+                final byte[] buffer = new byte[8192];
+                int read;
+                while ((read = gzip.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                }
+            } catch (IOException e) {
+                promise.fail(e);
+                return;
+            }
+            promise.complete(new String(out.toByteArray(), StandardCharsets.UTF_8));
+        }, false);
+    }
+
+    private static Future<JsonObject> etherpadCall(final Handler<Handler<JsonObject>> call) {
+        final Promise<JsonObject> promise = Promise.promise();
+        call.handle(res -> {
+            if (res != null && "ok".equals(res.getString("status"))) {
+                promise.complete(res);
+            } else {
+                promise.fail(res != null ? res.getString("message", "") : "no response");
+            }
+        });
+        return promise.future();
+    }
+}
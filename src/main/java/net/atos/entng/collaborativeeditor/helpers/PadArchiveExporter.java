@@ -0,0 +1,214 @@
+package net.atos.entng.collaborativeeditor.helpers;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.core.streams.ReadStream;
+import org.entcore.common.utils.StringUtils;
+import org.etherpad_lite_client.EPLiteClient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams pads into a zip archive written to the HTTP response, without any intermediate file. The archive has the same layout as the directory export: one metadata entry per
+ * pad and one "Pad_&lt;epName&gt;" entry holding its HTML, so it can be imported back as is. The HTML of an
+ * archived pad, which is no longer in Etherpad, is read from the archive.
+ * The Mongo cursor is paused while a pad is fetched and written, and is only resumed once the output
+ * accepts more data, so memory stays bounded by a single pad. When the client goes away the cursor is released
+ * and the export fails instead of waiting forever for the output to drain.
+ */
+public class PadArchiveExporter {
+    private static final Logger log = LoggerFactory.getLogger(PadArchiveExporter.class);
+
+    private final Vertx vertx;
+    private final Function<JsonObject, EPLiteClient> clientResolver;
+    private final PadArchive padArchive;
+    private final long padTimeout;
+
+    public PadArchiveExporter(final Vertx vertx, final Function<JsonObject, EPLiteClient> clientResolver,
+                              final PadArchive padArchive, final long padTimeout) {
+        this.vertx = vertx;
+        this.clientResolver = clientResolver;
+        this.padArchive = padArchive;
+        this.padTimeout = padTimeout;
+    }
+
+    /**
+     * Write the pads read from the stream into a zip archive.
+     * @param pads pad documents
+     * @param out destination of the archive, ended when the export completes
+     * @return export statistics: exported pads, failures and duration
+     */
+    public Future<JsonObject> export(final ReadStream<JsonObject> pads, final HttpServerResponse out) {
+        final Promise<JsonObject> promise = Promise.promise();
+        final ChunkOutputStream chunks = new ChunkOutputStream();
+        final ZipOutputStream zip = new ZipOutputStream(chunks);
+        final Set<String> usedFileName = new HashSet<>();
+        final AtomicInteger exported = new AtomicInteger(0);
+        final AtomicInteger failures = new AtomicInteger(0);
+        final long start = System.currentTimeMillis();
+        final AtomicBoolean closed = new AtomicBoolean(false);
+
+        out.closeHandler(v -> {
+            if (closed.compareAndSet(false, true)) {
+                log.error("Collaborative Editor : archive export aborted, the connection was closed");
+                release(pads);
+                promise.tryFail("connection.closed");
+            }
+        });
+        out.exceptionHandler(th -> {
+            if (closed.compareAndSet(false, true)) {
+                log.error("Collaborative Editor : archive export aborted", th);
+                release(pads);
+                promise.tryFail(th);
+            }
+        });
+        pads.exceptionHandler(th -> {
+            log.error("Collaborative Editor : archive export interrupted", th);
+            if (closed.compareAndSet(false, true)) {
+                out.end();
+            }
+            promise.tryFail(th);
+        });
+        pads.endHandler(v -> {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                zip.finish();
+                flush(chunks, out);
+            } catch (IOException e) {
+                log.error("Collaborative Editor : could not finish the archive", e);
+            }
+            out.end();
+            promise.tryComplete(new JsonObject()
+                    .put("exported", exported.get())
+                    .put("failures", failures.get())
+                    .put("duration", System.currentTimeMillis() - start));
+        });
+        pads.handler(pad -> {
+            pads.pause();
+            writePad(pad, zip, usedFileName).onComplete(ar -> {
+                if (ar.succeeded()) {
+                    exported.incrementAndGet();
+                } else {
+                    failures.incrementAndGet();
+                    log.error("Collaborative Editor : could not archive pad " + pad.getString("_id") + " : " + ar.cause().getMessage());
+                }
+                if (closed.get()) {
+                    return;
+                }
+                flush(chunks, out);
+                if (out.writeQueueFull()) {
+                    out.drainHandler(d -> pads.resume());
+                } else {
+                    pads.resume();
+                }
+            });
+        });
+        return promise.future();
+    }
+
+    private Future<Void> writePad(final JsonObject pad, final ZipOutputStream zip, final Set<String> usedFileName) {
+        String fileName = pad.getString("title");
+        if (fileName == null) {
+            fileName = pad.getString("name");
+        }
+        fileName = StringUtils.replaceForbiddenCharacters(fileName);
+        if (!usedFileName.add(fileName)) {
+            fileName += "_" + pad.getString("_id");
+        }
+        final String metadataEntry = fileName;
+        final String padId = pad.getString("epName");
+        return getHTML(pad).compose(html -> {
+            try {
+                writeEntry(zip, metadataEntry, pad.toBuffer());
+                writeEntry(zip, "Pad_" + padId, html.toBuffer());
+                return Future.succeededFuture();
+            } catch (IOException e) {
+                return Future.failedFuture(e);
+            }
+        });
+    }
+
+    private Future<JsonObject> getHTML(final JsonObject pad) {
+        if (pad.getBoolean(PadArchive.FIELD, false)) {
+            return padArchive.html(pad.getString("_id")).map(html -> new JsonObject().put("html", html));
+        }
+        final EPLiteClient client = clientResolver.apply(pad);
+        if (client == null) {
+            return Future.failedFuture("no.pad.client");
+        }
+        final String padId = pad.getString("epName");
+        final Promise<JsonObject> promise = Promise.promise();
+        final long timerId = vertx.setTimer(padTimeout, t -> promise.tryFail("timeout after " + padTimeout + " ms"));
+        client.getHTML(padId, res -> {
+            vertx.cancelTimer(timerId);
+            if (res != null && "ok".equals(res.getString("status"))) {
+                res.remove("status");
+                promise.tryComplete(res);
+            } else {
+                promise.tryFail(res != null ? res.getString("message", "") : "no response");
+            }
+        });
+        return promise.future();
+    }
+
+    /**
+     * Stop reading the pads: removing the handler cancels the subscription, which closes the Mongo cursor.
+     */
+    private static void release(final ReadStream<JsonObject> pads) {
+        pads.handler(null);
+        pads.endHandler(null);
+        pads.exceptionHandler(null);
+    }
+
+    private static void flush(final ChunkOutputStream chunks, final HttpServerResponse out) {
+        final Buffer chunk = chunks.drain();
+        if (chunk.length() > 0) {
+            out.write(chunk);
+        }
+    }
+
+    private static void writeEntry(final ZipOutputStream zip, final String name, final Buffer content) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content.getBytes());
+        zip.closeEntry();
+    }
+
+    /**
+     * Collects the compressed bytes until they are handed to the WriteStream.
+     */
+    private static class ChunkOutputStream extends OutputStream {
+        private Buffer pending = Buffer.buffer();
+
+        @Override
+        public void write(int b) {
+            pending.appendByte((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            pending.appendBytes(b, off, len);
+        }
+
+        private Buffer drain() {
+            final Buffer chunk = pending;
+            pending = Buffer.buffer();
+            return chunk;
+        }
+    }
+}
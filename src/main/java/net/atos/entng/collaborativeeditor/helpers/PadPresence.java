@@ -0,0 +1,230 @@
+package net.atos.entng.collaborativeeditor.helpers;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import org.etherpad_lite_client.EPLiteClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Presence of the users on the pads, pushed to the browsers as server-sent events. Each watched pad is sampled
+ * with padUsers by a single sampler shared by all its viewers on this node: every "presence-min-interval" while
+ * someone is on it, backing off up to "presence-max-interval" while it stays empty. A change is encoded once and
+ * the same buffer is written to every viewer of the pad.
+ */
+public class PadPresence implements Handler<Long> {
+
+    private static final Logger log = LoggerFactory.getLogger(PadPresence.class);
+    private static final Buffer HEARTBEAT = Buffer.buffer(":\n\n");
+    private final Map<String, EPLiteClient> clientByDomain;
+    private final Map<String, Watch> watches = new ConcurrentHashMap<>();
+    private final Set<Viewer> viewers = ConcurrentHashMap.newKeySet();
+    private final long minInterval;
+    private final long maxInterval;
+    private final long heartbeat;
+    private final int maxPads;
+    private final AtomicLong samples = new AtomicLong();
+    private final AtomicLong changes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private long lastHeartbeat = System.currentTimeMillis();
+
+    public PadPresence(final Vertx vertx, final Map<String, EPLiteClient> clientByDomain, final JsonObject config) {
+        this.clientByDomain = clientByDomain;
+        this.minInterval = config.getLong("presence-min-interval", 2000L);
+        this.maxInterval = Math.max(minInterval, config.getLong("presence-max-interval", 30000L));
+        this.heartbeat = config.getLong("presence-heartbeat", 25000L);
+        this.maxPads = config.getInteger("presence-max-pads", 200);
+        vertx.setPeriodic(Math.max(500L, minInterval / 2), this);
+    }
+
+    /**
+     * @return maximum number of pads a viewer can watch
+     */
+    public int getMaxPads() {
+        return maxPads;
+    }
+
+    /**
+     * Turn the response into an event stream of the presence on the given pads. The stream is closed by the
+     * browser, the pads are no longer sampled once their last viewer is gone.
+     * @param response HTTP response of the viewer
+     * @param pads pad documents holding _id, epName and epDomain, the read right being already checked
+     * @param fallbackDomain domain to use when a pad does not know its backend
+     */
+    public void subscribe(final HttpServerResponse response, final List<JsonObject> pads, final String fallbackDomain) {
+        response.setChunked(true)
+                .putHeader("Content-Type", "text/event-stream")
+                .putHeader("Cache-Control", "no-cache")
+                .putHeader("X-Accel-Buffering", "no");
+        response.write("retry: " + maxInterval + "\n\n");
+        final Viewer viewer = new Viewer(response);
+        for (final JsonObject pad : pads) {
+            final String domain = clientByDomain.containsKey(pad.getString("epDomain")) ? pad.getString("epDomain") : fallbackDomain;
+            if (pad.getString("epName") == null || !clientByDomain.containsKey(domain)) {
+                continue;
+            }
+            final Watch watch = watches.computeIfAbsent(pad.getString("_id"),
+                    id -> new Watch(id, pad.getString("epName"), domain, minInterval));
+            watch.viewers.add(viewer);
+            viewer.watches.add(watch);
+            if (watch.event != null) {
+                response.write(watch.event);
+            } else {
+                // First viewer of the pad, sample it now
+                watch.nextAt = 0L;
+            }
+        }
+        viewers.add(viewer);
+        response.closeHandler(v -> unsubscribe(viewer));
+        response.exceptionHandler(th -> unsubscribe(viewer));
+    }
+
+    /**
+     * @return number of viewers and watched pads, and counters of this node
+     */
+    public JsonObject status() {
+        return new JsonObject()
+                .put("viewers", viewers.size())
+                .put("pads", watches.size())
+                .put("samples", samples.get())
+                .put("changes", changes.get())
+                .put("failures", failures.get());
+    }
+
+    @Override
+    public void handle(Long timerId) {
+        final long now = System.currentTimeMillis();
+        for (final Watch watch : watches.values()) {
+            if (!watch.sampling && watch.nextAt <= now) {
+                sample(watch);
+            }
+        }
+        if (now - lastHeartbeat >= heartbeat) {
+            // Keep the idle streams open through the proxies
+            lastHeartbeat = now;
+            for (final Viewer viewer : viewers) {
+                write(viewer, HEARTBEAT);
+            }
+        }
+    }
+
+    private void sample(final Watch watch) {
+        watch.sampling = true;
+        samples.incrementAndGet();
+        padUsers(watch).onComplete(ar -> {
+            watch.sampling = false;
+            if (ar.failed()) {
+                failures.incrementAndGet();
+                log.debug("[PadPresence] Could not sample pad " + watch.id + " : " + ar.cause().getMessage());
+                watch.interval = maxInterval;
+                watch.nextAt = System.currentTimeMillis() + watch.interval;
+                return;
+            }
+            final JsonArray users = ar.result();
+            final boolean changed = !users.equals(watch.users);
+            // Sample busy or changing pads often, back off on the quiet ones
+            watch.interval = changed || !users.isEmpty() ? minInterval : Math.min(maxInterval, watch.interval * 2);
+            watch.nextAt = System.currentTimeMillis() + watch.interval;
+            if (!changed && watch.event != null) {
+                return;
+            }
+            changes.incrementAndGet();
+            watch.users = users;
+            final JsonObject data = new JsonObject()
+                    .put("_id", watch.id)
+                    .put("count", users.size())
+                    .put("users", users);
+            watch.event = Buffer.buffer("event: presence\ndata: " + data.encode() + "\n\n");
+            for (final Viewer viewer : watch.viewers) {
+                write(viewer, watch.event);
+            }
+        });
+    }
+
+    private Future<JsonArray> padUsers(final Watch watch) {
+        final Promise<JsonArray> promise = Promise.promise();
+        clientByDomain.get(watch.domain).padUsers(watch.padId, res -> {
+            if (res == null || !"ok".equals(res.getString("status"))) {
+                promise.fail(res != null ? res.getString("message", "") : "no response");
+                return;
+            }
+            // Only the display attributes are sent, the Etherpad author ids stay on the server
+            final JsonArray users = new JsonArray();
+            for (final Object o : res.getJsonArray("padUsers", new JsonArray())) {
+                if (o instanceof JsonObject) {
+                    final JsonObject user = (JsonObject) o;
+                    users.add(new JsonObject()
+                            .put("name", user.getString("name", ""))
+                            .put("colorId", user.getValue("colorId")));
+                }
+            }
+            promise.complete(users);
+        });
+        return promise.future();
+    }
+
+    private void write(final Viewer viewer, final Buffer event) {
+        if (viewer.response.writeQueueFull()) {
+            // A slow viewer misses updates rather than buffering them, the next change brings it back in sync
+            return;
+        }
+        try {
+            viewer.response.write(event);
+        } catch (IllegalStateException e) {
+            unsubscribe(viewer);
+        }
+    }
+
+    private void unsubscribe(final Viewer viewer) {
+        if (!viewers.remove(viewer)) {
+            return;
+        }
+        for (final Watch watch : viewer.watches) {
+            watch.viewers.remove(viewer);
+            if (watch.viewers.isEmpty()) {
+                watches.remove(watch.id, watch);
+            }
+        }
+    }
+
+    private static class Watch {
+        private final String id;
+        private final String padId;
+        private final String domain;
+        private final Set<Viewer> viewers = ConcurrentHashMap.newKeySet();
+        private volatile JsonArray users;
+        private volatile Buffer event;
+        private volatile boolean sampling;
+        private volatile long interval;
+        private volatile long nextAt;
+
+        private Watch(final String id, final String padId, final String domain, final long interval) {
+            this.id = id;
+            this.padId = padId;
+            this.domain = domain;
+            this.interval = interval;
+        }
+    }
+
+    private static class Viewer {
+        private final HttpServerResponse response;
+        private final List<Watch> watches = new ArrayList<>();
+
+        private Viewer(final HttpServerResponse response) {
+            this.response = response;
+        }
+    }
+}
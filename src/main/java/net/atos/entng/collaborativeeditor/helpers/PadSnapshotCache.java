@@ -0,0 +1,206 @@
+package net.atos.entng.collaborativeeditor.helpers;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import org.etherpad_lite_client.EPLiteClient;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sanitised HTML snapshots of the pads, served to the read-only viewers. A snapshot is keyed by the pad
+ * name and tagged with the revision count it was taken at. The revision count is checked at most once per
+ * "snapshot-check-interval", and the HTML is only fetched again when it moved, so a burst of viewers costs
+ * at most one getRevisionsCount call per interval.
+ */
+public class PadSnapshotCache {
+
+    private static final Logger log = LoggerFactory.getLogger(PadSnapshotCache.class);
+    private static final Pattern BODY = Pattern.compile("<body[^>]*>(.*)</body>", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern DANGEROUS = Pattern.compile(
+            "<(script|style|iframe|object|embed|template|noscript|svg|math)\\b.*?</\\1\\s*>", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern TAG = Pattern.compile("<(/?)([a-zA-Z][a-zA-Z0-9]*)([^>]*)>");
+    private static final Pattern HREF = Pattern.compile("href\\s*=\\s*(\"([^\"]*)\"|'([^']*)')", Pattern.CASE_INSENSITIVE);
+    private static final Set<String> ALLOWED_TAGS = new HashSet<>(Arrays.asList(
+            "p", "br", "div", "span", "strong", "b", "em", "i", "u", "s", "del", "code", "pre", "blockquote",
+            "ul", "ol", "li", "h1", "h2", "h3", "h4", "h5", "h6", "a"));
+
+    private final Map<String, Snapshot> snapshots;
+    private final Map<String, Future<Snapshot>> refreshing = new ConcurrentHashMap<>();
+    private final long checkInterval;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public PadSnapshotCache(final JsonObject config) {
+        final int size = config.getInteger("snapshot-cache-size", 1000);
+        this.checkInterval = config.getLong("snapshot-check-interval", 2000L);
+        this.snapshots = new LinkedHashMap<String, Snapshot>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Snapshot> eldest) {
+                return size() > size;
+            }
+        };
+    }
+
+    /**
+     * Get the snapshot of a pad, refreshing it if the pad has new revisions.
+     * @param client Etherpad client of the backend hosting the pad
+     * @param padId pad name
+     * @return the snapshot
+     */
+    public Future<Snapshot> get(final EPLiteClient client, final String padId) {
+        final Snapshot cached;
+        synchronized (snapshots) {
+            cached = snapshots.get(padId);
+        }
+        final long now = System.currentTimeMillis();
+        if (cached != null && now - cached.checkedAt < checkInterval) {
+            hits.incrementAndGet();
+            return Future.succeededFuture(cached);
+        }
+        final Promise<Snapshot> promise = Promise.promise();
+        final Future<Snapshot> running = refreshing.putIfAbsent(padId, promise.future());
+        if (running != null) {
+            return running;
+        }
+        revalidate(client, padId, cached).onComplete(ar -> {
+            refreshing.remove(padId);
+            if (ar.failed()) {
+                failures.incrementAndGet();
+                log.warn("[PadSnapshotCache] Could not refresh pad " + padId + " : " + ar.cause().getMessage());
+            }
+            promise.handle(ar);
+        });
+        return promise.future();
+    }
+
+    /**
+     * @return size and counters of this node
+     */
+    public JsonObject status() {
+        final int size;
+        synchronized (snapshots) {
+            size = snapshots.size();
+        }
+        return new JsonObject()
+                .put("size", size)
+                .put("hits", hits.get())
+                .put("revalidations", revalidations.get())
+                .put("refreshes", refreshes.get())
+                .put("failures", failures.get());
+    }
+
+    private Future<Snapshot> revalidate(final EPLiteClient client, final String padId, final Snapshot cached) {
+        return etherpadCall(handler -> client.getRevisionsCount(padId, handler)).compose(count -> {
+            final long revisions = count.getLong("revisions", 0L);
+            if (cached != null && cached.revisions == revisions) {
+                revalidations.incrementAndGet();
+                cached.checkedAt = System.currentTimeMillis();
+                return Future.succeededFuture(cached);
+            }
+            final Future<JsonObject> html = etherpadCall(handler -> client.getHTML(padId, handler));
+            final Future<JsonObject> lastEdited = etherpadCall(handler -> client.getLastEdited(padId, handler))
+                    .otherwise(new JsonObject());
+            return html.compose(h -> lastEdited.map(edited -> {
+                refreshes.incrementAndGet();
+                final Snapshot snapshot = new Snapshot(revisions, sanitize(h.getString("html", "")),
+                        "\"" + Integer.toHexString(padId.hashCode()) + "-" + revisions + "\"",
+                        edited.getLong("lastEdited", System.currentTimeMillis()));
+                synchronized (snapshots) {
+                    snapshots.put(padId, snapshot);
+                }
+                return snapshot;
+            }));
+        });
+    }
+
+    /**
+     * Keep the body of the Etherpad export, drop the active elements and every attribute but the http(s)
+     * and mailto links.
+     */
+    static String sanitize(final String html) {
+        final Matcher body = BODY.matcher(html);
+        final String content = DANGEROUS.matcher(body.find() ? body.group(1) : html).replaceAll("");
+        final Matcher tag = TAG.matcher(content);
+        final StringBuilder sanitized = new StringBuilder();
+        int last = 0;
+        while (tag.find()) {
+            // Whatever is not a recognised tag is text, stray angle brackets included
+            escape(content.substring(last, tag.start()), sanitized);
+            last = tag.end();
+            final String name = tag.group(2).toLowerCase();
+            if (!ALLOWED_TAGS.contains(name)) {
+                continue;
+            }
+            sanitized.append('<').append(tag.group(1)).append(name);
+            if ("a".equals(name) && tag.group(1).isEmpty()) {
+                final Matcher href = HREF.matcher(tag.group(3));
+                if (href.find()) {
+                    final String url = href.group(2) != null ? href.group(2) : href.group(3);
+                    if (url.matches("(?i)^(https?:|mailto:).*") && !url.contains("\"")) {
+                        sanitized.append(" href=\"").append(url).append("\" target=\"_blank\" rel=\"noopener noreferrer\"");
+                    }
+                }
+            }
+            sanitized.append('>');
+        }
+        escape(content.substring(last), sanitized);
+        return sanitized.toString();
+    }
+
+    private static void escape(final String text, final StringBuilder out) {
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == '<') {
+                out.append("&lt;");
+            } else if (c == '>') {
+                out.append("&gt;");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    private static Future<JsonObject> etherpadCall(final Handler<Handler<JsonObject>> call) {
+        final Promise<JsonObject> promise = Promise.promise();
+        call.handle(res -> {
+            if (res != null && "ok".equals(res.getString("status"))) {
+                promise.complete(res);
+            } else {
+                promise.fail(res != null ? res.getString("message", "") : "no response");
+            }
+        });
+        return promise.future();
+    }
+
+    /**
+     * Sanitised HTML of a pad at a revision count.
+     */
+    public static class Snapshot {
+        public final long revisions;
+        public final String html;
+        public final String etag;
+        public final long lastModified;
+        private volatile long checkedAt = System.currentTimeMillis();
+
+        private Snapshot(final long revisions, final String html, final String etag, final long lastModified) {
+            this.revisions = revisions;
+            this.html = html;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package net.atos.entng.collaborativeeditor.helpers;
+
+import com.mongodb.client.model.Filters;
+import fr.wseduc.mongodb.MongoDb;
+import fr.wseduc.mongodb.MongoUpdateBuilder;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import net.atos.entng.collaborativeeditor.CollaborativeEditor;
+import org.bson.conversions.Bson;
+import org.entcore.common.mongodb.MongoDbResult;
+import org.entcore.common.user.UserInfos;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Maintains "visibleTo", a flat and indexed copy of the owner and of the "shared" array of a pad:
+ * <ul>
+ *     <li>"&lt;id&gt;" for the owner and for every user or group the pad is shared with,</li>
+ *     <li>"owner:&lt;userId&gt;" for the owner, who has every right,</li>
+ *     <li>"&lt;right&gt;:&lt;id&gt;" for every right given to a user or a group.</li>
+ * </ul>
+ * Listing is then a single $in on the ids of the user and their groups, and authorising a single $in on the
+ * same ids prefixed by the right. The array is written with the pad and refreshed by the share service before
+ * the share is notified. While the backfill migration runs, "visibility-fallback" adds the owner and "shared"
+ * predicates to the filters; it is off by default.
+ */
+public final class PadVisibility {
+
+    public static final String FIELD = "visibleTo";
+    private static final String OWNER_PREFIX = "owner:";
+
+    private static final Logger log = LoggerFactory.getLogger(PadVisibility.class);
+    private static volatile boolean fallback = false;
+
+    private PadVisibility() {
+    }
+
+    /**
+     * @param pad pad document holding "owner" and "shared"
+     * @return the visibleTo array of the pad
+     */
+    public static JsonArray compute(final JsonObject pad) {
+        final Set<String> entries = new LinkedHashSet<>();
+        final JsonObject owner = pad.getJsonObject("owner");
+        if (owner != null && owner.getString("userId") != null) {
+            entries.add(owner.getString("userId"));
+            entries.add(OWNER_PREFIX + owner.getString("userId"));
+        }
+        for (final Object o : pad.getJsonArray("shared", new JsonArray())) {
+            if (!(o instanceof JsonObject)) continue;
+            final JsonObject share = (JsonObject) o;
+            final String id = share.getString("userId", share.getString("groupId"));
+            if (id == null) continue;
+            entries.add(id);
+            for (final String right : share.fieldNames()) {
+                if (!"userId".equals(right) && !"groupId".equals(right) && Boolean.TRUE.equals(share.getValue(right))) {
+                    entries.add(right + ":" + id);
+                }
+            }
+        }
+        return new JsonArray(new ArrayList<>(entries));
+    }
+
+    /**
+     * @param user user
+     * @return the entries matching any pad the user can see
+     */
+    public static JsonArray visibleBy(final UserInfos user) {
+        final JsonArray ids = new JsonArray().add(user.getUserId());
+        final List<String> groupsIds = user.getGroupsIds();
+        if (groupsIds != null) {
+            groupsIds.forEach(ids::add);
+        }
+        return ids;
+    }
+
+    /**
+     * @param user user
+     * @param right shared method name, with "-" instead of "."
+     * @return the entries matching any pad on which the user has the right
+     */
+    public static JsonArray grantedTo(final UserInfos user, final String right) {
+        final JsonArray entries = new JsonArray().add(OWNER_PREFIX + user.getUserId()).add(right + ":" + user.getUserId());
+        final List<String> groupsIds = user.getGroupsIds();
+        if (groupsIds != null) {
+            groupsIds.forEach(groupId -> entries.add(right + ":" + groupId));
+        }
+        return entries;
+    }
+
+    /**
+     * @param config module config, "visibility-fallback" to also match the pads on their owner and shares
+     */
+    public static void configure(final JsonObject config) {
+        fallback = config.getBoolean("visibility-fallback", false);
+    }
+
+    /**
+     * @param user user
+     * @return the filter of the pads the user can see
+     */
+    public static Bson visibleFilter(final UserInfos user) {
+        return visibleFilter(user.getUserId(), groupsIds(user));
+    }
+
+    /**
+     * @param userId user id
+     * @param groupsIds ids of the groups of the user
+     * @return the filter of the pads the user can see: a single probe of the visibleTo index
+     */
+    public static Bson visibleFilter(final String userId, final List<String> groupsIds) {
+        final List<String> ids = new ArrayList<>();
+        ids.add(userId);
+        ids.addAll(groupsIds);
+        final Bson visible = Filters.in(FIELD, ids);
+        if (!fallback) {
+            return visible;
+        }
+        return Filters.or(visible,
+                Filters.eq("owner.userId", userId),
+                Filters.eq("shared.userId", userId),
+                Filters.in("shared.groupId", groupsIds));
+    }
+
+    /**
+     * @param user user
+     * @param right shared method name, with "-" instead of "."
+     * @return the filter of the pads on which the user has the right: a single probe of the visibleTo index
+     */
+    public static Bson grantedFilter(final UserInfos user, final String right) {
+        final Bson granted = Filters.in(FIELD, grantedTo(user, right).getList());
+        if (!fallback) {
+            return granted;
+        }
+        return Filters.or(granted,
+                Filters.eq("owner.userId", user.getUserId()),
+                Filters.elemMatch("shared", Filters.and(Filters.eq("userId", user.getUserId()), Filters.eq(right, true))),
+                Filters.elemMatch("shared", Filters.and(Filters.in("groupId", groupsIds(user)), Filters.eq(right, true))));
+    }
+
+    private static List<String> groupsIds(final UserInfos user) {
+        return user.getGroupsIds() != null ? user.getGroupsIds() : Collections.emptyList();
+    }
+
+    /**
+     * @param pad pad document holding "owner", "shared" and "visibleTo"
+     * @return true if the stored visibleTo array matches the owner and shares of the pad
+     */
+    private static boolean isUpToDate(final JsonObject pad) {
+        final JsonArray stored = pad.getJsonArray(FIELD);
+        return stored != null && new LinkedHashSet<>(stored.getList()).equals(new LinkedHashSet<>(compute(pad).getList()));
+    }
+
+    /**
+     * Recompute the visibleTo array of a pad from its stored owner and shares. The array is only written if
+     * "owner" and "shared" are still the ones it was computed from, a concurrent share change is read again.
+     * @param id pad id
+     */
+    public static Future<Void> refresh(final String id) {
+        return refresh(id, 3).onFailure(th -> log.error("[PadVisibility] Could not refresh the visibility of pad " + id + " : " + th.getMessage()));
+    }
+
+    private static Future<Void> refresh(final String id, final int attempts) {
+        final Promise<Void> promise = Promise.promise();
+        final MongoDb mongo = MongoDb.getInstance();
+        final JsonObject query = new JsonObject().put("_id", id);
+        final JsonObject keys = new JsonObject().put("owner", 1).put("shared", 1).put(FIELD, 1);
+        mongo.findOne(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, query, keys, MongoDbResult.validResultHandler(event -> {
+            if (event.isLeft() || event.right().getValue().isEmpty()) {
+                promise.fail(event.isLeft() ? event.left().getValue() : "not.found");
+                return;
+            }
+            final JsonObject pad = event.right().getValue();
+            if (isUpToDate(pad)) {
+                promise.complete();
+                return;
+            }
+            // Compare and set on the fields the array is computed from
+            final JsonObject unchanged = query.copy()
+                    .put("owner", sameAs(pad, "owner"))
+                    .put("shared", sameAs(pad, "shared"));
+            final MongoUpdateBuilder modifier = new MongoUpdateBuilder().set(FIELD, compute(pad));
+            mongo.update(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, unchanged, modifier.build(), updateEvent -> {
+                final JsonObject body = updateEvent.body();
+                if (!"ok".equals(body.getString("status"))) {
+                    promise.fail(body.getString("message", ""));
+                } else if (body.getInteger("number", 0) > 0) {
+                    promise.complete();
+                } else if (attempts > 1) {
+                    refresh(id, attempts - 1).onComplete(promise);
+                } else {
+                    promise.fail("shared.changed");
+                }
+            });
+        }));
+        return promise.future();
+    }
+
+    private static Object sameAs(final JsonObject pad, final String field) {
+        return pad.containsKey(field) ? pad.getValue(field) : new JsonObject().put("$exists", false);
+    }
+}
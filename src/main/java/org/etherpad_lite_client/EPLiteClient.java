@@ -21,6 +21,7 @@ package org.etherpad_lite_client;
 
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 
 import java.net.URLEncoder;
@@ -37,6 +38,26 @@ public class EPLiteClient {
      */
     public static final String DEFAULT_API_VERSION = "1.2.1";
 
+    /**
+     * The latest Etherpad Lite API version this client knows, the negotiated version never goes beyond it
+     */
+    public static final String LATEST_API_VERSION = "1.3.0";
+
+    /**
+     * The first Etherpad Lite API version providing copyPad and movePad
+     */
+    public static final String COPY_PAD_API_VERSION = "1.2.8";
+
+    /**
+     * The first Etherpad Lite API version providing getSavedRevisionsCount
+     */
+    public static final String SAVED_REVISIONS_API_VERSION = "1.2.11";
+
+    /**
+     * The first Etherpad Lite API version providing getStats
+     */
+    public static final String STATS_API_VERSION = "1.2.14";
+
     public static final Boolean DEFAULT_TRUST_ALL_CERTIFICATE = false;
 
     /**
@@ -382,6 +403,71 @@ public class EPLiteClient {
         this.connection.get("getRevisionsCount", args, handler);
     }
 
+    /**
+     * Copies a pad with its whole history, inside Etherpad. The destination is overwritten if force is true.
+     * Requires the API version 1.2.8.
+     */
+    public void copyPad(String sourceId, String destinationId, Boolean force, final Handler<JsonObject> handler) {
+        if (!supports(COPY_PAD_API_VERSION)) {
+            handler.handle(unsupported("copyPad", COPY_PAD_API_VERSION));
+            return;
+        }
+        HashMap args = new HashMap();
+        args.put("sourceID", sourceId);
+        args.put("destinationID", destinationId);
+        args.put("force", force);
+        this.connection.post("copyPad", args, handler);
+    }
+
+    /**
+     * Moves a pad with its whole history, inside Etherpad. The destination is overwritten if force is true.
+     * Requires the API version 1.2.8.
+     */
+    public void movePad(String sourceId, String destinationId, Boolean force, final Handler<JsonObject> handler) {
+        if (!supports(COPY_PAD_API_VERSION)) {
+            handler.handle(unsupported("movePad", COPY_PAD_API_VERSION));
+            return;
+        }
+        HashMap args = new HashMap();
+        args.put("sourceID", sourceId);
+        args.put("destinationID", destinationId);
+        args.put("force", force);
+        this.connection.post("movePad", args, handler);
+    }
+
+    /**
+     * Returns the number of saved revisions of this pad. The number is in "savedRevisions". Requires the API
+     * version 1.2.11.
+     */
+    public void getSavedRevisionsCount(String padId, final Handler<JsonObject> handler) {
+        if (!supports(SAVED_REVISIONS_API_VERSION)) {
+            handler.handle(unsupported("getSavedRevisionsCount", SAVED_REVISIONS_API_VERSION));
+            return;
+        }
+        HashMap args = new HashMap();
+        args.put("padID", padId);
+        this.connection.get("getSavedRevisionsCount", args, handler);
+    }
+
+    /**
+     * Returns the statistics of the server: "totalPads", "totalSessions" and "totalActivePads". Before the API
+     * version 1.2.14 only "totalPads" is returned, counted from listAllPads.
+     */
+    public void getStats(final Handler<JsonObject> handler) {
+        if (supports(STATS_API_VERSION)) {
+            this.connection.get("getStats", handler);
+            return;
+        }
+        this.listAllPads(res -> {
+            if ("ok".equals(res.getString("status"))) {
+                handler.handle(new JsonObject().put("status", "ok")
+                        .put("totalPads", res.getJsonArray("padIDs", new JsonArray()).size()));
+            } else {
+                handler.handle(res);
+            }
+        });
+    }
+
     /**
      * List the ids of authors who have edited a pad. They will be in an array inside "authorIDs".
      */
@@ -486,6 +572,78 @@ public class EPLiteClient {
         this.connection.post("sendClientsMessage", args, handler);
     }
 
+    /**
+     * Asks the server for the latest API version it offers and uses it, up to LATEST_API_VERSION. The
+     * configured version is kept if the server is older or does not answer. The version in use is returned
+     * in "apiVersion".
+     */
+    public void negotiateApiVersion(final Handler<JsonObject> handler) {
+        this.connection.getCurrentVersion(res -> {
+            final String configured = this.connection.apiVersion;
+            if (!"ok".equals(res.getString("status"))) {
+                handler.handle(new JsonObject().put("status", "error").put("apiVersion", configured).put("message", res.getString("message")));
+                return;
+            }
+            final String offered = res.getString("currentVersion");
+            try {
+                String version = compareVersions(offered, LATEST_API_VERSION) > 0 ? LATEST_API_VERSION : offered;
+                if (compareVersions(version, configured) > 0) {
+                    this.connection.apiVersion = version;
+                }
+                handler.handle(new JsonObject().put("status", "ok").put("apiVersion", this.connection.apiVersion).put("serverVersion", offered));
+            } catch (NumberFormatException e) {
+                handler.handle(new JsonObject().put("status", "error").put("apiVersion", configured).put("message", "Invalid API version " + offered));
+            }
+        });
+    }
+
+    /**
+     * Returns the API version used by this client.
+     */
+    public String getApiVersion() {
+        return this.connection.apiVersion;
+    }
+
+    /**
+     * Returns the optional API methods usable with the API version of this client.
+     */
+    public JsonObject capabilities() {
+        return new JsonObject()
+                .put("apiVersion", getApiVersion())
+                .put("copyPad", supports(COPY_PAD_API_VERSION))
+                .put("movePad", supports(COPY_PAD_API_VERSION))
+                .put("getSavedRevisionsCount", supports(SAVED_REVISIONS_API_VERSION))
+                .put("getStats", supports(STATS_API_VERSION));
+    }
+
+    /**
+     * Returns true if the API version used by this client is at least the given version.
+     */
+    public boolean supports(String minApiVersion) {
+        return compareVersions(this.connection.apiVersion, minApiVersion) >= 0;
+    }
+
+    /**
+     * Compares two dotted version numbers, a missing part counting as 0.
+     */
+    public static int compareVersions(String v1, String v2) {
+        final String[] parts1 = v1.split("\\.");
+        final String[] parts2 = v2.split("\\.");
+        for (int i = 0; i < Math.max(parts1.length, parts2.length); i++) {
+            final int p1 = i < parts1.length ? Integer.parseInt(parts1[i]) : 0;
+            final int p2 = i < parts2.length ? Integer.parseInt(parts2[i]) : 0;
+            if (p1 != p2) {
+                return Integer.compare(p1, p2);
+            }
+        }
+        return 0;
+    }
+
+    private JsonObject unsupported(String apiMethod, String minApiVersion) {
+        return new JsonObject().put("status", "error").put("code", "unsupported")
+                .put("message", apiMethod + " requires the API version " + minApiVersion + ", the client uses " + this.connection.apiVersion);
+    }
+
     /**
      * Returns true if the connection is using SSL/TLS, false if not.
      */
@@ -19,6 +19,7 @@
 
 package org.etherpad_lite_client;
 
+import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
@@ -61,9 +62,9 @@ public class EPLiteConnection {
     public final String apiKey;
 
     /**
-     * The Etherpad Lite API version
+     * The Etherpad Lite API version, raised once the version offered by the server is known
      */
-    public final String apiVersion;
+    public volatile String apiVersion;
 
     private final HttpClient httpClient;
 
@@ -147,6 +148,36 @@ public class EPLiteConnection {
         this.callPost(url, postArgs, handler);
     }
 
+    /**
+     * GETs the latest API version offered by the server. The version is returned in "currentVersion".
+     */
+    public void getCurrentVersion(final Handler<JsonObject> handler) {
+        final URL url = apiUrl(this.uri.getPath() + "/api", null);
+        httpClient.request(new RequestOptions()
+                .setMethod(HttpMethod.GET)
+                .setURI(url.toString()))
+                .flatMap(HttpClientRequest::send)
+                .flatMap(response -> response.statusCode() == 200
+                        ? response.body()
+                        : Future.<Buffer>failedFuture(response.statusMessage()))
+                .onSuccess(body -> {
+                    try {
+                        final JsonObject version = body.toJsonObject();
+                        if (version.getString("currentVersion") != null) {
+                            handler.handle(version.put("status", "ok"));
+                        } else {
+                            handler.handle(new JsonObject().put("status", "error").put("message", "no currentVersion in " + body));
+                        }
+                    } catch (RuntimeException e) {
+                        handler.handle(new JsonObject().put("status", "error").put("message", "Unable to parse API version (" + body + ")"));
+                    }
+                })
+                .onFailure(th -> {
+                    log.error("Error while calling Pad on url [GET] " + url, th);
+                    handler.handle(new JsonObject().put("status", "error").put("message", th.getMessage()));
+                });
+    }
+
     /**
      * Calls the HTTP JSON API.
      * FIXME Post call doesn't work due to unauthorized error (I have simulate query with another client and the result is the same)
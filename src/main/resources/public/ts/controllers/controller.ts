@@ -28,7 +28,6 @@ export const CollaborativeEditorController: Controller = ng.controller('Collabor
     $scope.creatingPad = false;
     $scope.loading = false;
 
-    const sleep = (ms: number) => new Promise((r) => setTimeout(r, ms));
 
     // By default open the collaborative editor list
     //template.open('collaborativeeditor', 'collaborativeeditor-list');
@@ -75,11 +74,45 @@ export const CollaborativeEditorController: Controller = ng.controller('Collabor
     };
 
 
+    /**
+     * Follow the users present on the listed collaborative editors. The server watches the pads visible by the
+     * user, most recently modified first, and only sends the changes.
+     */
+    $scope.watchPresence = function() {
+        $scope.unwatchPresence();
+        if (!window.EventSource || $scope.isEmpty()) {
+            return;
+        }
+        $scope.presence = new window.EventSource('/collaborativeeditor/list/presence');
+        $scope.presence.addEventListener('presence', function(event) {
+            const data = JSON.parse(event.data);
+            const c = _.find($scope.collaborativeeditors.all, function(collaborativeeditor) {
+                return collaborativeeditor._id === data._id;
+            });
+            if (c) {
+                c.presence = data;
+                $scope.$apply();
+            }
+        });
+    };
+
+    $scope.presenceNames = function(collaborativeeditor) {
+        return _.pluck(collaborativeeditor.presence.users, 'name').join(', ');
+    };
+
+    $scope.unwatchPresence = function() {
+        if ($scope.presence) {
+            $scope.presence.close();
+            delete $scope.presence;
+        }
+    };
+
     /**
      * Update the search bar according server collaborative editors
      */
     $scope.updateSearchBar = function() {
         model.collaborativeEditors.sync(function() {
+            $scope.watchPresence();
             $scope.searchbar.collaborativeeditors = $scope.collaborativeeditors.all.map(function(collaborativeeditor) {
                 return {
                     title : collaborativeeditor.name,
@@ -124,6 +157,7 @@ export const CollaborativeEditorController: Controller = ng.controller('Collabor
         delete $scope.selectedCollaborativeeditor;
         delete $scope.padUrl;
         $scope.notFound = false;
+        $scope.unwatchPresence();
 
 
         $scope.collaborativeeditors.forEach(function(c) {
@@ -131,18 +165,24 @@ export const CollaborativeEditorController: Controller = ng.controller('Collabor
         });
 
         $scope.collaborativeeditor = $scope.selectedCollaborativeeditor = collaborativeeditor;
+        // An archived pad is restored in Etherpad by the open request, which takes a little longer
+        $scope.restoring = !!collaborativeeditor.archived;
+
+        // The session cookie is set when the open request completes
+        try {
+            await $scope.collaborativeeditor.open();
+        } finally {
+            $scope.restoring = false;
+        }
+        delete collaborativeeditor.archived;
 
         if ($scope.canContributeCollaborativeeditor(collaborativeeditor)) {
             $scope.padUrl = $sce.trustAsResourceUrl(collaborativeeditor.url);
         } else {
-            $scope.padUrl = $sce.trustAsResourceUrl(collaborativeeditor.readOnlyUrl);
+            // Read-only viewers get the cached snapshot, not the live pad
+            $scope.padUrl = $sce.trustAsResourceUrl(collaborativeeditor.renderUrl || collaborativeeditor.readOnlyUrl);
         }
 
-        await $scope.collaborativeeditor.session();
-
-        //delay for set cookie
-        await sleep(1000);
-
         template.close('main');
         template.close('collaborativeeditor');
         template.close('etherpad');
@@ -65,18 +65,34 @@ collaborativeEditor.CollaborativeEditor.prototype.delete = function(callback) {
 };
 
 /**
- * Gets a session on the pad
- * @param callback a function to call after delete.
+ * Opens the pad in one request: the rights are checked, the pad urls are refreshed and the Etherpad session
+ * cookie is set (or the current one reused) before the returned promise resolves. When the server sheds the
+ * request (429 or 503), it is tried again after the Retry-After delay, spread so that the clients do not all
+ * come back at the same second.
+ * @param attempt number of the current attempt
+ * @return a promise resolved with the pad once it can be displayed
  */
-collaborativeEditor.CollaborativeEditor.prototype.session = function(callback) {
-    http().get('/collaborativeeditor/session/' + this._id).done(function() {
-        if(typeof callback === 'function'){
-            callback();
-        }
+collaborativeEditor.CollaborativeEditor.prototype.open = function(attempt?: number) {
+    attempt = attempt || 0;
+    return new Promise(function(resolve, reject) {
+        http().get('/collaborativeeditor/open/' + this._id).done(function(pad) {
+            this.url = pad.url;
+            this.readOnlyUrl = pad.readOnlyUrl;
+            this.renderUrl = pad.renderUrl;
+            resolve(pad);
+        }.bind(this)).error(function(xhr) {
+            if (xhr && (xhr.status === 429 || xhr.status === 503) && attempt < 3) {
+                const retryAfter = parseInt(xhr.getResponseHeader && xhr.getResponseHeader('Retry-After'), 10) || 1;
+                setTimeout(function() {
+                    this.open(attempt + 1).then(resolve, reject);
+                }.bind(this), (retryAfter + Math.random() * retryAfter) * 1000);
+            } else {
+                reject(xhr);
+            }
+        }.bind(this));
     }.bind(this));
 };
 
-
 /**
  * Removes a session on the pad
  * @param callback a function to call after delete.
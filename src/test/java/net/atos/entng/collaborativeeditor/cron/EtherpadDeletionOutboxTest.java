@@ -0,0 +1,205 @@
+package net.atos.entng.collaborativeeditor.cron;
+
+import fr.wseduc.mongodb.MongoDb;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.MongoClient;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import net.atos.entng.collaborativeeditor.CollaborativeEditor;
+import org.entcore.test.TestHelper;
+import org.etherpad_lite_client.EPLiteClient;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.testcontainers.containers.MongoDBContainer;
+
+import java.util.Collections;
+import java.util.Map;
+
+@RunWith(VertxUnitRunner.class)
+public class EtherpadDeletionOutboxTest {
+
+    private static final TestHelper test = TestHelper.helper();
+    private static final long RETRY_DELAY = 1000L;
+    private static final long MAX_RETRY_DELAY = 30000L;
+    private static final long DROP_GRACE = 60000L;
+
+    @ClassRule
+    public static MongoDBContainer mongoDBContainer = test.database().createMongoContainer();
+
+    private static MongoClient mongoClient;
+    private static Map<String, EPLiteClient> clientByDomain;
+
+    @BeforeClass
+    public static void setUp(TestContext context) {
+        test.database().initMongo(context, mongoDBContainer);
+        final Vertx vertx = test.vertx();
+        mongoClient = MongoClient.createShared(vertx, new JsonObject().put("connection_string", mongoDBContainer.getReplicaSetUrl()));
+        // Never called: the entries of these tests fail or are deferred before reaching the backend
+        clientByDomain = Collections.singletonMap("live.test",
+                new EPLiteClient(vertx, "http://localhost:9001", "apikey", EPLiteClient.DEFAULT_API_VERSION, false, new JsonObject()));
+    }
+
+    @Before
+    public void clearOutbox(TestContext context) {
+        // Entries rescheduled by a previous test must not become due during the next one
+        final Async async = context.async();
+        MongoDb.getInstance().delete(CollaborativeEditor.COLLABORATIVEEDITOR_OUTBOX_COLLECTION, new JsonObject(), event -> {
+            context.assertEquals("ok", event.body().getString("status"));
+            async.complete();
+        });
+    }
+
+    private static EtherpadDeletionOutbox outbox() {
+        final JsonObject config = new JsonObject()
+                .put("deletion-outbox-retry-delay", RETRY_DELAY)
+                .put("deletion-outbox-max-retry-delay", MAX_RETRY_DELAY)
+                .put("deletion-outbox-drop-grace", DROP_GRACE);
+        return new EtherpadDeletionOutbox(test.vertx(), mongoClient, clientByDomain, config);
+    }
+
+    @Test
+    public void testBackoff(TestContext context) {
+        final Async async = context.async();
+        final long now = System.currentTimeMillis();
+        final JsonArray entries = new JsonArray()
+                .add(entry("backoff-first", "unknown.test", 0, now))
+                .add(entry("backoff-fourth", "unknown.test", 3, now))
+                .add(entry("backoff-capped", "unknown.test", 30, now));
+        insert(CollaborativeEditor.COLLABORATIVEEDITOR_OUTBOX_COLLECTION, entries)
+                .compose(v -> drain(outbox()))
+                .compose(v -> find(new JsonObject().put("_id", new JsonObject().put("$in", new JsonArray()
+                        .add("backoff-first").add("backoff-fourth").add("backoff-capped")))))
+                .onComplete(context.asyncAssertSuccess(results -> {
+                    context.assertEquals(3, results.size());
+                    for (final Object o : results) {
+                        final JsonObject result = (JsonObject) o;
+                        final long delay = result.getLong("nextAttemptAt") - now;
+                        context.assertEquals("no.pad.client", result.getString("lastError"));
+                        switch (result.getString("_id")) {
+                            case "backoff-first":
+                                context.assertEquals(1, result.getInteger("attempts"));
+                                context.assertTrue(delay >= RETRY_DELAY && delay < 2 * RETRY_DELAY);
+                                break;
+                            case "backoff-fourth":
+                                context.assertEquals(4, result.getInteger("attempts"));
+                                context.assertTrue(delay >= 8 * RETRY_DELAY && delay < 9 * RETRY_DELAY);
+                                break;
+                            default:
+                                context.assertEquals(31, result.getInteger("attempts"));
+                                context.assertTrue(delay >= MAX_RETRY_DELAY && delay < MAX_RETRY_DELAY + RETRY_DELAY);
+                        }
+                    }
+                    async.complete();
+                }));
+    }
+
+    @Test
+    public void testLeasedOnce(TestContext context) {
+        final Async async = context.async();
+        final long now = System.currentTimeMillis();
+        final JsonArray entries = new JsonArray();
+        for (int i = 0; i < 50; i++) {
+            entries.add(entry("lease-" + i, "unknown.test", 0, now));
+        }
+        // Two nodes drain the same entries at the same time, each entry must be processed by one of them
+        insert(CollaborativeEditor.COLLABORATIVEEDITOR_OUTBOX_COLLECTION, entries)
+                .compose(v -> CompositeFuture.all(drain(outbox()), drain(outbox())))
+                .compose(v -> find(new JsonObject().put("_id", new JsonObject().put("$regex", "^lease-"))))
+                .onComplete(context.asyncAssertSuccess(results -> {
+                    context.assertEquals(50, results.size());
+                    for (final Object o : results) {
+                        context.assertEquals(1, ((JsonObject) o).getInteger("attempts"));
+                    }
+                    async.complete();
+                }));
+    }
+
+    @Test
+    public void testStillReferenced(TestContext context) {
+        final Async async = context.async();
+        final long now = System.currentTimeMillis();
+        final JsonObject pad = new JsonObject().put("_id", "referenced-pad").put("epName", "referenced")
+                .put("epGroupID", "g.referenced");
+        final JsonObject recent = entry("referenced-recent", "live.test", 0, now).put("target", "referenced");
+        final JsonObject old = entry("referenced-old", "live.test", 0, now).put("target", "referenced")
+                .put("created", now - 2 * DROP_GRACE);
+        final EtherpadDeletionOutbox outbox = outbox();
+        insert(CollaborativeEditor.COLLABORATIVEEDITOR_COLLECTION, new JsonArray().add(pad))
+                .compose(v -> insert(CollaborativeEditor.COLLABORATIVEEDITOR_OUTBOX_COLLECTION, new JsonArray().add(recent).add(old)))
+                .compose(v -> drain(outbox))
+                .compose(v -> find(new JsonObject().put("_id", new JsonObject().put("$regex", "^referenced-"))))
+                .compose(results -> {
+                    // The recent entry waits for its delete, the old one belongs to a delete that did not go through
+                    context.assertEquals(1, results.size());
+                    final JsonObject result = results.getJsonObject(0);
+                    context.assertEquals("referenced-recent", result.getString("_id"));
+                    context.assertEquals(0, result.getInteger("attempts"));
+                    context.assertEquals(1, result.getInteger("deferrals"));
+                    context.assertTrue(result.getLong("nextAttemptAt") - now >= RETRY_DELAY);
+                    return outbox.status();
+                })
+                .onComplete(context.asyncAssertSuccess(status -> {
+                    context.assertEquals(0L, status.getLong("failures"));
+                    context.assertEquals(1L, status.getLong("deferrals"));
+                    async.complete();
+                }));
+    }
+
+    private static JsonObject entry(final String id, final String domain, final int attempts, final long now) {
+        return new JsonObject()
+                .put("_id", id)
+                .put("type", EtherpadDeletionOutbox.TYPE_PAD)
+                .put("target", id)
+                .put("domain", domain)
+                .put("attempts", attempts)
+                .put("created", now)
+                .put("nextAttemptAt", now);
+    }
+
+    /**
+     * Drain the outbox and wait until its workers are done.
+     */
+    private static Future<Void> drain(final EtherpadDeletionOutbox outbox) {
+        final Promise<Void> promise = Promise.promise();
+        outbox.drain();
+        test.vertx().setPeriodic(50L, timerId -> outbox.status().onSuccess(status -> {
+            if (!status.getBoolean("draining") && test.vertx().cancelTimer(timerId)) {
+                promise.complete();
+            }
+        }));
+        return promise.future();
+    }
+
+    private static Future<Void> insert(final String collection, final JsonArray documents) {
+        final Promise<Void> promise = Promise.promise();
+        MongoDb.getInstance().insert(collection, documents, event -> {
+            if ("ok".equals(event.body().getString("status"))) {
+                promise.complete();
+            } else {
+                promise.fail(event.body().getString("message"));
+            }
+        });
+        return promise.future();
+    }
+
+    private static Future<JsonArray> find(final JsonObject query) {
+        final Promise<JsonArray> promise = Promise.promise();
+        MongoDb.getInstance().find(CollaborativeEditor.COLLABORATIVEEDITOR_OUTBOX_COLLECTION, query, event -> {
+            if ("ok".equals(event.body().getString("status"))) {
+                promise.complete(event.body().getJsonArray("results"));
+            } else {
+                promise.fail(event.body().getString("message"));
+            }
+        });
+        return promise.future();
+    }
+}
@@ -0,0 +1,101 @@
+package net.atos.entng.collaborativeeditor.cron;
+
+import fr.wseduc.mongodb.MongoDb;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import net.atos.entng.collaborativeeditor.CollaborativeEditor;
+import org.entcore.test.TestHelper;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.testcontainers.containers.MongoDBContainer;
+
+@RunWith(VertxUnitRunner.class)
+public class TaskCheckpointTest {
+
+    private static final TestHelper test = TestHelper.helper();
+
+    @ClassRule
+    public static MongoDBContainer mongoDBContainer = test.database().createMongoContainer();
+
+    @BeforeClass
+    public static void setUp(TestContext context) {
+        test.database().initMongo(context, mongoDBContainer);
+    }
+
+    @Test
+    public void testAcquireWhenNeverRun(TestContext context) {
+        final Async async = context.async();
+        final TaskCheckpoint checkpoint = new TaskCheckpoint("neverRun");
+        checkpoint.acquire("node1", 60000L)
+                .compose(acquired -> {
+                    context.assertTrue(acquired);
+                    return checkpoint.load();
+                })
+                .onComplete(context.asyncAssertSuccess(record -> {
+                    context.assertEquals(TaskCheckpoint.STATUS_RUNNING, record.getString("status"));
+                    context.assertEquals("node1", record.getString("owner"));
+                    async.complete();
+                }));
+    }
+
+    @Test
+    public void testAcquireRefusedWhileRunningElsewhere(TestContext context) {
+        final Async async = context.async();
+        final TaskCheckpoint checkpoint = new TaskCheckpoint("runningElsewhere");
+        checkpoint.acquire("node1", 60000L)
+                .compose(acquired -> {
+                    context.assertTrue(acquired);
+                    return checkpoint.acquire("node2", 60000L);
+                })
+                .compose(acquired -> {
+                    context.assertFalse(acquired);
+                    return checkpoint.load();
+                })
+                .onComplete(context.asyncAssertSuccess(record -> {
+                    context.assertEquals("node1", record.getString("owner"));
+                    async.complete();
+                }));
+    }
+
+    @Test
+    public void testAcquireAfterCompletedRun(TestContext context) {
+        final Async async = context.async();
+        final TaskCheckpoint checkpoint = new TaskCheckpoint("completedRun");
+        checkpoint.acquire("node1", 60000L)
+                .compose(acquired -> checkpoint.save(new JsonObject().put("status", TaskCheckpoint.STATUS_COMPLETED)))
+                .compose(v -> checkpoint.acquire("node2", 60000L))
+                .onComplete(context.asyncAssertSuccess(acquired -> {
+                    context.assertTrue(acquired);
+                    async.complete();
+                }));
+    }
+
+    @Test
+    public void testAcquireStaleRun(TestContext context) {
+        final Async async = context.async();
+        final TaskCheckpoint checkpoint = new TaskCheckpoint("staleRun");
+        checkpoint.acquire("node1", 60000L).onComplete(context.asyncAssertSuccess(acquired -> {
+            context.assertTrue(acquired);
+            // The node holding the run stopped saving checkpoints two minutes ago
+            final JsonObject modifier = new JsonObject().put("$set", new JsonObject()
+                    .put("updatedAt", System.currentTimeMillis() - 120000L));
+            MongoDb.getInstance().update(CollaborativeEditor.COLLABORATIVEEDITOR_TASKS_COLLECTION,
+                    new JsonObject().put("_id", "staleRun"), modifier, event -> {
+                context.assertEquals("ok", event.body().getString("status"));
+                checkpoint.acquire("node2", 60000L)
+                        .compose(taken -> {
+                            context.assertTrue(taken);
+                            return checkpoint.load();
+                        })
+                        .onComplete(context.asyncAssertSuccess(record -> {
+                            context.assertEquals("node2", record.getString("owner"));
+                            async.complete();
+                        }));
+            });
+        }));
+    }
+}
@@ -0,0 +1,89 @@
+package net.atos.entng.collaborativeeditor.helpers;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EtherpadActivityTest {
+
+    private static final String SECRET = "webhook-secret";
+    private static final Buffer BODY = Buffer.buffer("[{\"event\":\"padUpdate\",\"padId\":\"g.abc$pad\"}]");
+
+    private Vertx vertx;
+    private EtherpadActivity activity;
+
+    @Before
+    public void setUp() {
+        vertx = Vertx.vertx();
+        activity = new EtherpadActivity(vertx, null, new JsonObject()
+                .put("etherpad-webhook-secret", SECRET)
+                .put("etherpad-webhook-max-skew", 60000L));
+    }
+
+    @After
+    public void tearDown() {
+        vertx.close();
+    }
+
+    @Test
+    public void testValidSignature() throws Exception {
+        final String timestamp = String.valueOf(System.currentTimeMillis());
+        final String signature = sign(SECRET, timestamp, BODY);
+        assertTrue(activity.verify(timestamp, signature, BODY));
+        assertTrue(activity.verify(timestamp, "sha256=" + signature, BODY));
+        assertTrue(activity.verify(timestamp, " " + signature.toUpperCase() + " ", BODY));
+    }
+
+    @Test
+    public void testTamperedCall() throws Exception {
+        final String timestamp = String.valueOf(System.currentTimeMillis());
+        final String signature = sign(SECRET, timestamp, BODY);
+        assertFalse(activity.verify(timestamp, signature, Buffer.buffer("[{\"event\":\"padRemove\",\"padId\":\"g.abc$pad\"}]")));
+        assertFalse(activity.verify(String.valueOf(Long.parseLong(timestamp) + 1), signature, BODY));
+        assertFalse(activity.verify(timestamp, sign("other-secret", timestamp, BODY), BODY));
+    }
+
+    @Test
+    public void testReplayedCall() throws Exception {
+        final String timestamp = String.valueOf(System.currentTimeMillis() - 120000L);
+        assertFalse(activity.verify(timestamp, sign(SECRET, timestamp, BODY), BODY));
+    }
+
+    @Test
+    public void testMissingOrMalformedHeaders() throws Exception {
+        final String timestamp = String.valueOf(System.currentTimeMillis());
+        assertFalse(activity.verify(null, sign(SECRET, timestamp, BODY), BODY));
+        assertFalse(activity.verify(timestamp, null, BODY));
+        assertFalse(activity.verify("yesterday", sign(SECRET, "yesterday", BODY), BODY));
+        assertFalse(activity.verify(timestamp, "", BODY));
+    }
+
+    @Test
+    public void testDisabledWithoutSecret() throws Exception {
+        final EtherpadActivity disabled = new EtherpadActivity(vertx, null, new JsonObject());
+        final String timestamp = String.valueOf(System.currentTimeMillis());
+        assertFalse(disabled.verify(timestamp, sign("", timestamp, BODY), BODY));
+    }
+
+    private static String sign(final String secret, final String timestamp, final Buffer body) throws Exception {
+        final Mac mac = Mac.getInstance("HmacSHA256");
+        // An empty key is refused by SecretKeySpec, any key gives a signature the disabled hook must refuse
+        mac.init(new SecretKeySpec((secret.isEmpty() ? "none" : secret).getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        mac.update((timestamp + ".").getBytes(StandardCharsets.UTF_8));
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b : mac.doFinal(body.getBytes())) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
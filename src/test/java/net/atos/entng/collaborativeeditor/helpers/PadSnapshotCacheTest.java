@@ -0,0 +1,46 @@
+package net.atos.entng.collaborativeeditor.helpers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PadSnapshotCacheTest {
+
+    @Test
+    public void testKeepsTheBody() {
+        assertEquals("<p>Hello <b>world</b></p>",
+                PadSnapshotCache.sanitize("<!DOCTYPE HTML><html><head><title>pad</title></head><body><p>Hello <b>world</b></p></body></html>"));
+        assertEquals("<p>no body</p>", PadSnapshotCache.sanitize("<P>no body</P>"));
+    }
+
+    @Test
+    public void testDropsActiveElements() {
+        assertEquals("ab", PadSnapshotCache.sanitize("<body>a<script type=\"text/javascript\">alert(1)</script>b</body>"));
+        assertEquals("ab", PadSnapshotCache.sanitize("a<style>p { color: red }</style><iframe src=\"https://evil.org\"></iframe>b"));
+        assertEquals("ab", PadSnapshotCache.sanitize("a<img src=x onerror=alert(1)>b"));
+    }
+
+    @Test
+    public void testDropsAttributes() {
+        assertEquals("<p>text</p>", PadSnapshotCache.sanitize("<p onclick=\"alert(1)\" style=\"color: red\">text</p>"));
+    }
+
+    @Test
+    public void testKeepsSafeLinks() {
+        assertEquals("<a href=\"https://example.org/x\" target=\"_blank\" rel=\"noopener noreferrer\">link</a>",
+                PadSnapshotCache.sanitize("<a href=\"https://example.org/x\" onclick=\"alert(1)\">link</a>"));
+        assertEquals("<a href=\"mailto:someone@example.org\" target=\"_blank\" rel=\"noopener noreferrer\">mail</a>",
+                PadSnapshotCache.sanitize("<a href='mailto:someone@example.org'>mail</a>"));
+    }
+
+    @Test
+    public void testDropsUnsafeLinks() {
+        assertEquals("<a>link</a>", PadSnapshotCache.sanitize("<a href=\"javascript:alert(1)\">link</a>"));
+        assertEquals("<a>link</a>", PadSnapshotCache.sanitize("<a href=\"data:text/html;base64,PHNjcmlwdD4=\">link</a>"));
+    }
+
+    @Test
+    public void testEscapesStrayBrackets() {
+        assertEquals("1 &lt; 2 &gt; 0", PadSnapshotCache.sanitize("1 < 2 > 0"));
+    }
+}
@@ -0,0 +1,64 @@
+package net.atos.entng.collaborativeeditor.helpers;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PadVisibilityTest {
+
+    private static final String READ = "net-atos-entng-collaborativeeditor-controllers-CollaborativeEditorController|retrieve";
+    private static final String MANAGE = "net-atos-entng-collaborativeeditor-controllers-CollaborativeEditorController|delete";
+
+    @Test
+    public void testOwnerOnly() {
+        final JsonObject pad = new JsonObject().put("owner", new JsonObject().put("userId", "u1").put("displayName", "User 1"));
+        assertEquals(new JsonArray().add("u1").add("owner:u1"), PadVisibility.compute(pad));
+    }
+
+    @Test
+    public void testSharesWithRights() {
+        final JsonObject pad = new JsonObject()
+                .put("owner", new JsonObject().put("userId", "u1"))
+                .put("shared", new JsonArray()
+                        .add(new JsonObject().put("userId", "u2").put(READ, true).put(MANAGE, false))
+                        .add(new JsonObject().put("groupId", "g1").put(READ, true).put(MANAGE, true)));
+        assertEquals(new HashSet<>(Arrays.asList("u1", "owner:u1", "u2", READ + ":u2", "g1", READ + ":g1", MANAGE + ":g1")),
+                new HashSet<>(PadVisibility.compute(pad).getList()));
+    }
+
+    @Test
+    public void testNoDuplicates() {
+        // The owner also appears in the shares, and a group is shared twice
+        final JsonObject pad = new JsonObject()
+                .put("owner", new JsonObject().put("userId", "u1"))
+                .put("shared", new JsonArray()
+                        .add(new JsonObject().put("userId", "u1").put(READ, true))
+                        .add(new JsonObject().put("groupId", "g1").put(READ, true))
+                        .add(new JsonObject().put("groupId", "g1").put(READ, true)));
+        final JsonArray visibleTo = PadVisibility.compute(pad);
+        assertEquals(new HashSet<>(visibleTo.getList()).size(), visibleTo.size());
+        assertEquals(new HashSet<>(Arrays.asList("u1", "owner:u1", READ + ":u1", "g1", READ + ":g1")),
+                new HashSet<>(visibleTo.getList()));
+    }
+
+    @Test
+    public void testMalformedShares() {
+        final JsonObject pad = new JsonObject()
+                .put("shared", new JsonArray()
+                        .add("u3")
+                        .add(new JsonObject().put(READ, true))
+                        .add(new JsonObject().put("userId", "u2").put(READ, "true")));
+        assertEquals(new JsonArray().add("u2"), PadVisibility.compute(pad));
+    }
+
+    @Test
+    public void testEmptyPad() {
+        assertTrue(PadVisibility.compute(new JsonObject()).isEmpty());
+    }
+}